@@ -0,0 +1,38 @@
+package benchmarks;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Punto de entrada de los benchmarks. El repo no trae tarea de build para JMH:
+ * se compila a mano con el procesador de anotaciones, que genera los
+ * META-INF/BenchmarkList que lee Runner. En lib/ van gson, h2 y JMH 1.37
+ * (jmh-core, jmh-generator-annprocess, jopt-simple, commons-math3); server.jar
+ * es el de build/libs.
+ *
+ *   javac -d build/jmh -cp "build/libs/server.jar:lib/*" \
+ *       -processor org.openjdk.jmh.generators.BenchmarkProcessor \
+ *       src/jmh/java/benchmarks/*.java
+ *   java -cp "build/jmh:build/libs/server.jar:lib/*" benchmarks.BenchmarkRunner PocketServiceBenchmark
+ *
+ * Cada argumento es una expresión regular sobre el nombre del benchmark; sin
+ * argumentos corren todos. Los forks heredan el classpath de este proceso.
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder();
+        if (args.length == 0) {
+            options.include("benchmarks\\..*");
+        }
+        for (String include : args) {
+            options.include(include);
+        }
+        new Runner(options.build()).run();
+    }
+}
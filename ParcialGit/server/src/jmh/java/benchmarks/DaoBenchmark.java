@@ -0,0 +1,107 @@
+package benchmarks;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import DBConfig.ConnectionManager;
+import daos.MainAccountDao;
+import daos.PocketDao;
+import model.MainAccount;
+import model.Pocket;
+
+/*
+ * DAOs contra H2 en memoria, con el pool y la caché de statements de siempre.
+ * Cada fork tiene su propia base.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DaoBenchmark {
+
+    @Param({ "1000", "100000" })
+    public int rows;
+
+    private PocketDao pockets;
+    private MainAccountDao accounts;
+    private MainAccount account;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ConnectionManager.getInstance("jdbc:h2:mem:pocket_bench;DB_CLOSE_DELAY=-1", "sa", "");
+        pockets = new PocketDao();
+        accounts = new MainAccountDao();
+        List<Pocket> batch = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            Pocket p = new Pocket();
+            p.setName("bench-" + i);
+            p.setBalance(100);
+            batch.add(p);
+        }
+        try (Connection c = ConnectionManager.getInstance().getConnection()) {
+            pockets.upsertAll(c, batch);
+        }
+        account = new MainAccount();
+        account.setAvailableBalance(1_000_000);
+        account.setTotalBalance(1_000_000 + 100.0 * rows);
+        if (accounts.find() == null) accounts.save(account);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ConnectionManager.getInstance().shutdown();
+    }
+
+    private String randomName() {
+        return "bench-" + ThreadLocalRandom.current().nextInt(rows);
+    }
+
+    @Benchmark
+    public Pocket findById() {
+        return pockets.finById(randomName());
+    }
+
+    @Benchmark
+    public Pocket updatePocket() {
+        Pocket p = new Pocket();
+        p.setName(randomName());
+        p.setBalance(ThreadLocalRandom.current().nextInt(1000));
+        return pockets.update(p);
+    }
+
+    @Benchmark
+    public List<Pocket> findPage() {
+        return pockets.findPage(randomName(), "bench-", 50);
+    }
+
+    @Benchmark
+    public MainAccount findAccount() {
+        return accounts.find();
+    }
+
+    @Benchmark
+    public MainAccount updateAccount() {
+        account.setVersion(account.getVersion() + 1);
+        accounts.update(account);
+        return account;
+    }
+}
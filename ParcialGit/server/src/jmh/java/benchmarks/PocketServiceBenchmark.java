@@ -0,0 +1,129 @@
+package benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import model.MainAccount;
+import model.Pocket;
+import services.PocketService;
+
+/*
+ * PocketService solo, sin sockets ni JSON: cada store con 100, 10k y 1M
+ * bolsillos, con 1 y 4 hilos y con la mezcla de lecturas y escrituras de
+ * producción (7 lectores, 1 escritor).
+ *
+ *   java -cp "build/jmh:build/libs/server.jar:lib/*" benchmarks.BenchmarkRunner PocketServiceBenchmark
+ *
+ * (cómo compilar: BenchmarkRunner)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PocketServiceBenchmark {
+
+    @Param({ "100", "10000", "1000000" })
+    public int pockets;
+
+    @Param({ "IMMUTABLE", "PRIMITIVE", "OFF_HEAP" })
+    public PocketService.StoreType store;
+
+    private PocketService service;
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        names = new String[pockets];
+        double[] balances = new double[pockets];
+        for (int i = 0; i < pockets; i++) {
+            names[i] = "bench-" + i;
+            balances[i] = 1000;
+        }
+        double available = 1_000_000_000;
+        service = PocketService.restore(store, available, available + 1000.0 * pockets, 0, names, balances, pockets);
+    }
+
+    // cada hilo recorre los bolsillos desde un punto distinto
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next = ThreadLocalRandom.current().nextInt(1 << 20);
+        private boolean withdraw;
+
+        String pick(String[] names) {
+            next = (next + 7919) & Integer.MAX_VALUE;
+            return names[next % names.length];
+        }
+    }
+
+    // depósito y retiro alternados sobre el mismo bolsillo: los saldos no se agotan
+    @Benchmark
+    public Pocket depositWithdraw(Cursor cursor) throws Exception {
+        return mutate(cursor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Pocket depositWithdraw4(Cursor cursor) throws Exception {
+        return mutate(cursor);
+    }
+
+    @Benchmark
+    public Pocket getPocket(Cursor cursor) {
+        return service.getPocket(cursor.pick(names));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Pocket getPocket4(Cursor cursor) {
+        return service.getPocket(cursor.pick(names));
+    }
+
+    // GET_ACCOUNT: la vista completa y el primer y último bolsillo, como hace el serializador
+    @Benchmark
+    public void getMainAccount(Blackhole bh) {
+        MainAccount account = service.getMainAccount();
+        bh.consume(account.getPockets().size());
+        bh.consume(account.getPockets().get(pockets - 1));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(7)
+    public void mixedReads(Cursor cursor, Blackhole bh) {
+        bh.consume(service.getPocket(cursor.pick(names)));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public Pocket mixedWrites(Cursor cursor) throws Exception {
+        return mutate(cursor);
+    }
+
+    private Pocket mutate(Cursor cursor) throws Exception {
+        cursor.withdraw = !cursor.withdraw;
+        if (cursor.withdraw) {
+            return service.depositInPocket(cursor.pick(names), 1);
+        }
+        return service.withdrawFromPocket(names[cursor.next % names.length], 1);
+    }
+}
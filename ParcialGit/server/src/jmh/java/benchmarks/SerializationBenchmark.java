@@ -0,0 +1,93 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+import dtos.Command;
+import dtos.Request;
+import dtos.RequestDecoder;
+import dtos.Response;
+import services.PocketService;
+
+/*
+ * Decodificar Request y codificar Response con la misma configuración de Gson
+ * que usa el servidor. GET_ACCOUNT se mide con 10 y 1000 bolsillos porque su
+ * tamaño crece con la cuenta; el resto es de tamaño fijo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SerializationBenchmark {
+
+    private static final String DEPOSIT = "{\"action\":\"DEPOSIT_POCKET\",\"data\":{\"name\":\"bench-1\",\"amount\":\"12.50\"}}";
+    private static final String BATCH = "{\"action\":\"BATCH\",\"data\":{\"atomic\":\"true\"},\"operations\":["
+            + "{\"action\":\"WITHDRAW_POCKET\",\"data\":{\"name\":\"bench-1\",\"amount\":\"5\"}},"
+            + "{\"action\":\"DEPOSIT_POCKET\",\"data\":{\"name\":\"bench-2\",\"amount\":\"5\"}}]}";
+
+    @Param({ "10", "1000" })
+    public int pockets;
+
+    private Gson gson;
+    private RequestDecoder decoder;
+    private Response pocketResponse;
+    private Response accountResponse;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        gson = ServerAccess.createGson();
+        decoder = new RequestDecoder();
+        PocketService service = new PocketService(1_000_000);
+        for (int i = 0; i < pockets; i++) {
+            service.addPocket("bench-" + i, 10);
+        }
+        pocketResponse = new Response();
+        pocketResponse.status = "ok";
+        pocketResponse.entity = service.depositInPocket("bench-1", 1);
+        accountResponse = new Response();
+        accountResponse.status = "ok";
+        accountResponse.entity = service.getMainAccount();
+    }
+
+    @Benchmark
+    public Request decodeGson() {
+        return gson.fromJson(DEPOSIT, Request.class);
+    }
+
+    // camino rápido de processLine
+    @Benchmark
+    public Command decodeFast() {
+        return decoder.decode(DEPOSIT);
+    }
+
+    @Benchmark
+    public Request decodeBatch() {
+        return gson.fromJson(BATCH, Request.class);
+    }
+
+    @Benchmark
+    public String encodePocket() {
+        return gson.toJson(pocketResponse, Response.class);
+    }
+
+    @Benchmark
+    public String encodeAccount() {
+        return gson.toJson(accountResponse, Response.class);
+    }
+}
@@ -0,0 +1,60 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import com.google.gson.Gson;
+
+import dtos.Request;
+import dtos.Response;
+
+/*
+ * Server está en el paquete por defecto, que no se puede importar, y JMH no acepta
+ * benchmarks ahí: se llega a él por MethodHandle, que después de calentar cuesta
+ * lo mismo que una llamada directa.
+ */
+final class ServerAccess {
+
+    private static final Class<?> SERVER;
+    private static final MethodHandle CREATE_GSON;
+    private static final MethodHandle SET_STATS;
+    private static final MethodHandle PREPARE;
+    private static final MethodHandle PROCESS_LINE;
+    private static final MethodHandle HANDLE_REQUEST;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            SERVER = Class.forName("Server");
+            CREATE_GSON = lookup.findStatic(SERVER, "createGson", MethodType.methodType(Gson.class));
+            SET_STATS = lookup.findVirtual(SERVER, "setStatsEnabled", MethodType.methodType(void.class, boolean.class));
+            PREPARE = lookup.findVirtual(SERVER, "prepare", MethodType.methodType(void.class, Double.class));
+            PROCESS_LINE = lookup.findVirtual(SERVER, "processLine", MethodType.methodType(Response.class, String.class));
+            HANDLE_REQUEST = lookup.findVirtual(SERVER, "handleRequest", MethodType.methodType(Response.class, Request.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object server;
+
+    // un servidor listo para atender, sin puertos abiertos
+    ServerAccess(double initialAmount, boolean stats) throws Throwable {
+        server = SERVER.getConstructor().newInstance();
+        SET_STATS.invoke(server, stats);
+        PREPARE.invoke(server, Double.valueOf(initialAmount));
+    }
+
+    static Gson createGson() throws Throwable {
+        return (Gson) CREATE_GSON.invoke();
+    }
+
+    Response processLine(String line) throws Throwable {
+        return (Response) PROCESS_LINE.invoke(server, line);
+    }
+
+    Response handleRequest(Request request) throws Throwable {
+        return (Response) HANDLE_REQUEST.invoke(server, request);
+    }
+}
@@ -0,0 +1,89 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+import dtos.Request;
+import dtos.Response;
+
+/*
+ * Una petición de punta a punta sin red: línea JSON -> processLine (decodificador
+ * rápido o Gson) -> PocketService -> JSON de respuesta. Con stats=false se ve lo
+ * que cuesta la instrumentación de STATS.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ServerBenchmark {
+
+    private static final String DEPOSIT = "{\"action\":\"DEPOSIT_POCKET\",\"data\":{\"name\":\"bench-1\",\"amount\":\"1\",\"mode\":\"delta\"}}";
+    private static final String WITHDRAW = "{\"action\":\"WITHDRAW_POCKET\",\"data\":{\"name\":\"bench-1\",\"amount\":\"1\",\"mode\":\"delta\"}}";
+    private static final String GET_ACCOUNT = "{\"action\":\"GET_ACCOUNT\"}";
+    private static final String LIST = "{\"action\":\"LIST_POCKETS\",\"data\":{\"prefix\":\"bench-\",\"limit\":\"50\"}}";
+
+    @Param({ "true", "false" })
+    public boolean stats;
+
+    @Param({ "100" })
+    public int pockets;
+
+    private ServerAccess server;
+    private Gson gson;
+    private Request list;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        server = new ServerAccess(1_000_000_000.0, stats);
+        gson = ServerAccess.createGson();
+        for (int i = 0; i < pockets; i++) {
+            server.processLine("{\"action\":\"ADD_POCKET\",\"data\":{\"name\":\"bench-" + i + "\",\"initialAmount\":\"1000\"}}");
+        }
+        list = gson.fromJson(LIST, Request.class);
+    }
+
+    // un depósito y un retiro por invocación para que el saldo no se mueva
+    @Benchmark
+    public String depositWithdraw() throws Throwable {
+        server.processLine(DEPOSIT);
+        return encode(server.processLine(WITHDRAW));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String depositWithdraw4() throws Throwable {
+        server.processLine(DEPOSIT);
+        return encode(server.processLine(WITHDRAW));
+    }
+
+    @Benchmark
+    public String getAccount() throws Throwable {
+        return encode(server.processLine(GET_ACCOUNT));
+    }
+
+    @Benchmark
+    public String listPockets() throws Throwable {
+        return encode(server.handleRequest(list));
+    }
+
+    private String encode(Response response) {
+        return gson.toJson(response, Response.class);
+    }
+}
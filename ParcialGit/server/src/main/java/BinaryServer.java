@@ -0,0 +1,184 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import dtos.BinaryProtocol;
+import model.MainAccount;
+import model.Pocket;
+import services.PocketService;
+
+/*
+ * Listener opcional con el protocolo de dtos.BinaryProtocol. Atiende las mismas
+ * operaciones que Server.handleRequest sobre la misma instancia de PocketService,
+ * sin JSON. Las conexiones son persistentes y admiten pipelining.
+ */
+public class BinaryServer {
+
+    private final PocketService pocketService;
+    private final int port;
+    private final int idleTimeoutMillis;
+    private final Executor executor;
+
+    public BinaryServer(PocketService pocketService, int port, int idleTimeoutMillis, Executor executor) {
+        this.pocketService = pocketService;
+        this.port = port;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.executor = executor;
+    }
+
+    public void start() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    try {
+                        executor.execute(() -> handleClient(socket));
+                    } catch (RejectedExecutionException busy) {
+                        try (socket) {
+                            writeFrame(socket.getOutputStream(), error("Server busy"));
+                        } catch (IOException ignore) {}
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "binary-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Binary listener started on port " + port);
+    }
+
+    void handleClient(Socket socket) {
+        try (socket) {
+            socket.setSoTimeout(idleTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            byte[] frame = new byte[256];
+
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException | SocketTimeoutException closed) {
+                    break;
+                }
+                if (length < 1 || length > BinaryProtocol.MAX_FRAME) break;
+                if (frame.length < length) frame = new byte[Math.max(length, frame.length * 2)];
+                in.readFully(frame, 0, length);
+
+                writeFrame(out, handle(ByteBuffer.wrap(frame, 0, length)));
+                // pipelining: un solo flush para todo lo que ya llegó
+                if (in.available() == 0) out.flush();
+            }
+            out.flush();
+        } catch (IOException ignore) {
+            // el cliente se fue a mitad de un frame
+        }
+    }
+
+    private ByteBuffer handle(ByteBuffer request) {
+        try {
+            byte opcode = request.get();
+            switch (opcode) {
+                case BinaryProtocol.ADD_POCKET: {
+                    String name = BinaryProtocol.getName(request);
+                    return pocket(pocketService.addPocket(name, request.getDouble()));
+                }
+                case BinaryProtocol.DEPOSIT_POCKET: {
+                    String name = BinaryProtocol.getName(request);
+                    return pocket(pocketService.depositInPocket(name, request.getDouble()));
+                }
+                case BinaryProtocol.WITHDRAW_POCKET: {
+                    String name = BinaryProtocol.getName(request);
+                    return pocket(pocketService.withdrawFromPocket(name, request.getDouble()));
+                }
+                case BinaryProtocol.DEPOSIT_ACCOUNT: {
+                    MainAccount account = pocketService.depositInAccount(request.getDouble());
+                    ByteBuffer out = ByteBuffer.allocate(1 + 24);
+                    out.put(BinaryProtocol.OK);
+                    putTotals(out, account);
+                    return out;
+                }
+                case BinaryProtocol.GET_ACCOUNT:
+                    return account(pocketService.getMainAccount());
+                default:
+                    return error("Unknown action");
+            }
+        } catch (IllegalArgumentException | IllegalStateException ex) {
+            return error(ex.getMessage());
+        } catch (BufferUnderflowException ex) {
+            // frame más corto de lo que pide su opcode
+            return error("Malformed frame");
+        } catch (Exception ex) {
+            return error("Internal error");
+        }
+    }
+
+    private static ByteBuffer pocket(Pocket pocket) {
+        ByteBuffer out = ByteBuffer.allocate(1 + BinaryProtocol.nameSize(pocket.getName()) + 8 + 24);
+        out.put(BinaryProtocol.OK);
+        BinaryProtocol.putName(out, pocket.getName());
+        out.putDouble(pocket.getBalance());
+        putTotals(out, pocket.getMainAccount());
+        return out;
+    }
+
+    private static ByteBuffer account(MainAccount account) {
+        List<Pocket> pockets = account.getPockets();
+        int size = 1 + 24 + 4;
+        for (Pocket p : pockets) {
+            size += BinaryProtocol.nameSize(p.getName()) + 8;
+            // el cliente descarta frames más grandes y perdería el hilo de la conexión
+            if (size > BinaryProtocol.MAX_FRAME) return error("Account too large for one frame");
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(BinaryProtocol.OK);
+        putTotals(out, account);
+        out.putInt(pockets.size());
+        for (Pocket p : pockets) {
+            BinaryProtocol.putName(out, p.getName());
+            out.putDouble(p.getBalance());
+        }
+        return out;
+    }
+
+    private static void putTotals(ByteBuffer out, MainAccount account) {
+        out.putDouble(account.getAvailableBalance());
+        out.putDouble(account.getTotalBalance());
+        out.putLong(account.getVersion());
+    }
+
+    private static ByteBuffer error(String message) {
+        String text = message == null ? "Internal error" : message;
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, BinaryProtocol.MAX_NAME);
+        ByteBuffer out = ByteBuffer.allocate(1 + 2 + length);
+        out.put(BinaryProtocol.ERROR);
+        out.putShort((short) length);
+        out.put(bytes, 0, length);
+        return out;
+    }
+
+    private static void writeFrame(OutputStream out, ByteBuffer body) throws IOException {
+        int length = body.position();
+        out.write(length >>> 24);
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(body.array(), 0, length);
+    }
+}
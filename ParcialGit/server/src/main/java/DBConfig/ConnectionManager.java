@@ -1,53 +1,452 @@
 package DBConfig;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/*
+ * Pool acotado de conexiones detrás del mismo getConnection() de siempre. La
+ * conexión devuelta es un proxy: close() la regresa al pool en lugar de cerrarla.
+ * Se configura con las variables pool_min_size, pool_max_size,
+ * pool_borrow_timeout_ms y pool_validation_interval_ms, o con configurePool.
+ *
+ * Cada conexión física guarda sus PreparedStatement por SQL (hasta
+ * pool_statement_cache_size); cerrar el statement de un préstamo solo limpia los
+ * parámetros y lo deja listo para el siguiente.
+ */
 public class ConnectionManager {
 
     private String url;
     private String user;
     private String password;
 
-    private static ConnectionManager manager;
+    private int minSize = 1;
+    private int maxSize = 10;
+    private long borrowTimeoutMillis = 5000;
+    // una conexión que estuvo quieta más que esto se valida antes de prestarla
+    private long validationIntervalMillis = 5000;
+    private int statementCacheSize = 32;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+    private int active;
+    private boolean prefilled;
+
+    // métricas
+    private long borrowCount;
+    private long waitNanos;
+    private long maxWaitNanos;
+    private long timeouts;
+
+    private static volatile ConnectionManager manager;
 
     public static ConnectionManager getInstance(){
-        if(manager == null){
-            manager = new ConnectionManager();
+        ConnectionManager m = manager;
+        if (m == null) {
+            synchronized (ConnectionManager.class) {
+                if (manager == null) {
+                    manager = new ConnectionManager();
+                }
+                m = manager;
+            }
         }
-        return manager;
+        return m;
     }
 
     public static ConnectionManager getInstance(String url, String user, String password){
-        if(manager == null){
-            manager = new ConnectionManager(url, user, password);
+        ConnectionManager m = manager;
+        if (m == null) {
+            synchronized (ConnectionManager.class) {
+                if (manager == null) {
+                    manager = new ConnectionManager(url, user, password);
+                }
+                m = manager;
+            }
         }
-        return manager;
+        return m;
     }
 
     private ConnectionManager(String url, String user, String password){
         this.url = url;
         this.user = user;
         this.password = password;
+        readPoolSettings();
     }
 
     private ConnectionManager(){
         this.url = System.getenv("url");
         this.user = System.getenv("user");
         this.password = System.getenv("password");
+        readPoolSettings();
+    }
+
+    private void readPoolSettings() {
+        String min = System.getenv("pool_min_size");
+        if (min != null) minSize = Integer.parseInt(min);
+        String max = System.getenv("pool_max_size");
+        if (max != null) maxSize = Integer.parseInt(max);
+        String timeout = System.getenv("pool_borrow_timeout_ms");
+        if (timeout != null) borrowTimeoutMillis = Long.parseLong(timeout);
+        String validation = System.getenv("pool_validation_interval_ms");
+        if (validation != null) validationIntervalMillis = Long.parseLong(validation);
+        String statements = System.getenv("pool_statement_cache_size");
+        if (statements != null) statementCacheSize = Integer.parseInt(statements);
+    }
+
+    public void configurePool(int minSize, int maxSize, long borrowTimeoutMillis) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) throw new IllegalArgumentException("Invalid pool size");
+        lock.lock();
+        try {
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.borrowTimeoutMillis = borrowTimeoutMillis;
+            // si el pool se achicó, las conexiones sobrantes se cierran al devolverse
+            while (!idle.isEmpty() && active + idle.size() > maxSize) {
+                closeQuietly(idle.pollLast().physical);
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public Connection getConnection(){
         try {
-            Class.forName("org.h2.Driver");
-            Connection con = DriverManager.getConnection(url, user, password);
-            return con;
+            return borrow();
         } catch (Exception e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    private Connection borrow() throws SQLException, InterruptedException {
+        prefill();
+        long start = System.nanoTime();
+        long remaining = TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+        while (true) {
+            PooledConnection pooled = null;
+            boolean open = false;
+            lock.lock();
+            try {
+                while (idle.isEmpty() && active + idle.size() >= maxSize) {
+                    if (remaining <= 0) {
+                        timeouts++;
+                        throw new SQLTimeoutException("Timed out waiting for a database connection");
+                    }
+                    remaining = released.awaitNanos(remaining);
+                }
+                pooled = idle.pollFirst();
+                open = pooled == null;
+                active++;
+                recordWait(System.nanoTime() - start);
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                if (open) {
+                    pooled = new PooledConnection(openPhysical());
+                } else if (!isUsable(pooled)) {
+                    closeQuietly(pooled.physical);
+                    discard();
+                    continue;
+                }
+            } catch (SQLException | RuntimeException e) {
+                discard();
+                throw e;
+            }
+            return pooled.lease();
+        }
+    }
+
+    private boolean isUsable(PooledConnection pooled) {
+        if (System.currentTimeMillis() - pooled.lastUsed < validationIntervalMillis) return true;
+        try {
+            return pooled.physical.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void prefill() {
+        if (prefilled) return;
+        lock.lock();
+        try {
+            if (prefilled) return;
+            prefilled = true;
+            while (active + idle.size() < minSize) {
+                idle.add(new PooledConnection(openPhysical()));
+            }
+        } catch (Exception e) {
+            // el mínimo es best effort; getConnection reintenta abriendo bajo demanda
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Connection openPhysical() throws SQLException {
+        try {
+            Class.forName("org.h2.Driver");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("H2 driver not found", e);
+        }
+        return DriverManager.getConnection(url, user, password);
+    }
+
+    private void release(PooledConnection pooled) {
+        boolean reusable;
+        try {
+            reusable = !pooled.physical.isClosed();
+            if (reusable && !pooled.physical.getAutoCommit()) {
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            reusable = false;
+        }
+        lock.lock();
+        try {
+            active--;
+            if (reusable && active + idle.size() < maxSize) {
+                pooled.lastUsed = System.currentTimeMillis();
+                idle.addFirst(pooled);
+            } else {
+                closeQuietly(pooled.physical);
+            }
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-    
+    private void discard() {
+        lock.lock();
+        try {
+            active--;
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordWait(long nanos) {
+        borrowCount++;
+        waitNanos += nanos;
+        if (nanos > maxWaitNanos) maxWaitNanos = nanos;
+    }
+
+    public void shutdown() {
+        lock.lock();
+        try {
+            while (!idle.isEmpty()) {
+                closeQuietly(idle.poll().physical);
+            }
+            prefilled = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ---- métricas ----
+    public int getActiveConnections() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getIdleConnections() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBorrowCount() {
+        lock.lock();
+        try {
+            return borrowCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getAverageWaitMillis() {
+        lock.lock();
+        try {
+            return borrowCount == 0 ? 0 : waitNanos / 1e6 / borrowCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getMaxWaitMillis() {
+        lock.lock();
+        try {
+            return maxWaitNanos / 1e6;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getTimeouts() {
+        lock.lock();
+        try {
+            return timeouts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException ignore) {}
+    }
+
+    private final class PooledConnection {
+        private final Connection physical;
+        private long lastUsed = System.currentTimeMillis();
+        // LRU por SQL; solo lo usa quien tiene la conexión prestada
+        private final Map<String, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= statementCacheSize) return false;
+                try {
+                    eldest.getValue().physical.close();
+                } catch (SQLException ignore) {}
+                return true;
+            }
+        };
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            if (statementCacheSize <= 0) return physical.prepareStatement(sql);
+            CachedStatement cached = statements.get(sql);
+            if (cached != null && (cached.inUse || cached.physical.isClosed())) {
+                // el mismo SQL dos veces a la vez en un préstamo: el segundo no se cachea
+                if (cached.inUse) return physical.prepareStatement(sql);
+                cached = null;
+            }
+            if (cached == null) {
+                cached = new CachedStatement(physical.prepareStatement(sql));
+                statements.put(sql, cached);
+            }
+            cached.inUse = true;
+            return (PreparedStatement) Proxy.newProxyInstance(ConnectionManager.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class }, cached.new Handle());
+        }
+
+        Connection lease() {
+            return (Connection) Proxy.newProxyInstance(ConnectionManager.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, new Lease(this));
+        }
+    }
+
+    private static final class CachedStatement {
+        private final PreparedStatement physical;
+        private boolean inUse;
+
+        CachedStatement(PreparedStatement physical) {
+            this.physical = physical;
+        }
+
+        // uso del statement dentro de un préstamo; close() lo devuelve a la caché
+        final class Handle implements InvocationHandler {
+            private boolean closed;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "close":
+                        if (!closed) {
+                            closed = true;
+                            inUse = false;
+                            physical.clearParameters();
+                        }
+                        return null;
+                    case "isClosed":
+                        return closed || physical.isClosed();
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        if (closed) throw new SQLException("Statement is closed");
+                        try {
+                            return method.invoke(physical, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                }
+            }
+        }
+    }
+
+    // un préstamo: después de close() el proxy ya no sirve aunque la conexión física siga viva
+    private final class Lease implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean closed;
+
+        Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled[" + pooled.physical + "]";
+                case "prepareStatement":
+                    if (closed) throw new SQLException("Connection is closed");
+                    if (args.length == 1) return pooled.prepare((String) args[0]);
+                    // variantes con opciones: sin caché
+                    try {
+                        return method.invoke(pooled.physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                default:
+                    if (closed) throw new SQLException("Connection is closed");
+                    try {
+                        return method.invoke(pooled.physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+    }
 }
@@ -0,0 +1,234 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Respuestas ya serializadas de mutaciones con idempotencyKey. Un reintento con la
+ * misma clave recibe el mismo JSON sin volver a tocar el servicio. Si llega mientras
+ * la primera todavía corre, espera su resultado en lugar de ejecutarse otra vez,
+ * hasta waitMillis: después recibe "Request in progress" y puede reintentar.
+ *
+ * Acotada por cantidad y por bytes (LRU) y con vencimiento por TTL. Las entradas
+ * en curso no se desalojan: mientras haya alguien ejecutando, la clave queda tomada.
+ */
+final class IdempotencyCache {
+
+    // estimado por entrada: nodo del mapa, Entry, latch y cabeceras de los String
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final long waitMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    // métricas
+    private long hits;
+    private long misses;
+    private long waits;
+    private long evictions;
+    private long expirations;
+
+    IdempotencyCache(int maxEntries, long maxBytes, long ttlMillis, long waitMillis) {
+        if (maxEntries < 1 || maxBytes < 1 || ttlMillis < 1 || waitMillis < 0)
+            throw new IllegalArgumentException("Invalid idempotency cache settings");
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.waitMillis = waitMillis;
+    }
+
+    /*
+     * La respuesta guardada para la clave, o null si la clave es nueva: en ese caso
+     * quien llama la tomó y tiene que terminar con complete o abandon. La misma clave
+     * con otra petición es un error del cliente.
+     */
+    String begin(String key, String fingerprint) throws InterruptedException {
+        while (true) {
+            Entry entry;
+            lock.lock();
+            try {
+                entry = entries.get(key);
+                if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+                    remove(key, entry);
+                    expirations++;
+                    entry = null;
+                }
+                if (entry == null) {
+                    entry = new Entry(fingerprint, size(key, fingerprint, null));
+                    entries.put(key, entry);
+                    bytes += entry.bytes;
+                    misses++;
+                    trim();
+                    return null;
+                }
+                if (!entry.fingerprint.equals(fingerprint))
+                    throw new IllegalArgumentException("Idempotency key already used for a different request");
+                if (entry.response != null) {
+                    hits++;
+                    return entry.response;
+                }
+                waits++;
+            } finally {
+                lock.unlock();
+            }
+            // la primera ejecución sigue en curso; si se abandona, la clave vuelve a estar libre
+            if (!entry.done.await(waitMillis, TimeUnit.MILLISECONDS))
+                throw new IllegalStateException("Request in progress");
+        }
+    }
+
+    void complete(String key, String response) {
+        Entry entry;
+        lock.lock();
+        try {
+            entry = entries.get(key);
+            if (entry == null) return;
+            long size = size(key, entry.fingerprint, response);
+            bytes += size - entry.bytes;
+            entry.bytes = size;
+            entry.response = response;
+            entry.expiresAt = System.currentTimeMillis() + ttlMillis;
+            trim();
+        } finally {
+            lock.unlock();
+        }
+        entry.done.countDown();
+    }
+
+    // la ejecución falló sin una respuesta definitiva: el próximo reintento se ejecuta de nuevo
+    void abandon(String key) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.response == null) {
+                remove(key, entry);
+                entry.done.countDown();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // desaloja vencidas y las menos usadas hasta entrar en los límites, salteando las que están en curso
+    private void trim() {
+        if (entries.size() <= maxEntries && bytes <= maxBytes) return;
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext() && (entries.size() > maxEntries || bytes > maxBytes)) {
+            Entry entry = it.next().getValue();
+            if (entry.response == null) continue;
+            it.remove();
+            bytes -= entry.bytes;
+            if (entry.isExpired(now)) expirations++;
+            else evictions++;
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        entries.remove(key);
+        bytes -= entry.bytes;
+    }
+
+    private static long size(String key, String fingerprint, String response) {
+        long chars = key.length() + fingerprint.length() + (response == null ? 0 : response.length());
+        return ENTRY_OVERHEAD + 2 * chars;
+    }
+
+    // ---- métricas ----
+    long getHits() {
+        lock.lock();
+        try {
+            return hits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getMisses() {
+        lock.lock();
+        try {
+            return misses;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getWaits() {
+        lock.lock();
+        try {
+            return waits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getEvictions() {
+        lock.lock();
+        try {
+            return evictions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getExpirations() {
+        lock.lock();
+        try {
+            return expirations;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    double getHitRate() {
+        lock.lock();
+        try {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getEntries() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Entry {
+        private final String fingerprint;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private String response;
+        private long expiresAt = Long.MAX_VALUE;
+        private long bytes;
+
+        Entry(String fingerprint, long bytes) {
+            this.fingerprint = fingerprint;
+            this.bytes = bytes;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
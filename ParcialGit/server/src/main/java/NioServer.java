@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dtos.Response;
+
+/*
+ * Front end no bloqueante: un hilo acepta conexiones y las reparte entre unos
+ * pocos event loops (Selector). Cada loop enmarca las peticiones por '\n' y pasa
+ * las líneas completas al pool de workers, que llaman a Server.processLine.
+ * Las peticiones de una misma conexión se procesan en orden, una a la vez, así
+ * que las respuestas salen en el mismo orden que llegaron.
+ *
+ * Contrapresión: si una conexión acumula MAX_PENDING_REQUESTS peticiones sin
+ * procesar o MAX_OUTBOUND_BYTES de respuestas sin enviar (un cliente que manda
+ * sin leer), el loop deja de leerla hasta que ambas colas bajan a la mitad.
+ */
+public class NioServer {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+    private static final int MAX_PENDING_REQUESTS = 1024;
+    private static final int MAX_OUTBOUND_BYTES = 1024 * 1024;
+
+    private final Server server;
+    private final int port;
+    private final int idleTimeoutMillis;
+    private final EventLoop[] loops;
+    private final Executor workers;
+    private final AtomicLong readPauses = new AtomicLong();
+
+    public NioServer(Server server, int port, int ioThreads, int idleTimeoutMillis, Executor workers) {
+        this.server = server;
+        this.port = port;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.workers = workers;
+        this.loops = new EventLoop[Math.max(1, ioThreads)];
+    }
+
+    public void run() throws IOException {
+        ServerSocketChannel acceptor = ServerSocketChannel.open();
+        acceptor.bind(new InetSocketAddress(port));
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        System.out.println("NIO server started on port " + port + " with " + loops.length + " I/O loops");
+
+        int next = 0;
+        while (true) {
+            SocketChannel channel = acceptor.accept();
+            server.connectionOpened();
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    // veces que alguna conexión dejó de leerse por tener las colas llenas
+    long getReadPauses() {
+        return readPauses.get();
+    }
+
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        // un único buffer directo por loop, reutilizado para todas sus lecturas
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void requestWrite(Connection c) {
+            pendingWrites.add(c);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (true) {
+                try {
+                    selector.select(1000);
+
+                    SocketChannel channel;
+                    while ((channel = newChannels.poll()) != null) {
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        Connection c = new Connection(this, channel);
+                        c.key = channel.register(selector, SelectionKey.OP_READ, c);
+                    }
+
+                    Connection pending;
+                    while ((pending = pendingWrites.poll()) != null) {
+                        write(pending);
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection c = (Connection) key.attachment();
+                        if (!key.isValid()) continue;
+                        if (key.isReadable()) read(c);
+                        if (key.isValid() && key.isWritable()) write(c);
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= 1000) {
+                        closeIdle(now);
+                        lastSweep = now;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void read(Connection c) {
+            int n;
+            try {
+                readBuffer.clear();
+                n = c.channel.read(readBuffer);
+            } catch (IOException e) {
+                close(c);
+                return;
+            }
+            if (n < 0) {
+                synchronized (c) {
+                    c.inputClosed = true;
+                }
+                c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+                closeIfDone(c);
+                return;
+            }
+            c.lastActivity = System.currentTimeMillis();
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    int len = c.partialLength;
+                    if (len > 0 && c.partial[len - 1] == '\r') len--;
+                    c.submit(new String(c.partial, 0, len, StandardCharsets.UTF_8));
+                    c.partialLength = 0;
+                } else {
+                    if (c.partialLength == MAX_LINE_LENGTH) {
+                        close(c);
+                        return;
+                    }
+                    if (c.partialLength == c.partial.length) {
+                        c.partial = Arrays.copyOf(c.partial, Math.min(MAX_LINE_LENGTH, c.partial.length * 2));
+                    }
+                    c.partial[c.partialLength++] = b;
+                }
+            }
+            // una lectura puede pasarse del tope por lo que traía el buffer, nunca más
+            if (c.overLimit()) {
+                c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+                c.readPaused = true;
+                readPauses.incrementAndGet();
+            }
+        }
+
+        private void write(Connection c) {
+            if (!c.key.isValid()) return;
+            try {
+                synchronized (c) {
+                    while (!c.outbound.isEmpty()) {
+                        ByteBuffer head = c.outbound.peek();
+                        c.channel.write(head);
+                        if (head.hasRemaining()) break;
+                        c.outbound.poll();
+                        c.outboundBytes -= head.capacity();
+                    }
+                    int ops = c.key.interestOps();
+                    ops = c.outbound.isEmpty() ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE;
+                    // se vuelve a leer cuando las dos colas bajaron a la mitad del tope
+                    if (c.readPaused && !c.inputClosed && c.requests.size() <= MAX_PENDING_REQUESTS / 2
+                            && c.outboundBytes <= MAX_OUTBOUND_BYTES / 2) {
+                        ops |= SelectionKey.OP_READ;
+                        c.readPaused = false;
+                    }
+                    c.key.interestOps(ops);
+                }
+                c.lastActivity = System.currentTimeMillis();
+                closeIfDone(c);
+            } catch (IOException e) {
+                close(c);
+            }
+        }
+
+        private void closeIfDone(Connection c) {
+            synchronized (c) {
+                if (c.inputClosed && !c.scheduled && c.requests.isEmpty() && c.outbound.isEmpty()) {
+                    close(c);
+                }
+            }
+        }
+
+        private void closeIdle(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection c = (Connection) key.attachment();
+                if (c == null || now - c.lastActivity < idleTimeoutMillis) continue;
+                synchronized (c) {
+                    if (!c.scheduled && c.outbound.isEmpty()) close(c);
+                }
+            }
+        }
+
+        private void close(Connection c) {
+            if (c.channel.isOpen()) server.connectionClosed();
+            c.key.cancel();
+            try { c.channel.close(); } catch (IOException ignore) {}
+        }
+    }
+
+    private final class Connection {
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        // bytes de la línea que todavía no llegó completa (solo los toca el event loop)
+        private byte[] partial = new byte[512];
+        private int partialLength;
+        private long lastActivity = System.currentTimeMillis();
+
+        // protegido por synchronized(this): lo comparten el event loop y los workers
+        private final ArrayDeque<String> requests = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private long outboundBytes;
+        private boolean scheduled;
+        private boolean inputClosed;
+        // OP_READ quitado por contrapresión
+        private boolean readPaused;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        synchronized boolean overLimit() {
+            return requests.size() >= MAX_PENDING_REQUESTS || outboundBytes >= MAX_OUTBOUND_BYTES;
+        }
+
+        void submit(String line) {
+            synchronized (this) {
+                requests.add(line);
+                if (scheduled) return;
+                scheduled = true;
+            }
+            try {
+                workers.execute(this::drain);
+            } catch (RejectedExecutionException busy) {
+                // pool saturado: todo lo pendiente de esta conexión recibe "Server busy", en orden
+                byte[] bytes = (server.encode(server.busyResponse()) + "\n").getBytes(StandardCharsets.UTF_8);
+                synchronized (this) {
+                    while (requests.poll() != null) {
+                        outbound.add(ByteBuffer.wrap(bytes));
+                        outboundBytes += bytes.length;
+                    }
+                    scheduled = false;
+                }
+                loop.requestWrite(this);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                String line;
+                synchronized (this) {
+                    line = requests.poll();
+                    if (line == null) {
+                        scheduled = false;
+                        // el loop revisa si ya puede cerrar una conexión que llegó a EOF
+                        if (inputClosed) loop.requestWrite(this);
+                        break;
+                    }
+                }
+                Response response = server.processLine(line);
+                byte[] bytes = (server.encode(response) + "\n").getBytes(StandardCharsets.UTF_8);
+                synchronized (this) {
+                    outbound.add(ByteBuffer.wrap(bytes));
+                    outboundBytes += bytes.length;
+                }
+                loop.requestWrite(this);
+            }
+        }
+    }
+}
@@ -4,71 +4,525 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
 
+import dtos.Action;
+import dtos.Command;
+import dtos.MainAccountAdapter;
 import dtos.Request;
+import dtos.RequestDecoder;
 import dtos.Response;
+import dtos.ResponseAdapter;
 import model.MainAccount;
 import model.Pocket;
+import persistence.Checkpoint;
+import persistence.Ledger;
+import persistence.WriteAheadLog;
+import persistence.WriteBehindStore;
+import services.BatchResult;
+import services.PocketOperation;
+import services.PocketPage;
 import services.PocketService;
+import services.PocketTransfer;
+import services.ShardedPocketService;
 
 public class Server {
 
     private PocketService pocketService;
     private Gson gson;
 
+    // keep-alive: una conexión lleva muchas peticiones separadas por '\n'
+    private boolean keepAlive = true;
+    private int idleTimeoutMillis = 30000;
+
+    private int port = 5000;
+    // "blocking": un hilo por conexión; "nio": event loops con Selector + pool de workers
+    private String ioMode = "blocking";
+    private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int workerThreads = Runtime.getRuntime().availableProcessors();
+
+    // "thread": un Thread nuevo por tarea; "virtual": hilos virtuales; "pool": pool acotado de plataforma
+    private String executionMode = "thread";
+    private int queueCapacity = 1000;
+    // en modo "pool" con E/S bloqueante: ejecuta cada petición; las conexiones solo leen.
+    // requestSlots = workers + cola; una petición sin lugar recibe "Server busy"
+    private ExecutorService requestPool;
+    volatile Semaphore requestSlots;
+    // tope de peticiones en curso; 0 = sin límite
+    private int maxInFlight = 0;
+    private Semaphore inFlight;
+
+    // listener binario opcional sobre el mismo PocketService; 0 = deshabilitado
+    private int binaryPort = 0;
+
+    // persistencia asíncrona en H2; si está activa el estado inicial sale de la base
+    private boolean writeBehind = false;
+    private int writeBehindBatchSize = 500;
+    private long writeBehindIntervalMillis = 200;
+    private int writeBehindCapacity = 10000;
+
+    // log de mutaciones en disco; si hay ruta, el estado inicial sale de repetirlo
+    private String walPath = null;
+    private WriteAheadLog.FsyncPolicy walFsync = WriteAheadLog.FsyncPolicy.ALWAYS;
+    private long walFsyncIntervalMillis = 10;
+
+    // foto binaria periódica para arrancar sin repetir todo el log
+    private String checkpointPath = null;
+    private long checkpointIntervalMillis = 60000;
+
+    // representación del estado en memoria: immutable, primitive u off_heap
+    private PocketService.StoreType storeType = PocketService.StoreType.IMMUTABLE;
+
+    // cuentas adicionales por "account" en data, repartidas en shards de un hilo cada uno; 0 = solo la cuenta por defecto
+    private int shards = 0;
+    // ids de esas cuentas; cualquier otro es "Account not found"
+    private List<String> accountIds = List.of();
+    private ShardedPocketService accounts;
+
+    // respuestas de mutaciones con idempotencyKey; tamaño 0 = desactivada
+    private int idempotencyCacheSize = 10000;
+    private long idempotencyCacheBytes = 16 * 1024 * 1024;
+    private long idempotencyTtlMillis = 10 * 60 * 1000;
+    // cuánto espera un reintento a que termine la primera ejecución
+    private long idempotencyWaitMillis = 5000;
+    private IdempotencyCache idempotency;
+
+    // contadores e histogramas por acción (STATS); con statsFile se vuelcan cada statsIntervalMillis
+    private boolean statsEnabled = true;
+    private String statsFile = null;
+    private long statsIntervalMillis = 60000;
+    private ServerStats stats;
+
+    // historial de movimientos en memoria (HISTORY); los segmentos viejos van a ledgerPath o a un temporal,
+    // que el Ledger borra al cerrar
+    private boolean ledgerEnabled = false;
+    private String ledgerPath = null;
+    private int ledgerSegmentSize = 65536;
+    private int ledgerMemorySegments = 4;
+    private Ledger ledger;
+
+    private final ThreadLocal<RequestDecoder> decoder = ThreadLocal.withInitial(RequestDecoder::new);
+
     public static void main(String[] args) throws Exception {
         Server server = new Server();
+        String keepAlive = System.getenv("KEEP_ALIVE");
+        if (keepAlive != null) server.setKeepAlive(Boolean.parseBoolean(keepAlive));
+        String idleTimeout = System.getenv("IDLE_TIMEOUT_MS");
+        if (idleTimeout != null) server.setIdleTimeoutMillis(Integer.parseInt(idleTimeout));
+        String port = System.getenv("PORT");
+        if (port != null) server.setPort(Integer.parseInt(port));
+        String ioMode = System.getenv("IO_MODE");
+        if (ioMode != null) server.setIoMode(ioMode);
+        String ioThreads = System.getenv("IO_THREADS");
+        if (ioThreads != null) server.setIoThreads(Integer.parseInt(ioThreads));
+        String workerThreads = System.getenv("WORKER_THREADS");
+        if (workerThreads != null) server.setWorkerThreads(Integer.parseInt(workerThreads));
+        String executionMode = System.getenv("EXECUTION_MODE");
+        if (executionMode != null) server.setExecutionMode(executionMode);
+        String queueCapacity = System.getenv("QUEUE_CAPACITY");
+        if (queueCapacity != null) server.setQueueCapacity(Integer.parseInt(queueCapacity));
+        String maxInFlight = System.getenv("MAX_IN_FLIGHT");
+        if (maxInFlight != null) server.setMaxInFlight(Integer.parseInt(maxInFlight));
+        String binaryPort = System.getenv("BINARY_PORT");
+        if (binaryPort != null) server.setBinaryPort(Integer.parseInt(binaryPort));
+        String writeBehind = System.getenv("WRITE_BEHIND");
+        if (writeBehind != null) server.setWriteBehind(Boolean.parseBoolean(writeBehind));
+        String writeBehindBatch = System.getenv("WRITE_BEHIND_BATCH_SIZE");
+        if (writeBehindBatch != null) server.setWriteBehindBatchSize(Integer.parseInt(writeBehindBatch));
+        String writeBehindInterval = System.getenv("WRITE_BEHIND_INTERVAL_MS");
+        if (writeBehindInterval != null) server.setWriteBehindIntervalMillis(Long.parseLong(writeBehindInterval));
+        String writeBehindCapacity = System.getenv("WRITE_BEHIND_CAPACITY");
+        if (writeBehindCapacity != null) server.setWriteBehindCapacity(Integer.parseInt(writeBehindCapacity));
+        String walPath = System.getenv("WAL_PATH");
+        if (walPath != null) server.setWalPath(walPath);
+        String walFsync = System.getenv("WAL_FSYNC");
+        if (walFsync != null) server.setWalFsync(WriteAheadLog.FsyncPolicy.valueOf(walFsync.toUpperCase()));
+        String walInterval = System.getenv("WAL_FSYNC_INTERVAL_MS");
+        if (walInterval != null) server.setWalFsyncIntervalMillis(Long.parseLong(walInterval));
+        String checkpointPath = System.getenv("CHECKPOINT_PATH");
+        if (checkpointPath != null) server.setCheckpointPath(checkpointPath);
+        String checkpointInterval = System.getenv("CHECKPOINT_INTERVAL_MS");
+        if (checkpointInterval != null) server.setCheckpointIntervalMillis(Long.parseLong(checkpointInterval));
+        String pocketStore = System.getenv("POCKET_STORE");
+        if (pocketStore != null) server.setStoreType(PocketService.StoreType.valueOf(pocketStore.toUpperCase()));
+        String shards = System.getenv("SHARDS");
+        if (shards != null) server.setShards(Integer.parseInt(shards));
+        String accountIds = System.getenv("ACCOUNTS");
+        if (accountIds != null) server.setAccountIds(List.of(accountIds.split(",")));
+        String idempotencySize = System.getenv("IDEMPOTENCY_CACHE_SIZE");
+        if (idempotencySize != null) server.setIdempotencyCacheSize(Integer.parseInt(idempotencySize));
+        String idempotencyBytes = System.getenv("IDEMPOTENCY_CACHE_BYTES");
+        if (idempotencyBytes != null) server.setIdempotencyCacheBytes(Long.parseLong(idempotencyBytes));
+        String idempotencyTtl = System.getenv("IDEMPOTENCY_TTL_MS");
+        if (idempotencyTtl != null) server.setIdempotencyTtlMillis(Long.parseLong(idempotencyTtl));
+        String idempotencyWait = System.getenv("IDEMPOTENCY_WAIT_MS");
+        if (idempotencyWait != null) server.setIdempotencyWaitMillis(Long.parseLong(idempotencyWait));
+        String stats = System.getenv("STATS");
+        if (stats != null) server.setStatsEnabled(Boolean.parseBoolean(stats));
+        String statsFile = System.getenv("STATS_FILE");
+        if (statsFile != null) server.setStatsFile(statsFile);
+        String statsInterval = System.getenv("STATS_INTERVAL_MS");
+        if (statsInterval != null) server.setStatsIntervalMillis(Long.parseLong(statsInterval));
+        String ledger = System.getenv("LEDGER");
+        if (ledger != null) server.setLedgerEnabled(Boolean.parseBoolean(ledger));
+        String ledgerPath = System.getenv("LEDGER_PATH");
+        if (ledgerPath != null) server.setLedgerPath(ledgerPath);
+        String ledgerSegment = System.getenv("LEDGER_SEGMENT_SIZE");
+        if (ledgerSegment != null) server.setLedgerSegmentSize(Integer.parseInt(ledgerSegment));
+        String ledgerSegments = System.getenv("LEDGER_MEMORY_SEGMENTS");
+        if (ledgerSegments != null) server.setLedgerMemorySegments(Integer.parseInt(ledgerSegments));
         server.init(1000.0);
     }
 
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public void setIdleTimeoutMillis(int idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public void setIoMode(String ioMode) {
+        this.ioMode = ioMode;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public void setExecutionMode(String executionMode) {
+        this.executionMode = executionMode;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public void setBinaryPort(int binaryPort) {
+        this.binaryPort = binaryPort;
+    }
+
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+        this.writeBehindBatchSize = writeBehindBatchSize;
+    }
+
+    public void setWriteBehindIntervalMillis(long writeBehindIntervalMillis) {
+        this.writeBehindIntervalMillis = writeBehindIntervalMillis;
+    }
+
+    public void setWriteBehindCapacity(int writeBehindCapacity) {
+        this.writeBehindCapacity = writeBehindCapacity;
+    }
+
+    public void setWalPath(String walPath) {
+        this.walPath = walPath;
+    }
+
+    public void setWalFsync(WriteAheadLog.FsyncPolicy walFsync) {
+        this.walFsync = walFsync;
+    }
+
+    public void setWalFsyncIntervalMillis(long walFsyncIntervalMillis) {
+        this.walFsyncIntervalMillis = walFsyncIntervalMillis;
+    }
+
+    public void setCheckpointPath(String checkpointPath) {
+        this.checkpointPath = checkpointPath;
+    }
+
+    public void setCheckpointIntervalMillis(long checkpointIntervalMillis) {
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+    }
+
+    public void setStoreType(PocketService.StoreType storeType) {
+        this.storeType = storeType;
+    }
+
+    public void setShards(int shards) {
+        this.shards = shards;
+    }
+
+    public void setAccountIds(List<String> accountIds) {
+        this.accountIds = accountIds;
+    }
+
+    public void setIdempotencyCacheSize(int idempotencyCacheSize) {
+        this.idempotencyCacheSize = idempotencyCacheSize;
+    }
+
+    public void setIdempotencyCacheBytes(long idempotencyCacheBytes) {
+        this.idempotencyCacheBytes = idempotencyCacheBytes;
+    }
+
+    public void setIdempotencyTtlMillis(long idempotencyTtlMillis) {
+        this.idempotencyTtlMillis = idempotencyTtlMillis;
+    }
+
+    public void setIdempotencyWaitMillis(long idempotencyWaitMillis) {
+        this.idempotencyWaitMillis = idempotencyWaitMillis;
+    }
+
+    public void setStatsEnabled(boolean statsEnabled) {
+        this.statsEnabled = statsEnabled;
+    }
+
+    public void setStatsFile(String statsFile) {
+        this.statsFile = statsFile;
+    }
+
+    public void setStatsIntervalMillis(long statsIntervalMillis) {
+        this.statsIntervalMillis = statsIntervalMillis;
+    }
+
+    public void setLedgerEnabled(boolean ledgerEnabled) {
+        this.ledgerEnabled = ledgerEnabled;
+    }
+
+    public void setLedgerPath(String ledgerPath) {
+        this.ledgerPath = ledgerPath;
+    }
+
+    public void setLedgerSegmentSize(int ledgerSegmentSize) {
+        this.ledgerSegmentSize = ledgerSegmentSize;
+    }
+
+    public void setLedgerMemorySegments(int ledgerMemorySegments) {
+        this.ledgerMemorySegments = ledgerMemorySegments;
+    }
+
+    IdempotencyCache getIdempotencyCache() {
+        return idempotency;
+    }
+
+    /*
+     * Todo lo de init salvo abrir puertos: después de esto handleRequest y
+     * processLine ya atienden (lo usan los benchmarks).
+     */
+    public void prepare(Double initialAmount) throws Exception {
+        this.gson = createGson();
+        this.pocketService = initState(initialAmount);
+        if (shards > 0) this.accounts = new ShardedPocketService(shards, storeType, initialAmount, accountIds);
+        if (idempotencyCacheSize > 0)
+            this.idempotency = new IdempotencyCache(idempotencyCacheSize, idempotencyCacheBytes, idempotencyTtlMillis,
+                    idempotencyWaitMillis);
+        if (statsEnabled) {
+            this.stats = new ServerStats();
+            if (statsFile != null) stats.startDump(Path.of(statsFile), statsIntervalMillis, () -> statsToJson().toString());
+        }
+        this.inFlight = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+    }
+
     public void init(Double initialAmount) throws Exception {
-        this.gson = new Gson();
-        this.pocketService = new PocketService(initialAmount);
+        prepare(initialAmount);
 
-        ServerSocket serverSocket = new ServerSocket(5000);
-        System.out.println("Server started on port 5000");
+        if (binaryPort > 0) {
+            new BinaryServer(pocketService, binaryPort, idleTimeoutMillis, createExecutor()).start();
+        }
+
+        if ("nio".equalsIgnoreCase(ioMode)) {
+            // en NIO las tareas son peticiones cortas: "thread" no tiene sentido, se usa el pool
+            Executor workers = "virtual".equalsIgnoreCase(executionMode) ? createExecutor() : createPool();
+            new NioServer(this, port, ioThreads, idleTimeoutMillis, workers).run();
+            return;
+        }
+
+        Executor executor;
+        if ("pool".equalsIgnoreCase(executionMode)) {
+            // el pool acota peticiones, no conexiones: con keep-alive una conexión ociosa
+            // tendría un worker tomado hasta IDLE_TIMEOUT_MS. Cada conexión tiene un lector
+            // virtual (barato mientras espera) y cada línea se ejecuta en el pool
+            requestPool = Executors.newFixedThreadPool(workerThreads);
+            requestSlots = new Semaphore(workerThreads + Math.max(0, queueCapacity));
+            executor = Executors.newVirtualThreadPerTaskExecutor();
+        } else {
+            executor = createExecutor();
+        }
+        ServerSocket serverSocket = new ServerSocket(port);
+        System.out.println("Server started on port " + port + " (" + executionMode + ")");
 
         while (true) {
             Socket socket = serverSocket.accept();
-            new Thread(() -> handleClient(socket)).start();
+            try {
+                executor.execute(() -> handleClient(socket));
+            } catch (RejectedExecutionException busy) {
+                rejectClient(socket);
+            }
+        }
+    }
+
+    /*
+     * Estado inicial según la persistencia configurada. Con checkpoint y/o log, el
+     * estado sale de ellos y la base (si está activa) solo recibe una copia. Un solo
+     * hook de apagado cierra todo en orden: foto final, log, base.
+     */
+    private PocketService initState(double initialAmount) throws Exception {
+        List<AutoCloseable> closeables = new ArrayList<>();
+        WriteBehindStore store = writeBehind
+                ? new WriteBehindStore(writeBehindBatchSize, writeBehindIntervalMillis, writeBehindCapacity)
+                : null;
+        PocketService service;
+        if (walPath != null || checkpointPath != null) {
+            Path wal = walPath == null ? null : Path.of(walPath);
+            Path checkpoint = checkpointPath == null ? null : Path.of(checkpointPath);
+            service = Checkpoint.recover(checkpoint, wal, initialAmount, storeType);
+            WriteAheadLog log = null;
+            if (wal != null) {
+                log = new WriteAheadLog(wal, walFsync, walFsyncIntervalMillis);
+                log.attach(service);
+            }
+            if (checkpoint != null) {
+                Checkpoint checkpoints = new Checkpoint(service, checkpoint, log, checkpointIntervalMillis);
+                checkpoints.start();
+                closeables.add(checkpoints);
+            }
+            if (log != null) closeables.add(log);
+            if (store != null) store.attach(service);
+        } else if (store != null) {
+            service = store.load(initialAmount, storeType);
+        } else {
+            service = new PocketService(storeType, initialAmount);
+        }
+        if (store != null) closeables.add(store);
+        if (ledgerEnabled) {
+            Path spill = ledgerPath == null ? Files.createTempFile("ledger", ".dat") : Path.of(ledgerPath);
+            ledger = new Ledger(spill, ledgerSegmentSize, ledgerMemorySegments);
+            ledger.attach(service);
+            closeables.add(ledger);
+        }
+
+        if (!closeables.isEmpty()) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                for (AutoCloseable c : closeables) {
+                    try {
+                        c.close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, "persistence-shutdown"));
         }
+        return service;
+    }
+
+    // adapters sin reflexión para lo que se serializa en cada respuesta
+    public static Gson createGson() {
+        MainAccountAdapter accountAdapter = new MainAccountAdapter();
+        TypeAdapter<JsonElement> elementAdapter = new Gson().getAdapter(JsonElement.class);
+        return new GsonBuilder()
+                .registerTypeAdapter(MainAccount.class, accountAdapter)
+                .registerTypeAdapter(Pocket.class, accountAdapter.pocketAdapter())
+                .registerTypeAdapter(Response.class, new ResponseAdapter(accountAdapter, elementAdapter))
+                .create();
+    }
+
+    private Executor createExecutor() {
+        switch (executionMode.toLowerCase()) {
+            case "virtual":
+                return Executors.newVirtualThreadPerTaskExecutor();
+            case "pool":
+                return createPool();
+            default:
+                return task -> new Thread(task).start();
+        }
+    }
+
+    private ThreadPoolExecutor createPool() {
+        BlockingQueue<Runnable> queue = queueCapacity > 0
+                ? new ArrayBlockingQueue<>(queueCapacity)
+                : new SynchronousQueue<>();
+        // AbortPolicy: con la cola llena se rechaza de inmediato y el cliente recibe "Server busy"
+        return new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS, queue);
+    }
+
+    // se ejecuta en el hilo que acepta: respuesta corta y cierre, sin bloquearlo
+    private void rejectClient(Socket socket) {
+        try (socket) {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            writeResponse(writer, busyResponse());
+            writer.flush();
+        } catch (Exception ignore) {}
     }
 
     public void handleClient(Socket socket) {
         BufferedReader reader = null;
         BufferedWriter writer = null;
+        connectionOpened();
         try {
+            if (keepAlive) socket.setSoTimeout(idleTimeoutMillis);
+            // una respuesta de más de un buffer sale en dos escrituras; con Nagle la segunda
+            // espera el ACK retrasado del cliente (~40 ms)
+            socket.setTcpNoDelay(true);
             reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
 
-            String line = reader.readLine();
-            Response response;
+            while (true) {
+                String line;
+                try {
+                    line = reader.readLine();
+                } catch (SocketTimeoutException idle) {
+                    break; // conexión inactiva: se cierra sin respuesta
+                }
 
-            if (line == null || line.isBlank()) {
-                response = errorResponse("Empty request");
-            } else {
-                Request request = gson.fromJson(line, Request.class);
-                if (request == null || request.action == null) {
-                    response = errorResponse("Invalid request");
-                } else {
-                    response = handleRequest(request); // nunca retorna null
+                if (line == null) {
+                    // en keep-alive el cliente cerró su lado; no hay a quién responder
+                    if (!keepAlive) writeResponse(writer, errorResponse("Empty request"));
+                    break;
                 }
-            }
 
-            writer.write(gson.toJson(response));
-            writer.newLine();
+                writeResponse(writer, requestSlots == null ? processLine(line) : processInPool(line));
+
+                if (!keepAlive) break;
+                // pipelining: si ya hay más peticiones en el buffer, respondemos todas en un solo flush
+                if (!reader.ready()) writer.flush();
+            }
             writer.flush();
 
         } catch (Exception e) {
             try {
                 if (writer != null) {
                     Response r = errorResponse(e.getMessage() == null ? "Internal error" : e.getMessage());
-                    writer.write(gson.toJson(r));
-                    writer.newLine();
+                    writeResponse(writer, r);
                     writer.flush();
                 }
             } catch (Exception ignore) {}
@@ -76,46 +530,145 @@ public class Server {
             try { if (reader != null) reader.close(); } catch (Exception ignore) {}
             try { if (writer != null) writer.close(); } catch (Exception ignore) {}
             try { socket.close(); } catch (Exception ignore) {}
+            connectionClosed();
+        }
+    }
+
+    // el worker se ocupa solo mientras dura la petición; sin lugar en el pool, "Server busy".
+    // Los lugares se cuentan aparte: con una SynchronousQueue un worker que todavía no volvió
+    // a tomar trabajo rechazaba la petición siguiente aunque estuviera libre
+    private Response processInPool(String line) {
+        if (!requestSlots.tryAcquire()) return busyResponse();
+        try {
+            return CompletableFuture.supplyAsync(() -> processLine(line), requestPool).join();
+        } finally {
+            requestSlots.release();
         }
     }
 
+    // una línea de entrada -> una respuesta, nunca lanza excepción
+    public Response processLine(String line) {
+        if (line == null || line.isBlank()) {
+            return errorResponse("Empty request");
+        }
+        if (inFlight != null && !inFlight.tryAcquire()) {
+            return busyResponse();
+        }
+        try {
+            Command command = decoder.get().decode(line);
+            if (command != null) {
+                return handleCommand(command);
+            }
+            // acciones poco frecuentes o formas inesperadas: Gson
+            Request request = gson.fromJson(line, Request.class);
+            if (request == null || request.action == null) {
+                return errorResponse("Invalid request");
+            }
+            return handleRequest(request); // nunca retorna null
+        } catch (Exception e) {
+            return errorResponse(e.getMessage() == null ? "Internal error" : e.getMessage());
+        } finally {
+            if (inFlight != null) inFlight.release();
+        }
+    }
+
+    Response busyResponse() {
+        return errorResponse("Server busy");
+    }
+
+    String encode(Response response) {
+        return gson.toJson(response);
+    }
+
+    // la respuesta va directo del objeto al buffer del socket, sin String intermedio
+    private void writeResponse(BufferedWriter writer, Response response) throws Exception {
+        gson.toJson(response, Response.class, new JsonWriter(writer));
+        writer.newLine();
+    }
+
     public Response handleRequest(Request request) throws Exception {
+        if (stats == null) return serve(request);
+        long start = System.nanoTime();
+        Response response = serve(request);
+        stats.record(request.action, System.nanoTime() - start, response);
+        return response;
+    }
+
+    private Response serve(Request request) {
+        try {
+            String key = request.data == null ? null : request.data.get("idempotencyKey");
+            if (key != null && idempotency != null && isMutation(request.action)) {
+                return idempotent(request.data.get("account"), key, fingerprint(request), () -> dispatch(request));
+            }
+            return dispatch(request);
+        } catch (IllegalArgumentException | IllegalStateException ex) {
+            return errorResponse(ex.getMessage());
+        } catch (Exception ex) {
+            return errorResponse("Internal error");
+        }
+    }
+
+    // errores de negocio -> respuesta de error; cualquier otra excepción sube
+    private Response dispatch(Request request) throws Exception {
         Response response = new Response();
         response.status = "ok";
         response.data = new JsonObject();
 
+        // mode=delta: solo las entidades tocadas, los totales y la versión; el volcado completo queda para GET_ACCOUNT
+        boolean delta = request.data != null && "delta".equals(request.data.get("mode"));
+
         try {
             switch (request.action) {
-                case "ADD_POCKET": {
-                    String name = request.data.get("name");
-                    double initialAmount = Double.parseDouble(request.data.get("initialAmount"));
-                    Pocket newPocket = pocketService.addPocket(name, initialAmount);
-                    response.data = gson.toJsonTree(newPocket).getAsJsonObject();
+                case "ADD_POCKET":
+                case "DEPOSIT_POCKET":
+                case "WITHDRAW_POCKET":
+                case "DEPOSIT_ACCOUNT":
+                case "GET_ACCOUNT":
+                case "TRANSFER_POCKET": {
+                    execute(Command.from(Action.valueOf(request.action), request.data), response);
                     break;
                 }
-                case "DEPOSIT_POCKET": {
-                    String pocketName = request.data.get("name");
-                    double depositAmount = Double.parseDouble(request.data.get("amount"));
-                    Pocket depositedPocket = pocketService.depositInPocket(pocketName, depositAmount);
-                    response.data = gson.toJsonTree(depositedPocket).getAsJsonObject();
+                case "BATCH": {
+                    if (request.operations == null || request.operations.isEmpty())
+                        throw new IllegalArgumentException("Batch operations are required");
+                    if (request.operations.size() > MAX_BATCH_SIZE)
+                        throw new IllegalArgumentException("Batch too large");
+                    boolean atomic = request.data != null && Boolean.parseBoolean(request.data.get("atomic"));
+                    List<PocketOperation> operations = new ArrayList<>();
+                    for (Request op : request.operations) {
+                        operations.add(toOperation(op));
+                    }
+                    BatchResult batch = onAccount(request.data, service -> service.executeBatch(operations, atomic));
+                    response.data = batchToJson(batch, delta);
                     break;
                 }
-                case "WITHDRAW_POCKET": {
-                    String withdrawPocketName = request.data.get("name");
-                    double withdrawAmount = Double.parseDouble(request.data.get("amount"));
-                    Pocket withdrawnPocket = pocketService.withdrawFromPocket(withdrawPocketName, withdrawAmount);
-                    response.data = gson.toJsonTree(withdrawnPocket).getAsJsonObject();
+                case "STATS": {
+                    if (stats == null) throw new IllegalArgumentException("Stats are disabled");
+                    response.data = statsToJson();
                     break;
                 }
-                case "DEPOSIT_ACCOUNT": {
-                    double accountDepositAmount = Double.parseDouble(request.data.get("amount"));
-                    MainAccount updatedAccount = pocketService.depositInAccount(accountDepositAmount);
-                    response.data = gson.toJsonTree(updatedAccount).getAsJsonObject();
+                case "HISTORY": {
+                    if (ledger == null) throw new IllegalArgumentException("History is disabled");
+                    Map<String, String> data = request.data == null ? Map.of() : request.data;
+                    if (data.get("account") != null)
+                        throw new IllegalArgumentException("History is only available for the default account");
+                    int limit = data.get("limit") == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(data.get("limit"));
+                    if (limit < 1 || limit > MAX_PAGE_SIZE)
+                        throw new IllegalArgumentException("Limit must be between 1 and " + MAX_PAGE_SIZE);
+                    long from = data.get("from") == null ? Long.MIN_VALUE : Long.parseLong(data.get("from"));
+                    long to = data.get("to") == null ? Long.MAX_VALUE : Long.parseLong(data.get("to"));
+                    long cursor = data.get("cursor") == null ? 0 : Long.parseLong(data.get("cursor"));
+                    if (cursor < 0) throw new IllegalArgumentException("Cursor must be >= 0");
+                    response.data = historyToJson(ledger.history(data.get("name"), from, to, cursor, limit));
                     break;
                 }
-                case "GET_ACCOUNT": {
-                    MainAccount account = pocketService.getMainAccount();
-                    response.data = gson.toJsonTree(account).getAsJsonObject();
+                case "LIST_POCKETS": {
+                    Map<String, String> data = request.data == null ? Map.of() : request.data;
+                    int limit = data.get("limit") == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(data.get("limit"));
+                    if (limit < 1 || limit > MAX_PAGE_SIZE)
+                        throw new IllegalArgumentException("Limit must be between 1 and " + MAX_PAGE_SIZE);
+                    PocketPage page = onAccount(data, service -> service.listPockets(data.get("after"), data.get("prefix"), limit));
+                    response.data = pageToJson(page);
                     break;
                 }
                 default: {
@@ -126,16 +679,314 @@ public class Server {
             }
         } catch (IllegalArgumentException | IllegalStateException ex) {
             response.status = "error";
+            response.entity = null;
             response.data = new JsonObject();
             response.data.addProperty("message", ex.getMessage()); // <- CLAVE CORRECTA
+        }
+        return response;
+    }
+
+    // camino rápido de processLine: la petición ya viene tipada desde RequestDecoder
+    public Response handleCommand(Command command) {
+        if (stats == null) return serve(command);
+        long start = System.nanoTime();
+        Response response = serve(command);
+        stats.record(command.action.name(), System.nanoTime() - start, response);
+        return response;
+    }
+
+    private Response serve(Command command) {
+        try {
+            if (command.idempotencyKey != null && idempotency != null && command.action != Action.GET_ACCOUNT) {
+                return idempotent(command.account, command.idempotencyKey, fingerprint(command), () -> dispatch(command));
+            }
+            return dispatch(command);
+        } catch (IllegalArgumentException | IllegalStateException ex) {
+            return errorResponse(ex.getMessage());
         } catch (Exception ex) {
-            response.status = "error";
-            response.data = new JsonObject();
-            response.data.addProperty("message", "Internal error");
+            return errorResponse("Internal error");
+        }
+    }
+
+    private Response dispatch(Command command) throws Exception {
+        Response response = new Response();
+        response.status = "ok";
+        try {
+            execute(command, response);
+        } catch (IllegalArgumentException | IllegalStateException ex) {
+            return errorResponse(ex.getMessage());
         }
         return response;
     }
 
+    /*
+     * Primera vez: se ejecuta y se guarda la respuesta serializada (también los
+     * rechazos de negocio, que son definitivos). Reintento: la respuesta guardada.
+     * Un error interno no se guarda y el próximo reintento vuelve a ejecutarse.
+     */
+    private Response idempotent(String account, String key, String fingerprint, Callable<Response> action) throws Exception {
+        String scoped = account == null ? key : account + '\n' + key;
+        String cached = idempotency.begin(scoped, fingerprint);
+        if (cached != null) {
+            Response response = new Response();
+            response.encoded = cached;
+            return response;
+        }
+        Response response;
+        try {
+            response = action.call();
+        } catch (Exception | Error e) {
+            idempotency.abandon(scoped);
+            throw e;
+        }
+        response.encoded = encode(response);
+        idempotency.complete(scoped, response.encoded);
+        return response;
+    }
+
+    // lo que devuelve STATS y lo que se vuelca a STATS_FILE
+    JsonObject statsToJson() {
+        JsonObject json = stats.toJson();
+        if (idempotency != null) {
+            JsonObject cache = new JsonObject();
+            cache.addProperty("entries", idempotency.getEntries());
+            cache.addProperty("bytes", idempotency.getBytes());
+            cache.addProperty("hits", idempotency.getHits());
+            cache.addProperty("misses", idempotency.getMisses());
+            cache.addProperty("hitRate", idempotency.getHitRate());
+            cache.addProperty("waits", idempotency.getWaits());
+            cache.addProperty("evictions", idempotency.getEvictions());
+            cache.addProperty("expirations", idempotency.getExpirations());
+            json.add("idempotency", cache);
+        }
+        return json;
+    }
+
+    void connectionOpened() {
+        if (stats != null) stats.connectionOpened();
+    }
+
+    void connectionClosed() {
+        if (stats != null) stats.connectionClosed();
+    }
+
+    private static boolean isMutation(String action) {
+        switch (action) {
+            case "ADD_POCKET":
+            case "DEPOSIT_POCKET":
+            case "WITHDRAW_POCKET":
+            case "DEPOSIT_ACCOUNT":
+            case "TRANSFER_POCKET":
+            case "BATCH":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // lo que identifica una mutación: valores ya parseados, sin importar orden de claves ni por dónde entró
+    private static String fingerprint(Command command) {
+        return command.action + "|" + command.name + "|" + command.target + "|" + command.amount + "|" + command.delta;
+    }
+
+    private String fingerprint(Request request) {
+        if (!"BATCH".equals(request.action)) return fingerprint(Command.from(Action.valueOf(request.action), request.data));
+        StringBuilder out = new StringBuilder("BATCH|")
+                .append(Boolean.parseBoolean(request.data.get("atomic"))).append('|')
+                .append("delta".equals(request.data.get("mode")));
+        if (request.operations != null) {
+            for (Request op : request.operations) {
+                PocketOperation operation = toOperation(op);
+                out.append('|').append(operation.getType()).append('|').append(operation.getName())
+                        .append('|').append(operation.getAmount());
+            }
+        }
+        return out.toString();
+    }
+
+    private void execute(Command command, Response response) throws Exception {
+        // PRIMITIVE y OFF_HEAP no copian la lista de bolsillos en cada mutación (ver
+        // PrimitivePocketStore): se rechaza antes de tocar nada en vez de cambiar la forma
+        if (!command.delta && command.action != Action.GET_ACCOUNT && storeType != PocketService.StoreType.IMMUTABLE)
+            throw new IllegalArgumentException("The " + storeType + " store only replies to mutations with mode=delta");
+        if (command.account == null) {
+            execute(pocketService, command, response);
+        } else {
+            accounts().execute(command.account, service -> {
+                execute(service, command, response);
+                return null;
+            });
+        }
+    }
+
+    // sin "account" la cuenta por defecto; con "account" la tarea corre en el hilo de su shard
+    private <T> T onAccount(Map<String, String> data, ShardedPocketService.Task<T> task) throws Exception {
+        String account = data == null ? null : data.get("account");
+        return account == null ? task.run(pocketService) : accounts().execute(account, task);
+    }
+
+    private ShardedPocketService accounts() {
+        if (accounts == null) throw new IllegalArgumentException("Multiple accounts are not enabled");
+        return accounts;
+    }
+
+    private void execute(PocketService pocketService, Command command, Response response) throws Exception {
+        switch (command.action) {
+            case ADD_POCKET:
+                pocketResponse(response, pocketService.addPocket(command.name, command.amount), command.delta);
+                break;
+            case DEPOSIT_POCKET:
+                pocketResponse(response, pocketService.depositInPocket(command.name, command.amount), command.delta);
+                break;
+            case WITHDRAW_POCKET:
+                pocketResponse(response, pocketService.withdrawFromPocket(command.name, command.amount), command.delta);
+                break;
+            case DEPOSIT_ACCOUNT:
+                accountResponse(response, pocketService.depositInAccount(command.amount), command.delta);
+                break;
+            case GET_ACCOUNT:
+                accountResponse(response, pocketService.getMainAccount(), false);
+                break;
+            case TRANSFER_POCKET:
+                transferResponse(response, pocketService.transferBetweenPockets(command.name, command.target,
+                        command.amount), command.delta);
+                break;
+        }
+    }
+
+    private static final int MAX_BATCH_SIZE = 10000;
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    // valida toda la sub-petición antes de ejecutar nada del batch
+    private PocketOperation toOperation(Request op) {
+        if (op == null || op.action == null) throw new IllegalArgumentException("Invalid request in batch");
+        Map<String, String> data = op.data == null ? Map.of() : op.data;
+        switch (op.action) {
+            case "ADD_POCKET":
+                return new PocketOperation(PocketOperation.Type.ADD_POCKET, data.get("name"),
+                        Double.parseDouble(data.get("initialAmount")));
+            case "DEPOSIT_POCKET":
+                return new PocketOperation(PocketOperation.Type.DEPOSIT_POCKET, data.get("name"),
+                        Double.parseDouble(data.get("amount")));
+            case "WITHDRAW_POCKET":
+                return new PocketOperation(PocketOperation.Type.WITHDRAW_POCKET, data.get("name"),
+                        Double.parseDouble(data.get("amount")));
+            case "DEPOSIT_ACCOUNT":
+                return new PocketOperation(PocketOperation.Type.DEPOSIT_ACCOUNT, null,
+                        Double.parseDouble(data.get("amount")));
+            default:
+                throw new IllegalArgumentException("Unknown action in batch: " + op.action);
+        }
+    }
+
+    private JsonObject batchToJson(BatchResult batch, boolean delta) {
+        JsonArray results = new JsonArray();
+        for (BatchResult.Item item : batch.getItems()) {
+            JsonObject result = new JsonObject();
+            result.addProperty("status", item.getStatus().name().toLowerCase());
+            JsonObject data;
+            if (item.getPocket() != null) {
+                data = gson.toJsonTree(item.getPocket()).getAsJsonObject();
+            } else if (item.getAccount() != null) {
+                data = gson.toJsonTree(item.getAccount()).getAsJsonObject();
+            } else {
+                data = new JsonObject();
+                if (item.getMessage() != null) data.addProperty("message", item.getMessage());
+            }
+            result.add("data", data);
+            results.add(result);
+        }
+        JsonObject json = new JsonObject();
+        json.addProperty("committed", batch.isCommitted());
+        json.add("results", results);
+        json.add("account", delta ? accountDelta(batch.getAccount()) : gson.toJsonTree(batch.getAccount()));
+        return json;
+    }
+
+    // {pockets:[...], next?, version}; sin next es la última página
+    private JsonObject pageToJson(PocketPage page) {
+        JsonArray pockets = new JsonArray();
+        for (Pocket pocket : page.getPockets()) {
+            pockets.add(gson.toJsonTree(pocket));
+        }
+        JsonObject json = new JsonObject();
+        json.add("pockets", pockets);
+        if (page.getNext() != null) json.addProperty("next", page.getNext());
+        json.addProperty("version", page.getVersion());
+        return json;
+    }
+
+    // {entries:[...], next?}; sin next es la última página
+    private JsonObject historyToJson(Ledger.Page page) {
+        JsonArray entries = new JsonArray();
+        for (Ledger.Entry entry : page.getEntries()) {
+            JsonObject json = new JsonObject();
+            json.addProperty("seq", entry.getSeq());
+            json.addProperty("version", entry.getVersion());
+            json.addProperty("timestamp", entry.getTimestamp());
+            json.addProperty("type", entry.getType().name());
+            if (entry.getPocket() != null) json.addProperty("pocket", entry.getPocket());
+            json.addProperty("amount", entry.getAmount());
+            json.addProperty("pocketBalance", entry.getPocketBalance());
+            json.addProperty("availableBalance", entry.getAvailableBalance());
+            json.addProperty("totalBalance", entry.getTotalBalance());
+            entries.add(json);
+        }
+        JsonObject json = new JsonObject();
+        json.add("entries", entries);
+        if (page.getNext() >= 0) json.addProperty("next", page.getNext());
+        return json;
+    }
+
+    private void pocketResponse(Response response, Pocket pocket, boolean delta) {
+        if (delta) {
+            response.data = pocketDelta(pocket);
+        } else {
+            response.entity = pocket;
+        }
+    }
+
+    private void accountResponse(Response response, MainAccount account, boolean delta) {
+        if (delta) {
+            response.data = accountDelta(account);
+        } else {
+            response.entity = account;
+        }
+    }
+
+    // {from, to, account}; con delta la cuenta va solo con totales y versión
+    // (el adapter omite la lista de bolsillos vacía)
+    private void transferResponse(Response response, PocketTransfer transfer, boolean delta) {
+        if (delta) {
+            MainAccount account = transfer.getAccount();
+            MainAccount totals = new MainAccount();
+            totals.setAvailableBalance(account.getAvailableBalance());
+            totals.setTotalBalance(account.getTotalBalance());
+            totals.setVersion(account.getVersion());
+            transfer = new PocketTransfer(transfer.getFrom(), transfer.getTo(), totals);
+        }
+        response.entity = transfer;
+    }
+
+    // tamaño constante sin importar cuántos bolsillos tenga la cuenta
+    private JsonObject pocketDelta(Pocket pocket) {
+        JsonObject json = accountDelta(pocket.getMainAccount());
+        JsonObject touched = new JsonObject();
+        touched.addProperty("name", pocket.getName());
+        touched.addProperty("balance", pocket.getBalance());
+        json.add("pocket", touched);
+        return json;
+    }
+
+    private JsonObject accountDelta(MainAccount account) {
+        JsonObject json = new JsonObject();
+        json.addProperty("availableBalance", account.getAvailableBalance());
+        json.addProperty("totalBalance", account.getTotalBalance());
+        json.addProperty("version", account.getVersion());
+        return json;
+    }
+
     private Response errorResponse(String msg) {
         Response r = new Response();
         r.status = "error";
@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.google.gson.JsonObject;
+
+import dtos.Response;
+
+/*
+ * Contadores e histogramas por acción para STATS. En el camino caliente solo hay
+ * un get en un ConcurrentHashMap, dos LongAdder y un incremento atómico; las
+ * lecturas (STATS o el volcado periódico) suman todo al vuelo.
+ *
+ * Los mensajes de error se agrupan por la parte anterior a ':' ("Pocket not
+ * found: x" -> "Pocket not found") para que el nombre del bolsillo no abra una
+ * entrada nueva por cada cliente.
+ */
+final class ServerStats {
+
+    private static final int MAX_ACTIONS = 32;
+    private static final int MAX_ERROR_MESSAGES = 100;
+    private static final String OTHER = "OTHER";
+
+    private final long startedAt = System.currentTimeMillis();
+    private final Map<String, ActionStats> actions = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final LongAdder acceptedConnections = new LongAdder();
+
+    void record(String action, long nanos, Response response) {
+        ActionStats stats = actions.get(action);
+        if (stats == null) stats = register(action);
+        stats.latency.record(nanos);
+        if ("error".equals(response.status)) {
+            stats.errors.increment();
+            errorCounter(messageOf(response)).increment();
+        }
+    }
+
+    void connectionOpened() {
+        openConnections.incrementAndGet();
+        acceptedConnections.increment();
+    }
+
+    void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    // la acción viene del cliente: con demasiados nombres distintos el resto va a OTHER
+    private ActionStats register(String action) {
+        if (actions.size() >= MAX_ACTIONS) action = OTHER;
+        return actions.computeIfAbsent(action, a -> new ActionStats());
+    }
+
+    private LongAdder errorCounter(String message) {
+        LongAdder counter = errors.get(message);
+        if (counter != null) return counter;
+        if (errors.size() >= MAX_ERROR_MESSAGES) message = OTHER;
+        return errors.computeIfAbsent(message, m -> new LongAdder());
+    }
+
+    private static String messageOf(Response response) {
+        if (response.data == null || !response.data.has("message")) return "unknown";
+        String message = response.data.get("message").getAsString();
+        int colon = message.indexOf(':');
+        return colon < 0 ? message : message.substring(0, colon);
+    }
+
+    /*
+     * {uptimeMillis, openConnections, acceptedConnections,
+     *  actions: {ACCION: {count, errors, meanMicros, p50Micros, p90Micros, p99Micros, p999Micros, maxMicros}},
+     *  errors: {mensaje: n}}
+     */
+    JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("uptimeMillis", System.currentTimeMillis() - startedAt);
+        json.addProperty("openConnections", openConnections.get());
+        json.addProperty("acceptedConnections", acceptedConnections.sum());
+        JsonObject byAction = new JsonObject();
+        for (Map.Entry<String, ActionStats> e : actions.entrySet()) {
+            LatencyHistogram latency = e.getValue().latency;
+            JsonObject stats = new JsonObject();
+            stats.addProperty("count", latency.getCount());
+            stats.addProperty("errors", e.getValue().errors.sum());
+            stats.addProperty("meanMicros", micros(latency.getMean()));
+            stats.addProperty("p50Micros", micros(latency.percentile(50)));
+            stats.addProperty("p90Micros", micros(latency.percentile(90)));
+            stats.addProperty("p99Micros", micros(latency.percentile(99)));
+            stats.addProperty("p999Micros", micros(latency.percentile(99.9)));
+            stats.addProperty("maxMicros", micros(latency.getMax()));
+            byAction.add(e.getKey(), stats);
+        }
+        json.add("actions", byAction);
+        JsonObject byMessage = new JsonObject();
+        for (Map.Entry<String, LongAdder> e : errors.entrySet()) {
+            byMessage.addProperty(e.getKey(), e.getValue().sum());
+        }
+        json.add("errors", byMessage);
+        return json;
+    }
+
+    private static double micros(double nanos) {
+        return Math.round(nanos / 100) / 10.0;
+    }
+
+    // volcado periódico a un archivo local; se reemplaza entero para no dejar uno a medias.
+    // El hilo devuelto termina con interrupt()
+    Thread startDump(Path file, long intervalMillis, Supplier<String> content) {
+        Thread dumper = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                    Files.write(tmp, content.get().getBytes(StandardCharsets.UTF_8));
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (InterruptedException | ClosedByInterruptException e) {
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "stats-dump");
+        dumper.setDaemon(true);
+        dumper.start();
+        return dumper;
+    }
+
+    private static final class ActionStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+    }
+}
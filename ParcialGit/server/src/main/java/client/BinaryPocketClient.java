@@ -0,0 +1,133 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import dtos.BinaryProtocol;
+import model.MainAccount;
+import model.Pocket;
+
+/*
+ * Cliente del listener binario. Una conexión persistente; cada llamada envía un
+ * frame y espera su respuesta. Los errores del servidor llegan como
+ * IllegalStateException con el mismo mensaje que daría el puerto JSON.
+ */
+public class BinaryPocketClient implements AutoCloseable {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final BufferedOutputStream out;
+    private ByteBuffer buffer = ByteBuffer.allocate(256);
+    private long bytesSent;
+    private long bytesReceived;
+
+    public BinaryPocketClient(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    public Pocket addPocket(String name, double initialAmount) throws IOException {
+        return pocketCall(BinaryProtocol.ADD_POCKET, name, initialAmount);
+    }
+
+    public Pocket depositInPocket(String name, double amount) throws IOException {
+        return pocketCall(BinaryProtocol.DEPOSIT_POCKET, name, amount);
+    }
+
+    public Pocket withdrawFromPocket(String name, double amount) throws IOException {
+        return pocketCall(BinaryProtocol.WITHDRAW_POCKET, name, amount);
+    }
+
+    public MainAccount depositInAccount(double amount) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(1 + 8);
+        request.put(BinaryProtocol.DEPOSIT_ACCOUNT);
+        request.putDouble(amount);
+        return readTotals(call(request));
+    }
+
+    public MainAccount getMainAccount() throws IOException {
+        ByteBuffer response = call(ByteBuffer.allocate(1).put(BinaryProtocol.GET_ACCOUNT));
+        MainAccount account = readTotals(response);
+        int count = response.getInt();
+        List<Pocket> pockets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Pocket p = new Pocket();
+            p.setName(BinaryProtocol.getName(response));
+            p.setBalance(response.getDouble());
+            pockets.add(p);
+        }
+        account.setPockets(pockets);
+        return account;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private Pocket pocketCall(byte opcode, String name, double amount) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(1 + BinaryProtocol.nameSize(name) + 8);
+        request.put(opcode);
+        BinaryProtocol.putName(request, name);
+        request.putDouble(amount);
+
+        ByteBuffer response = call(request);
+        Pocket pocket = new Pocket();
+        pocket.setName(BinaryProtocol.getName(response));
+        pocket.setBalance(response.getDouble());
+        pocket.setMainAccount(readTotals(response));
+        return pocket;
+    }
+
+    private static MainAccount readTotals(ByteBuffer response) {
+        MainAccount account = new MainAccount();
+        account.setAvailableBalance(response.getDouble());
+        account.setTotalBalance(response.getDouble());
+        account.setVersion(response.getLong());
+        return account;
+    }
+
+    private ByteBuffer call(ByteBuffer request) throws IOException {
+        int length = request.position();
+        out.write(length >>> 24);
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(request.array(), 0, length);
+        out.flush();
+        bytesSent += 4 + length;
+
+        int responseLength = in.readInt();
+        if (responseLength < 1 || responseLength > BinaryProtocol.MAX_FRAME) {
+            // sin leer el cuerpo el stream queda desfasado: la conexión ya no sirve
+            socket.close();
+            throw new IOException("Invalid frame length: " + responseLength);
+        }
+        if (buffer.capacity() < responseLength) buffer = ByteBuffer.allocate(responseLength);
+        buffer.clear();
+        in.readFully(buffer.array(), 0, responseLength);
+        buffer.limit(responseLength);
+        bytesReceived += 4 + responseLength;
+
+        if (buffer.get() == BinaryProtocol.ERROR) {
+            throw new IllegalStateException(BinaryProtocol.getName(buffer));
+        }
+        return buffer;
+    }
+}
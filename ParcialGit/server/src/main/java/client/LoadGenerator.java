@@ -0,0 +1,474 @@
+package client;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Generador de carga para el puerto JSON. Cada cliente es un hilo con su
+ * conexión (o una por petición con reuseConnections=false) que elige acciones
+ * según el mix "ACCION:peso,..." sobre los bolsillos load-0..load-(pockets-1).
+ *
+ * rate=0 es lazo cerrado: cada cliente manda la siguiente petición apenas
+ * recibe la anterior. Con rate>0 es lazo abierto: las peticiones tienen una
+ * hora de salida fija (rate/clients por cliente) y la latencia se mide desde esa
+ * hora, no desde que se pudo enviar; si el servidor se atrasa, la espera cuenta
+ * (corrección de coordinated omission). "service" es solo el tiempo de ida y
+ * vuelta de cada petición.
+ *
+ *   HOST=localhost PORT=5000 CLIENTS=16 RATE=20000 DURATION_MS=30000 \
+ *     MIX=GET_ACCOUNT:10,DEPOSIT_POCKET:45,WITHDRAW_POCKET:45 java client.LoadGenerator
+ */
+public class LoadGenerator {
+
+    private String host = "localhost";
+    private int port = 5000;
+    private int clients = 8;
+    private double rate = 0;
+    private long durationMillis = 10000;
+    private long warmupMillis = 2000;
+    private boolean reuseConnections = true;
+    private int pockets = 100;
+    private String mix = "GET_ACCOUNT:10,DEPOSIT_POCKET:45,WITHDRAW_POCKET:45";
+    private double amount = 1;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        String host = System.getenv("HOST");
+        if (host != null) generator.setHost(host);
+        String port = System.getenv("PORT");
+        if (port != null) generator.setPort(Integer.parseInt(port));
+        String clients = System.getenv("CLIENTS");
+        if (clients != null) generator.setClients(Integer.parseInt(clients));
+        String rate = System.getenv("RATE");
+        if (rate != null) generator.setRate(Double.parseDouble(rate));
+        String duration = System.getenv("DURATION_MS");
+        if (duration != null) generator.setDurationMillis(Long.parseLong(duration));
+        String warmup = System.getenv("WARMUP_MS");
+        if (warmup != null) generator.setWarmupMillis(Long.parseLong(warmup));
+        String reuse = System.getenv("REUSE_CONNECTIONS");
+        if (reuse != null) generator.setReuseConnections(Boolean.parseBoolean(reuse));
+        String pockets = System.getenv("POCKETS");
+        if (pockets != null) generator.setPockets(Integer.parseInt(pockets));
+        String mix = System.getenv("MIX");
+        if (mix != null) generator.setMix(mix);
+        String amount = System.getenv("AMOUNT");
+        if (amount != null) generator.setAmount(Double.parseDouble(amount));
+        System.out.println(generator.run());
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public void setClients(int clients) {
+        this.clients = clients;
+    }
+
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public void setWarmupMillis(long warmupMillis) {
+        this.warmupMillis = warmupMillis;
+    }
+
+    public void setReuseConnections(boolean reuseConnections) {
+        this.reuseConnections = reuseConnections;
+    }
+
+    public void setPockets(int pockets) {
+        this.pockets = pockets;
+    }
+
+    public void setMix(String mix) {
+        this.mix = mix;
+    }
+
+    public void setAmount(double amount) {
+        this.amount = amount;
+    }
+
+    public Result run() throws Exception {
+        if (clients < 1) throw new IllegalArgumentException("Clients must be positive");
+        if (pockets < 1) throw new IllegalArgumentException("Pockets must be positive");
+        Mix parsed = Mix.parse(mix);
+        seed();
+
+        long intervalNanos = rate > 0 ? (long) (1e9 * clients / rate) : 0;
+        long startNanos = System.nanoTime() + 10_000_000;
+        long measureFrom = startNanos + warmupMillis * 1_000_000;
+        long endNanos = measureFrom + durationMillis * 1_000_000;
+
+        CountDownLatch done = new CountDownLatch(clients);
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            // en lazo abierto los clientes se escalonan dentro del intervalo
+            long first = startNanos + intervalNanos * i / clients;
+            Worker worker = new Worker(i, parsed, first, intervalNanos, measureFrom, endNanos, done);
+            workers.add(worker);
+            worker.start();
+        }
+        done.await();
+
+        Result result = new Result(rate, clients, durationMillis);
+        for (Worker worker : workers) {
+            result.merge(worker);
+        }
+        return result;
+    }
+
+    // fondos y bolsillos para el mix; los que ya existen de otra corrida se reutilizan
+    private void seed() throws IOException {
+        try (Connection c = new Connection(host, port)) {
+            c.call("{\"action\":\"DEPOSIT_ACCOUNT\",\"data\":{\"amount\":\"" + (pockets * 1000.0) + "\"}}");
+            for (int i = 0; i < pockets; i++) {
+                c.call("{\"action\":\"ADD_POCKET\",\"data\":{\"name\":\"load-" + i + "\",\"initialAmount\":\"100\"}}");
+            }
+        }
+    }
+
+    private String line(String action, String pocket) {
+        switch (action) {
+            case "GET_ACCOUNT":
+                return "{\"action\":\"GET_ACCOUNT\"}";
+            case "DEPOSIT_ACCOUNT":
+                return "{\"action\":\"DEPOSIT_ACCOUNT\",\"data\":{\"amount\":\"" + amount + "\"}}";
+            case "LIST_POCKETS":
+                return "{\"action\":\"LIST_POCKETS\",\"data\":{\"prefix\":\"load-\",\"limit\":\"50\"}}";
+            default:
+                return "{\"action\":\"" + action + "\",\"data\":{\"name\":\"" + pocket + "\",\"amount\":\"" + amount + "\"}}";
+        }
+    }
+
+    private class Worker extends Thread {
+
+        private final Mix mix;
+        private final long first;
+        private final long intervalNanos;
+        private final long measureFrom;
+        private final long endNanos;
+        private final CountDownLatch done;
+        private final SplittableRandom random;
+
+        private final Recorder latency = new Recorder();
+        private final Recorder service = new Recorder();
+        private final Map<String, Long> errors = new HashMap<>();
+        private long ok;
+        private long connects;
+
+        Worker(int id, Mix mix, long first, long intervalNanos, long measureFrom, long endNanos, CountDownLatch done) {
+            super("load-" + id);
+            setDaemon(true);
+            this.mix = mix;
+            this.first = first;
+            this.intervalNanos = intervalNanos;
+            this.measureFrom = measureFrom;
+            this.endNanos = endNanos;
+            this.done = done;
+            this.random = new SplittableRandom(id * 0x9E3779B97F4A7C15L);
+        }
+
+        @Override
+        public void run() {
+            Connection connection = null;
+            try {
+                long next = first;
+                while (true) {
+                    long now = System.nanoTime();
+                    // las peticiones atrasadas que no llegaron a salir antes del final no se cuentan
+                    if (now >= endNanos) break;
+                    long intended;
+                    if (intervalNanos > 0) {
+                        intended = next;
+                        next += intervalNanos;
+                        if (intended >= endNanos) break;
+                        long wait;
+                        while ((wait = intended - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+                    } else {
+                        intended = now;
+                        if (intended < first) {
+                            LockSupport.parkNanos(first - intended);
+                            continue;
+                        }
+                    }
+
+                    String action = mix.pick(random);
+                    String request = line(action, "load-" + random.nextInt(pockets));
+                    long sent = System.nanoTime();
+                    String response;
+                    try {
+                        if (connection == null) {
+                            connection = new Connection(host, port);
+                            connects++;
+                        }
+                        response = connection.call(request);
+                        if (response == null && reuseConnections) {
+                            // el servidor cerró una conexión reutilizada (sin keep-alive o inactiva): se reintenta una vez
+                            connection.close();
+                            connection = new Connection(host, port);
+                            connects++;
+                            response = connection.call(request);
+                        }
+                    } catch (IOException e) {
+                        response = null;
+                    }
+                    long end = System.nanoTime();
+
+                    if (!reuseConnections || response == null) {
+                        if (connection != null) connection.close();
+                        connection = null;
+                    }
+                    if (sent < measureFrom) continue;
+
+                    latency.record(end - intended);
+                    service.record(end - sent);
+                    if (response != null && response.startsWith("{\"status\":\"ok\"")) {
+                        ok++;
+                    } else {
+                        errors.merge(errorOf(response), 1L, Long::sum);
+                    }
+                }
+            } catch (IOException ignore) {
+            } finally {
+                try { if (connection != null) connection.close(); } catch (IOException ignore) {}
+                done.countDown();
+            }
+        }
+    }
+
+    private static String errorOf(String response) {
+        if (response == null) return "connection closed";
+        int at = response.indexOf("\"status\":\"");
+        if (at < 0) return response;
+        int from = at + 10;
+        int to = response.indexOf('"', from);
+        return to < 0 ? response : response.substring(from, to);
+    }
+
+    private static final class Connection implements AutoCloseable {
+
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final BufferedWriter writer;
+
+        Connection(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        }
+
+        String call(String line) throws IOException {
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+            return reader.readLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    // acciones con pesos acumulados: "GET_ACCOUNT:10,DEPOSIT_POCKET:45"
+    private static final class Mix {
+
+        private final String[] actions;
+        private final int[] cumulative;
+
+        private Mix(String[] actions, int[] cumulative) {
+            this.actions = actions;
+            this.cumulative = cumulative;
+        }
+
+        static Mix parse(String spec) {
+            String[] parts = spec.split(",");
+            String[] actions = new String[parts.length];
+            int[] cumulative = new int[parts.length];
+            int total = 0;
+            for (int i = 0; i < parts.length; i++) {
+                String[] kv = parts[i].trim().split(":");
+                int weight = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+                if (weight < 0) throw new IllegalArgumentException("Invalid weight: " + parts[i]);
+                actions[i] = kv[0].trim().toUpperCase();
+                total += weight;
+                cumulative[i] = total;
+            }
+            if (total == 0) throw new IllegalArgumentException("Empty mix");
+            return new Mix(actions, cumulative);
+        }
+
+        String pick(SplittableRandom random) {
+            int r = random.nextInt(cumulative[cumulative.length - 1]);
+            for (int i = 0; i < cumulative.length; i++) {
+                if (r < cumulative[i]) return actions[i];
+            }
+            return actions[actions.length - 1];
+        }
+    }
+
+    /*
+     * Histograma log-lineal de un solo hilo (mismo esquema que LatencyHistogram
+     * del servidor, con 32 sub-cubetas: ~3% de error). Cada Worker tiene el suyo
+     * y se suman al final.
+     */
+    static final class Recorder {
+
+        private static final int SUB_BITS = 5;
+        private static final int SUB = 1 << SUB_BITS;
+
+        private final long[] counts = new long[(64 - SUB_BITS) * SUB];
+        private long count;
+        private long sum;
+        private long max;
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            counts[indexOf(nanos)]++;
+            count++;
+            sum += nanos;
+            if (nanos > max) max = nanos;
+        }
+
+        void add(Recorder other) {
+            for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+            count += other.count;
+            sum += other.sum;
+            max = Math.max(max, other.max);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        long percentile(double p) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(p / 100 * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(upperBound(i), max);
+            }
+            return max;
+        }
+
+        static int indexOf(long value) {
+            if (value < SUB) return (int) value;
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB - 1);
+            return (exp - SUB_BITS + 1) * SUB + sub;
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB) return index;
+            int exp = index / SUB + SUB_BITS - 1;
+            long width = 1L << (exp - SUB_BITS);
+            long lower = (SUB + (index % SUB)) * width;
+            return lower + width - 1;
+        }
+    }
+
+    public static final class Result {
+
+        private final double rate;
+        private final int clients;
+        private final long durationMillis;
+        private final Recorder latency = new Recorder();
+        private final Recorder service = new Recorder();
+        private final Map<String, Long> errors = new HashMap<>();
+        private long ok;
+        private long connects;
+
+        private Result(double rate, int clients, long durationMillis) {
+            this.rate = rate;
+            this.clients = clients;
+            this.durationMillis = durationMillis;
+        }
+
+        private void merge(Worker worker) {
+            latency.add(worker.latency);
+            service.add(worker.service);
+            worker.errors.forEach((k, v) -> errors.merge(k, v, Long::sum));
+            ok += worker.ok;
+            connects += worker.connects;
+        }
+
+        public long getRequests() {
+            return latency.getCount();
+        }
+
+        public long getErrors() {
+            return latency.getCount() - ok;
+        }
+
+        public Map<String, Long> getErrorsByStatus() {
+            return errors;
+        }
+
+        public long getConnections() {
+            return connects;
+        }
+
+        public double getThroughput() {
+            return durationMillis == 0 ? 0 : latency.getCount() * 1000.0 / durationMillis;
+        }
+
+        // latencia corregida (desde la hora de salida prevista), en nanosegundos
+        public long getLatencyPercentile(double p) {
+            return latency.percentile(p);
+        }
+
+        public long getServicePercentile(double p) {
+            return service.percentile(p);
+        }
+
+        public long getMaxLatency() {
+            return latency.getMax();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(rate > 0 ? String.format("open loop, target %.0f req/s", rate) : "closed loop");
+            sb.append(String.format(", %d clients, %d ms, %d connections%n", clients, durationMillis, connects));
+            sb.append(String.format("requests %d, errors %d, throughput %.1f req/s%n", getRequests(), getErrors(), getThroughput()));
+            sb.append(row("latency", latency)).append(row("service", service));
+            if (!errors.isEmpty()) sb.append("errors by status: ").append(errors).append('\n');
+            return sb.toString();
+        }
+
+        private static String row(String name, Recorder r) {
+            return String.format("%-8s mean %8.3f  p50 %8.3f  p99 %8.3f  p999 %8.3f  max %8.3f ms%n", name,
+                    r.getMean() / 1e6, r.percentile(50) / 1e6, r.percentile(99) / 1e6, r.percentile(99.9) / 1e6,
+                    r.getMax() / 1e6);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package daos;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import DBConfig.ConnectionManager;
+
+/*
+ * Camino común de los DAOs: pide la conexión al pool, prepara el SQL (el pool
+ * reutiliza el PreparedStatement de esa conexión), enlaza los parámetros y cierra
+ * todo con try-with-resources. Los errores se imprimen y se devuelve el valor
+ * vacío, igual que hacían los DAOs antes. Las variantes que reciben la conexión
+ * propagan el SQLException: las usa quien no puede confundir un error con "no hay
+ * filas" (la carga inicial, las escrituras en lote).
+ */
+abstract class JdbcDao {
+
+    protected static void execute(String ddl) {
+        try (Connection conn = ConnectionManager.getInstance().getConnection();
+             Statement st = conn.createStatement()) {
+            st.execute(ddl);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    protected <T> List<T> query(String sql, RowMapper<T> mapper, Object... params) {
+        List<T> rows = new ArrayList<>();
+        try (Connection conn = ConnectionManager.getInstance().getConnection();
+             PreparedStatement ps = prepare(conn, sql, params);
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                rows.add(mapper.map(rs));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return rows;
+    }
+
+    // fila por fila sin juntar el resultado; fetchSize le dice al driver cuántas traer por vez
+    protected <T> void stream(String sql, int fetchSize, RowMapper<T> mapper, Consumer<? super T> action, Object... params) {
+        try (Connection conn = ConnectionManager.getInstance().getConnection();
+             PreparedStatement ps = prepare(conn, sql, params)) {
+            ps.setFetchSize(fetchSize);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    action.accept(mapper.map(rs));
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    protected <T> T queryOne(String sql, RowMapper<T> mapper, Object... params) {
+        try (Connection conn = ConnectionManager.getInstance().getConnection();
+             PreparedStatement ps = prepare(conn, sql, params);
+             ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? mapper.map(rs) : null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    protected <T> List<T> query(Connection conn, String sql, RowMapper<T> mapper, Object... params) throws SQLException {
+        List<T> rows = new ArrayList<>();
+        try (PreparedStatement ps = prepare(conn, sql, params);
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                rows.add(mapper.map(rs));
+            }
+        }
+        return rows;
+    }
+
+    protected <T> T queryOne(Connection conn, String sql, RowMapper<T> mapper, Object... params) throws SQLException {
+        try (PreparedStatement ps = prepare(conn, sql, params);
+             ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? mapper.map(rs) : null;
+        }
+    }
+
+    // filas afectadas, o -1 si falló
+    protected int executeUpdate(String sql, Object... params) {
+        try (Connection conn = ConnectionManager.getInstance().getConnection();
+             PreparedStatement ps = prepare(conn, sql, params)) {
+            return ps.executeUpdate();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    // varias filas en un solo envío sobre una conexión ajena (la transacción es de quien llama)
+    protected int[] executeBatch(Connection conn, String sql, List<Object[]> rows) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (Object[] row : rows) {
+                bind(ps, row);
+                ps.addBatch();
+            }
+            return ps.executeBatch();
+        }
+    }
+
+    private static PreparedStatement prepare(Connection conn, String sql, Object... params) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(sql);
+        try {
+            bind(ps, params);
+            return ps;
+        } catch (SQLException e) {
+            ps.close();
+            throw e;
+        }
+    }
+
+    private static void bind(PreparedStatement ps, Object... params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            Object p = params[i];
+            if (p instanceof Double) ps.setDouble(i + 1, (Double) p);
+            else if (p instanceof Long) ps.setLong(i + 1, (Long) p);
+            else if (p instanceof String) ps.setString(i + 1, (String) p);
+            else ps.setObject(i + 1, p);
+        }
+    }
+}
@@ -1,63 +1,49 @@
 package daos;
 
 import java.sql.Connection;
-import DBConfig.ConnectionManager;
+import java.sql.SQLException;
+import java.util.List;
+
 import model.MainAccount;
 
-public class MainAccountDao {
+public class MainAccountDao extends JdbcDao {
+
+    static final RowMapper<MainAccount> MAIN_ACCOUNT = rs -> {
+        MainAccount account = new MainAccount();
+        account.setAvailableBalance(rs.getDouble("available_balance"));
+        account.setTotalBalance(rs.getDouble("total_balance"));
+        account.setVersion(rs.getLong("version"));
+        return account;
+    };
 
     static {
-        try {
-            System.out.println("Initializing main account table...");
-            Connection conn = ConnectionManager.getInstance().getConnection();
-            conn.createStatement().execute(
-                    "CREATE TABLE IF NOT EXISTS main_account (id INT PRIMARY KEY, available_balance DOUBLE, total_balance DOUBLE)");
-            conn.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        System.out.println("Initializing main account table...");
+        execute("CREATE TABLE IF NOT EXISTS main_account (id INT PRIMARY KEY, available_balance DOUBLE, total_balance DOUBLE)");
+        // versión del estado en memoria que reflejan las filas guardadas
+        execute("ALTER TABLE main_account ADD COLUMN IF NOT EXISTS version BIGINT DEFAULT 0 NOT NULL");
     }
 
     public MainAccount find() {
-        MainAccount account = null;
-        try {
-            Connection conn = ConnectionManager.getInstance().getConnection();
-            var rs = conn.createStatement().executeQuery("SELECT * FROM main_account WHERE id = 1");
-            if (rs.next()) {
-                account = new MainAccount();
-                account.setAvailableBalance(rs.getDouble("available_balance"));
-                account.setTotalBalance(rs.getDouble("total_balance"));
-            }
-            conn.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return account;
+        return queryOne("SELECT available_balance, total_balance, version FROM main_account WHERE id = 1", MAIN_ACCOUNT);
+    }
+
+    // null solo si no hay fila guardada; un error de la base se propaga
+    public MainAccount find(Connection conn) throws SQLException {
+        return queryOne(conn, "SELECT available_balance, total_balance, version FROM main_account WHERE id = 1", MAIN_ACCOUNT);
     }
 
     public void save(MainAccount account) {
-        try {
-            Connection conn = ConnectionManager.getInstance().getConnection();
-            var ps = conn.prepareStatement("INSERT INTO main_account (id, available_balance, total_balance) VALUES (1, ?, ?)");
-            ps.setDouble(1, account.getAvailableBalance());
-            ps.setDouble(2, account.getTotalBalance());
-            ps.executeUpdate();
-            conn.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        executeUpdate("INSERT INTO main_account (id, available_balance, total_balance) VALUES (1, ?, ?)",
+                account.getAvailableBalance(), account.getTotalBalance());
     }
 
     public void update(MainAccount account) {
-        try {
-            Connection conn = ConnectionManager.getInstance().getConnection();
-            var ps = conn.prepareStatement("UPDATE main_account SET available_balance = ?, total_balance = ? WHERE id = 1");
-            ps.setDouble(1, account.getAvailableBalance());
-            ps.setDouble(2, account.getTotalBalance());
-            ps.executeUpdate();
-            conn.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        executeUpdate("UPDATE main_account SET available_balance = ?, total_balance = ? WHERE id = 1",
+                account.getAvailableBalance(), account.getTotalBalance());
+    }
+
+    public void upsert(Connection conn, MainAccount account) throws SQLException {
+        executeBatch(conn, "MERGE INTO main_account (id, available_balance, total_balance, version) KEY (id) VALUES (1, ?, ?, ?)",
+                List.<Object[]>of(new Object[] { account.getAvailableBalance(), account.getTotalBalance(), account.getVersion() }));
     }
-}
\ No newline at end of file
+}
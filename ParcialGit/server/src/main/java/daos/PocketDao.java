@@ -1,106 +1,88 @@
 package daos;
 
 import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 
-import DBConfig.ConnectionManager;
 import model.Pocket;
 
-public class PocketDao implements Dao<Pocket, String> {
+public class PocketDao extends JdbcDao implements Dao<Pocket, String> {
+
+    static final RowMapper<Pocket> POCKET = rs -> {
+        Pocket pocket = new Pocket();
+        pocket.setName(rs.getString("name"));
+        pocket.setBalance(rs.getDouble("balance"));
+        return pocket;
+    };
+
+    private static final int FETCH_SIZE = 500;
 
     static {
-        try {
-            System.out.println("Initializing database...");
-            Connection conn = ConnectionManager.getInstance().getConnection();
-            conn.createStatement().execute(
-                    "CREATE TABLE IF NOT EXISTS pocket (name VARCHAR(255) PRIMARY KEY, balance DOUBLE)");
-            conn.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        System.out.println("Initializing database...");
+        execute("CREATE TABLE IF NOT EXISTS pocket (name VARCHAR(255) PRIMARY KEY, balance DOUBLE)");
     }
 
     @Override
     public List<Pocket> findAll() {
-        List<Pocket> pockets = new ArrayList<>();
-        try {
-            Connection conn = ConnectionManager.getInstance().getConnection();
-            var rs = conn.createStatement().executeQuery("SELECT * FROM pocket");
-            while (rs.next()) {
-                Pocket pocket = new Pocket();
-                pocket.setName(rs.getString("name"));
-                pocket.setBalance(rs.getDouble("balance"));
-                pockets.add(pocket);
-            }
-            conn.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return pockets;
+        return query("SELECT name, balance FROM pocket", POCKET);
+    }
+
+    // todas o ninguna: un error a mitad de lectura se propaga en vez de devolver una parte
+    public List<Pocket> findAll(Connection conn) throws SQLException {
+        return query(conn, "SELECT name, balance FROM pocket", POCKET);
+    }
+
+    // recorre la tabla sin materializarla
+    public void forEach(Consumer<? super Pocket> action) {
+        stream("SELECT name, balance FROM pocket", FETCH_SIZE, POCKET, action);
+    }
+
+    /*
+     * Paginación por clave: los que siguen a after (null = desde el principio) y
+     * empiezan con prefix (null = todos), ordenados por nombre. El costo no crece
+     * con el número de página como con OFFSET.
+     */
+    public List<Pocket> findPage(String after, String prefix, int limit) {
+        String pattern = prefix == null ? "%" : escapeLike(prefix) + "%";
+        return query("SELECT name, balance FROM pocket WHERE name > ? AND name LIKE ? ESCAPE '\\' ORDER BY name LIMIT ?",
+                POCKET, after == null ? "" : after, pattern, limit);
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
     }
 
     @Override
     public Pocket finById(String id) {
-        Pocket pocket = null;
-        try {
-            Connection conn = ConnectionManager.getInstance().getConnection();
-            var ps = conn.prepareStatement("SELECT * FROM pocket WHERE name = ?");
-            ps.setString(1, id);
-            var rs = ps.executeQuery();
-            if (rs.next()) {
-                pocket = new Pocket();
-                pocket.setName(rs.getString("name"));
-                pocket.setBalance(rs.getDouble("balance"));
-            }
-            conn.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return pocket;
+        return queryOne("SELECT name, balance FROM pocket WHERE name = ?", POCKET, id);
     }
 
     @Override
     public Pocket update(Pocket newEntity) {
-        try {
-            Connection conn = ConnectionManager.getInstance().getConnection();
-            var ps = conn.prepareStatement("UPDATE pocket SET balance = ? WHERE name = ?");
-            ps.setDouble(1, newEntity.getBalance());
-            ps.setString(2, newEntity.getName());
-            ps.executeUpdate();
-            conn.close();
-            return newEntity;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
+        int rows = executeUpdate("UPDATE pocket SET balance = ? WHERE name = ?", newEntity.getBalance(), newEntity.getName());
+        return rows < 0 ? null : newEntity;
     }
 
     @Override
     public void delete(Pocket entity) {
-        try {
-            Connection conn = ConnectionManager.getInstance().getConnection();
-            var ps = conn.prepareStatement("DELETE FROM pocket WHERE name = ?");
-            ps.setString(1, entity.getName());
-            ps.executeUpdate();
-            conn.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        executeUpdate("DELETE FROM pocket WHERE name = ?", entity.getName());
     }
 
     @Override
     public void save(Pocket entity) {
-        try ( Connection conn = ConnectionManager.getInstance().getConnection()) {
-            var ps = conn.prepareStatement("INSERT INTO pocket (name, balance) VALUES (?, ?)");
-            ps.setString(1, entity.getName());
-            ps.setDouble(2, entity.getBalance());
-            ps.executeUpdate();
-            conn.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+        executeUpdate("INSERT INTO pocket (name, balance) VALUES (?, ?)", entity.getName(), entity.getBalance());
+    }
+
+    // inserta o actualiza en un solo batch JDBC dentro de la transacción de conn
+    public void upsertAll(Connection conn, Collection<Pocket> pockets) throws SQLException {
+        List<Object[]> rows = new ArrayList<>(pockets.size());
+        for (Pocket pocket : pockets) {
+            rows.add(new Object[] { pocket.getName(), pocket.getBalance() });
         }
-        // TODO implement save
+        executeBatch(conn, "MERGE INTO pocket (name, balance) KEY (name) VALUES (?, ?)", rows);
     }
 
 }
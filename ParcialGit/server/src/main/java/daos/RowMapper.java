@@ -0,0 +1,10 @@
+package daos;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// convierte la fila actual del ResultSet en una entidad
+@FunctionalInterface
+public interface RowMapper<T> {
+    T map(ResultSet rs) throws SQLException;
+}
@@ -0,0 +1,11 @@
+package dtos;
+
+// acciones que RequestDecoder reconoce sin pasar por Gson
+public enum Action {
+    ADD_POCKET,
+    DEPOSIT_POCKET,
+    WITHDRAW_POCKET,
+    DEPOSIT_ACCOUNT,
+    GET_ACCOUNT,
+    TRANSFER_POCKET
+}
@@ -0,0 +1,62 @@
+package dtos;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Protocolo binario del listener opcional (BINARY_PORT). Cada frame es
+ *   int32 longitud | u8 opcode o estado | payload
+ * con la longitud contando el byte de opcode/estado y el payload. Los montos son
+ * double IEEE de 8 bytes, las versiones int64 y los nombres u16 longitud + UTF-8.
+ *
+ * Peticiones:
+ *   ADD_POCKET, DEPOSIT_POCKET, WITHDRAW_POCKET: nombre, monto
+ *   DEPOSIT_ACCOUNT: monto
+ *   GET_ACCOUNT: vacío
+ * Respuestas (estado OK):
+ *   operaciones de bolsillo: nombre, saldo, disponible, total, versión
+ *   DEPOSIT_ACCOUNT: disponible, total, versión
+ *   GET_ACCOUNT: disponible, total, versión, int32 n, n x (nombre, saldo)
+ * Respuestas (estado ERROR): mensaje
+ *
+ * Ningún frame pasa de MAX_FRAME: si la cuenta no entra en uno, GET_ACCOUNT
+ * responde ERROR y la lista se pide paginada por el puerto JSON (LIST_POCKETS).
+ */
+public final class BinaryProtocol {
+
+    public static final byte ADD_POCKET = 1;
+    public static final byte DEPOSIT_POCKET = 2;
+    public static final byte WITHDRAW_POCKET = 3;
+    public static final byte DEPOSIT_ACCOUNT = 4;
+    public static final byte GET_ACCOUNT = 5;
+
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+
+    public static final int MAX_FRAME = 1 << 20;
+    public static final int MAX_NAME = 0xFFFF;
+
+    private BinaryProtocol() {
+    }
+
+    public static void putName(ByteBuffer buffer, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME) throw new IllegalArgumentException("Pocket name too long");
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    public static String getName(ByteBuffer buffer) {
+        if (buffer.remaining() < 2) throw new IllegalArgumentException("Malformed frame");
+        int length = buffer.getShort() & 0xFFFF;
+        // el arreglo se reutiliza entre frames: más allá del límite hay bytes viejos
+        if (length > buffer.remaining()) throw new IllegalArgumentException("Malformed frame");
+        String name = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return name;
+    }
+
+    public static int nameSize(String name) {
+        return 2 + name.getBytes(StandardCharsets.UTF_8).length;
+    }
+}
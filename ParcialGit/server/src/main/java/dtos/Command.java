@@ -0,0 +1,61 @@
+package dtos;
+
+import java.util.Map;
+
+/*
+ * Petición tipada de una acción frecuente. RequestDecoder reutiliza una instancia
+ * por hilo, así que no se debe guardar más allá de la petición en curso.
+ */
+public class Command {
+    public Action action;
+    // en TRANSFER_POCKET name es el origen ("from") y target el destino ("to")
+    public String name;
+    public String target;
+    public double amount;
+    public boolean delta;
+    // null = la cuenta por defecto del servidor
+    public String account;
+    // reintentos de la misma mutación con la misma clave reciben la primera respuesta
+    public String idempotencyKey;
+
+    void reset() {
+        action = null;
+        name = null;
+        target = null;
+        amount = 0;
+        delta = false;
+        account = null;
+        idempotencyKey = null;
+    }
+
+    // mismo camino que antes para peticiones que llegaron por Gson: los errores de parseo no cambian
+    public static Command from(Action action, Map<String, String> data) {
+        Command command = new Command();
+        command.action = action;
+        command.delta = data != null && "delta".equals(data.get("mode"));
+        command.account = data == null ? null : data.get("account");
+        command.idempotencyKey = data == null ? null : data.get("idempotencyKey");
+        switch (action) {
+            case ADD_POCKET:
+                command.name = data.get("name");
+                command.amount = Double.parseDouble(data.get("initialAmount"));
+                break;
+            case DEPOSIT_POCKET:
+            case WITHDRAW_POCKET:
+                command.name = data.get("name");
+                command.amount = Double.parseDouble(data.get("amount"));
+                break;
+            case DEPOSIT_ACCOUNT:
+                command.amount = Double.parseDouble(data.get("amount"));
+                break;
+            case TRANSFER_POCKET:
+                command.name = data.get("from");
+                command.target = data.get("to");
+                command.amount = Double.parseDouble(data.get("amount"));
+                break;
+            default:
+                break;
+        }
+        return command;
+    }
+}
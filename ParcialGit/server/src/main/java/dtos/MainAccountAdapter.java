@@ -0,0 +1,83 @@
+package dtos;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import model.MainAccount;
+import model.Pocket;
+
+// mismo JSON que el reflectivo de Gson (orden de campos, nulls omitidos) pero sin reflexión
+public final class MainAccountAdapter extends TypeAdapter<MainAccount> {
+
+    private final PocketAdapter pocketAdapter = new PocketAdapter(this);
+
+    public PocketAdapter pocketAdapter() {
+        return pocketAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, MainAccount account) throws IOException {
+        if (account == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("availableBalance").value(account.getAvailableBalance());
+        out.name("totalBalance").value(account.getTotalBalance());
+        out.name("version").value(account.getVersion());
+        // una lista vacía se omite: getPockets() la devuelve igual del lado del cliente
+        List<Pocket> pockets = account.getPockets();
+        if (!pockets.isEmpty()) {
+            out.name("pockets");
+            out.beginArray();
+            for (Pocket p : pockets) {
+                pocketAdapter.write(out, p);
+            }
+            out.endArray();
+        }
+        out.endObject();
+    }
+
+    @Override
+    public MainAccount read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        MainAccount account = new MainAccount();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "availableBalance":
+                    account.setAvailableBalance(in.nextDouble());
+                    break;
+                case "totalBalance":
+                    account.setTotalBalance(in.nextDouble());
+                    break;
+                case "version":
+                    account.setVersion(in.nextLong());
+                    break;
+                case "pockets": {
+                    List<Pocket> pockets = new ArrayList<>();
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        pockets.add(pocketAdapter.read(in));
+                    }
+                    in.endArray();
+                    account.setPockets(pockets);
+                    break;
+                }
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return account;
+    }
+}
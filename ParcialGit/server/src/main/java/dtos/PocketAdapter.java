@@ -0,0 +1,62 @@
+package dtos;
+
+import java.io.IOException;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import model.Pocket;
+
+public class PocketAdapter extends TypeAdapter<Pocket> {
+
+    private final MainAccountAdapter accountAdapter;
+
+    PocketAdapter(MainAccountAdapter accountAdapter) {
+        this.accountAdapter = accountAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, Pocket pocket) throws IOException {
+        if (pocket == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        if (pocket.getName() != null) out.name("name").value(pocket.getName());
+        out.name("balance").value(pocket.getBalance());
+        if (pocket.getMainAccount() != null) {
+            out.name("mainAccount");
+            accountAdapter.write(out, pocket.getMainAccount());
+        }
+        out.endObject();
+    }
+
+    @Override
+    public Pocket read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Pocket pocket = new Pocket();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "name":
+                    pocket.setName(in.nextString());
+                    break;
+                case "balance":
+                    pocket.setBalance(in.nextDouble());
+                    break;
+                case "mainAccount":
+                    pocket.setMainAccount(accountAdapter.read(in));
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return pocket;
+    }
+}
@@ -1,9 +1,13 @@
 package dtos;
 
+import java.util.List;
 import java.util.Map;
 
 public class Request {
     public String action;
 
     public Map<String, String> data;
+
+    // solo para BATCH: sub-peticiones en orden
+    public List<Request> operations;
 }
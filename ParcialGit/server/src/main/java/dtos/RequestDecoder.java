@@ -0,0 +1,248 @@
+package dtos;
+
+/*
+ * Decodificador de una pasada para las acciones de Action. Lee la línea con
+ * charAt, compara acción y claves sin crear Strings y parsea los montos dígito a
+ * dígito; el único objeto nuevo por petición es el nombre del bolsillo.
+ *
+ * Cualquier cosa fuera del caso simple (otra acción, claves desconocidas o
+ * repetidas, escapes, números raros, datos faltantes) devuelve null y el que llama sigue por
+ * Gson, que conserva los mensajes de error de siempre.
+ */
+public class RequestDecoder {
+
+    private static final double[] POW10 = new double[19];
+    private static final long MAX_EXACT = 1L << 53;
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private static final Action[] ACTIONS = Action.values();
+
+    private final Command command = new Command();
+    private String in;
+    private int pos;
+    private int end;
+    // rango del último string leído, sin comillas
+    private int tokenStart;
+    private int tokenEnd;
+    private boolean hasAmount;
+    private boolean hasInitialAmount;
+    private boolean hasFrom;
+    private boolean hasMode;
+
+    public Command decode(String line) {
+        in = line;
+        pos = 0;
+        end = line.length();
+        hasAmount = false;
+        hasInitialAmount = false;
+        hasFrom = false;
+        hasMode = false;
+        command.reset();
+        if (!parseRequest()) return null;
+        return isComplete() ? command : null;
+    }
+
+    private boolean isComplete() {
+        if (command.action == null) return false;
+        if (command.action == Action.TRANSFER_POCKET) {
+            return hasFrom && command.target != null && hasAmount && !hasInitialAmount;
+        }
+        if (hasFrom || command.target != null) return false;
+        switch (command.action) {
+            case ADD_POCKET:
+                return command.name != null && hasInitialAmount && !hasAmount;
+            case DEPOSIT_POCKET:
+            case WITHDRAW_POCKET:
+                return command.name != null && hasAmount && !hasInitialAmount;
+            case DEPOSIT_ACCOUNT:
+                return command.name == null && hasAmount && !hasInitialAmount;
+            default:
+                return command.name == null && !hasAmount && !hasInitialAmount;
+        }
+    }
+
+    private boolean parseRequest() {
+        if (!expect('{')) return false;
+        boolean seenAction = false;
+        boolean seenData = false;
+        skipWhitespace();
+        if (pos < end && in.charAt(pos) == '}') return false;
+        while (true) {
+            if (!readString()) return false;
+            if (!expect(':')) return false;
+            if (tokenIs("action") && !seenAction) {
+                seenAction = true;
+                if (!readString()) return false;
+                command.action = matchAction();
+                if (command.action == null) return false;
+            } else if (tokenIs("data") && !seenData) {
+                seenData = true;
+                if (!parseData()) return false;
+            } else {
+                return false;
+            }
+            skipWhitespace();
+            if (pos >= end) return false;
+            char c = in.charAt(pos++);
+            if (c == '}') break;
+            if (c != ',') return false;
+        }
+        skipWhitespace();
+        return pos == end;
+    }
+
+    private boolean parseData() {
+        if (!expect('{')) return false;
+        skipWhitespace();
+        if (pos < end && in.charAt(pos) == '}') {
+            pos++;
+            return true;
+        }
+        while (true) {
+            if (!readString()) return false;
+            if (!expect(':')) return false;
+            if (tokenIs("name") && command.name == null) {
+                if (!readString()) return false;
+                command.name = in.substring(tokenStart, tokenEnd);
+            } else if (tokenIs("from") && command.name == null) {
+                hasFrom = true;
+                if (!readString()) return false;
+                command.name = in.substring(tokenStart, tokenEnd);
+            } else if (tokenIs("to") && command.target == null) {
+                if (!readString()) return false;
+                command.target = in.substring(tokenStart, tokenEnd);
+            } else if (tokenIs("amount") && !hasAmount) {
+                hasAmount = true;
+                if (!readAmount()) return false;
+            } else if (tokenIs("initialAmount") && !hasInitialAmount) {
+                hasInitialAmount = true;
+                if (!readAmount()) return false;
+            } else if (tokenIs("account") && command.account == null) {
+                if (!readString()) return false;
+                command.account = in.substring(tokenStart, tokenEnd);
+            } else if (tokenIs("idempotencyKey") && command.idempotencyKey == null) {
+                if (!readString()) return false;
+                command.idempotencyKey = in.substring(tokenStart, tokenEnd);
+            } else if (tokenIs("mode") && !hasMode) {
+                hasMode = true;
+                if (!readString()) return false;
+                command.delta = tokenIs("delta");
+            } else {
+                return false;
+            }
+            skipWhitespace();
+            if (pos >= end) return false;
+            char c = in.charAt(pos++);
+            if (c == '}') return true;
+            if (c != ',') return false;
+        }
+    }
+
+    // el monto puede venir como "12.5" (lo habitual) o como número JSON
+    private boolean readAmount() {
+        skipWhitespace();
+        if (pos < end && in.charAt(pos) == '"') {
+            if (!readString()) return false;
+            return parseNumber(tokenStart, tokenEnd);
+        }
+        int start = pos;
+        while (pos < end) {
+            char c = in.charAt(pos);
+            if (c == ',' || c == '}' || c == ' ' || c == '\t') break;
+            pos++;
+        }
+        return parseNumber(start, pos);
+    }
+
+    private boolean parseNumber(int start, int stop) {
+        int i = start;
+        boolean negative = false;
+        if (i < stop && in.charAt(i) == '-') {
+            negative = true;
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = 0;
+        boolean dot = false;
+        for (; i < stop; i++) {
+            char c = in.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (digits == 18) return parseSlow(start, stop);
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (dot) fraction++;
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else {
+                return parseSlow(start, stop);
+            }
+        }
+        if (digits == 0) return false;
+        if (mantissa > MAX_EXACT) return parseSlow(start, stop);
+        // con mantisa < 2^53 y potencia de 10 exacta la división redondea igual que parseDouble
+        double value = fraction == 0 ? mantissa : mantissa / POW10[fraction];
+        command.amount = negative ? -value : value;
+        return true;
+    }
+
+    // exponentes, signo '+', mantisas largas: raros, se delegan a parseDouble
+    private boolean parseSlow(int start, int stop) {
+        try {
+            command.amount = Double.parseDouble(in.substring(start, stop));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private Action matchAction() {
+        for (Action action : ACTIONS) {
+            if (tokenIs(action.name())) return action;
+        }
+        return null;
+    }
+
+    private boolean tokenIs(String value) {
+        int length = tokenEnd - tokenStart;
+        return length == value.length() && in.regionMatches(tokenStart, value, 0, length);
+    }
+
+    private boolean readString() {
+        skipWhitespace();
+        if (pos >= end || in.charAt(pos) != '"') return false;
+        int start = ++pos;
+        while (pos < end) {
+            char c = in.charAt(pos);
+            if (c == '"') {
+                tokenStart = start;
+                tokenEnd = pos++;
+                return true;
+            }
+            if (c == '\\') return false;
+            pos++;
+        }
+        return false;
+    }
+
+    private boolean expect(char expected) {
+        skipWhitespace();
+        if (pos >= end || in.charAt(pos) != expected) return false;
+        pos++;
+        return true;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            char c = in.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') return;
+            pos++;
+        }
+    }
+}
@@ -5,4 +5,10 @@ import com.google.gson.JsonObject;
 public class Response {
     public String status;
     public JsonObject data;
+
+    // Pocket, MainAccount o PocketTransfer que ResponseAdapter escribe en "data" sin construir el árbol
+    public transient Object entity;
+
+    // JSON ya serializado (caché de idempotencia); si está, se escribe tal cual
+    public transient String encoded;
 }
@@ -0,0 +1,89 @@
+package dtos;
+
+import java.io.IOException;
+
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import model.MainAccount;
+import model.Pocket;
+import services.PocketTransfer;
+
+/*
+ * Escribe {"status":..,"data":..} directo al JsonWriter. Si la respuesta trae una
+ * entidad se serializa con su adapter, sin pasar por un JsonObject intermedio.
+ */
+public class ResponseAdapter extends TypeAdapter<Response> {
+
+    private final MainAccountAdapter accountAdapter;
+    private final PocketAdapter pocketAdapter;
+    private final TypeAdapter<JsonElement> elementAdapter;
+
+    public ResponseAdapter(MainAccountAdapter accountAdapter, TypeAdapter<JsonElement> elementAdapter) {
+        this.accountAdapter = accountAdapter;
+        this.pocketAdapter = accountAdapter.pocketAdapter();
+        this.elementAdapter = elementAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, Response response) throws IOException {
+        if (response == null) {
+            out.nullValue();
+            return;
+        }
+        if (response.encoded != null) {
+            out.jsonValue(response.encoded);
+            return;
+        }
+        out.beginObject();
+        if (response.status != null) out.name("status").value(response.status);
+        if (response.entity instanceof Pocket) {
+            out.name("data");
+            pocketAdapter.write(out, (Pocket) response.entity);
+        } else if (response.entity instanceof MainAccount) {
+            out.name("data");
+            accountAdapter.write(out, (MainAccount) response.entity);
+        } else if (response.entity instanceof PocketTransfer) {
+            out.name("data");
+            writeTransfer(out, (PocketTransfer) response.entity);
+        } else if (response.data != null) {
+            out.name("data");
+            elementAdapter.write(out, response.data);
+        }
+        out.endObject();
+    }
+
+    // {from, to, account}
+    private void writeTransfer(JsonWriter out, PocketTransfer transfer) throws IOException {
+        out.beginObject();
+        out.name("from");
+        pocketAdapter.write(out, transfer.getFrom());
+        out.name("to");
+        pocketAdapter.write(out, transfer.getTo());
+        out.name("account");
+        accountAdapter.write(out, transfer.getAccount());
+        out.endObject();
+    }
+
+    @Override
+    public Response read(JsonReader in) throws IOException {
+        Response response = new Response();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "status":
+                    response.status = in.nextString();
+                    break;
+                case "data":
+                    response.data = elementAdapter.read(in).getAsJsonObject();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return response;
+    }
+}
@@ -6,6 +6,7 @@ public class MainAccount {
 
     private double availableBalance;
     private double totalBalance;
+    private long version;
     private List<Pocket> pockets;
 
     public List<Pocket> getPockets() {
@@ -34,6 +35,14 @@ public class MainAccount {
     public void setTotalBalance(double totalBalance) {
         this.totalBalance = totalBalance;
     }
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public void addPocket(Pocket p) {
         if (pockets == null) {
             pockets = new java.util.ArrayList<>();
@@ -0,0 +1,218 @@
+package persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import model.MainAccount;
+import model.Pocket;
+import services.PocketService;
+
+/*
+ * Foto binaria completa del estado para arrancar rápido. Se escribe en segundo
+ * plano desde la vista O(1) de getMainAccount(), así que no frena a nadie, en un
+ * archivo temporal que se renombra al terminar. Se lee con un mapeo en memoria.
+ *
+ * Formato: magic, formato, versión, disponible, total, cantidad, luego por
+ * bolsillo [int largo][nombre UTF-8][double saldo], y al final un crc32 de todo
+ * lo anterior salvo el magic.
+ *
+ * Con log activo, antes de cada foto se rota el log: el .old queda cubierto por la
+ * foto (su versión es mayor o igual) y se borra después de escribirla.
+ */
+public class Checkpoint implements AutoCloseable {
+
+    private static final int MAGIC = 0x50434B50; // "PCKP"
+    private static final int FORMAT = 1;
+    private static final int HEADER = 4 + 4 + 8 + 8 + 8 + 4;
+
+    private final PocketService service;
+    private final Path file;
+    private final WriteAheadLog wal;
+    private final long intervalMillis;
+    private Thread thread;
+    private volatile boolean running;
+    // para dormir entre fotos sin interrupt(): un interrupt a mitad de una escritura cerraría los canales
+    private final Object sleeper = new Object();
+
+    // protegido por synchronized(this)
+    private long lastVersion = -1;
+    private long checkpoints;
+    private long lastBytes;
+    private double lastMillis;
+
+    public Checkpoint(PocketService service, Path file, WriteAheadLog wal, long intervalMillis) {
+        this.service = service;
+        this.file = file;
+        this.wal = wal;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /*
+     * Arranque: la foto (si existe) más los registros del log con versión mayor,
+     * o initialAmount si no hay ninguna de las dos. Cualquiera de las rutas puede
+     * ser null.
+     */
+    public static PocketService recover(Path file, Path walPath, double initialAmount) throws IOException {
+        return recover(file, walPath, initialAmount, PocketService.StoreType.IMMUTABLE);
+    }
+
+    public static PocketService recover(Path file, Path walPath, double initialAmount, PocketService.StoreType type)
+            throws IOException {
+        RecoveredState state = file != null && Files.exists(file)
+                ? read(file)
+                : new RecoveredState(initialAmount, initialAmount, 0);
+        if (walPath != null) WriteAheadLog.replayAll(walPath, state);
+        return state.toService(type);
+    }
+
+    static RecoveredState read(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size < HEADER + 4 || size > Integer.MAX_VALUE) throw new IOException("Invalid checkpoint size: " + size);
+            MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int end = (int) size - 4;
+            CRC32 crc = new CRC32();
+            crc.update(map.slice(4, end - 4));
+            if (map.getInt(0) != MAGIC || map.getInt(4) != FORMAT || map.getInt(end) != (int) crc.getValue()) {
+                throw new IOException("Corrupt checkpoint: " + file);
+            }
+            map.position(8);
+            long version = map.getLong();
+            double available = map.getDouble();
+            double total = map.getDouble();
+            int count = map.getInt();
+            RecoveredState state = new RecoveredState(available, total, version, count);
+            byte[] name = new byte[256];
+            for (int i = 0; i < count; i++) {
+                int length = map.getInt();
+                if (length > name.length) name = new byte[length];
+                map.get(name, 0, length);
+                state.add(new String(name, 0, length, StandardCharsets.UTF_8), map.getDouble());
+            }
+            return state;
+        }
+    }
+
+    // escribe la vista en un temporal y lo renombra; devuelve los bytes escritos
+    static long write(Path file, MainAccount snapshot) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        long bytes;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+            CRC32 crc = new CRC32();
+            buf.putInt(MAGIC);
+            buf.putInt(FORMAT);
+            buf.putLong(snapshot.getVersion());
+            buf.putDouble(snapshot.getAvailableBalance());
+            buf.putDouble(snapshot.getTotalBalance());
+            buf.putInt(snapshot.getPockets().size());
+            buf.flip();
+            out.write(buf.duplicate());
+            buf.position(4);
+            crc.update(buf);
+            buf.clear();
+            for (Pocket pocket : snapshot.getPockets()) {
+                byte[] name = pocket.getName().getBytes(StandardCharsets.UTF_8);
+                if (buf.remaining() < name.length + 12) drain(out, buf, crc);
+                buf.putInt(name.length);
+                buf.put(name);
+                buf.putDouble(pocket.getBalance());
+            }
+            drain(out, buf, crc);
+            buf.putInt((int) crc.getValue());
+            buf.flip();
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            out.force(true);
+            bytes = out.size();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return bytes;
+    }
+
+    private static void drain(FileChannel out, ByteBuffer buf, CRC32 crc) throws IOException {
+        buf.flip();
+        crc.update(buf.duplicate());
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+        buf.clear();
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(() -> {
+            while (running) {
+                try {
+                    synchronized (sleeper) {
+                        if (running) sleeper.wait(intervalMillis);
+                    }
+                    if (running) checkpoint();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "checkpoint");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // devuelve la versión que quedó en disco
+    public synchronized long checkpoint() throws IOException {
+        if (service.getMainAccount().getVersion() == lastVersion) return lastVersion;
+        Path archive = wal == null ? null : WriteAheadLog.archiveOf(wal.getPath());
+        // si quedó un .old de un intento fallido se conserva: la foto nueva también lo cubre
+        if (wal != null && !Files.exists(archive)) wal.rotate();
+        long start = System.nanoTime();
+        MainAccount snapshot = service.getMainAccount();
+        long bytes = write(file, snapshot);
+        if (archive != null) Files.deleteIfExists(archive);
+        lastVersion = snapshot.getVersion();
+        checkpoints++;
+        lastBytes = bytes;
+        lastMillis = (System.nanoTime() - start) / 1e6;
+        return lastVersion;
+    }
+
+    // detiene el hilo y deja una última foto
+    @Override
+    public void close() throws IOException {
+        synchronized (sleeper) {
+            running = false;
+            sleeper.notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        checkpoint();
+    }
+
+    // ---- métricas ----
+    public synchronized long getCheckpoints() {
+        return checkpoints;
+    }
+
+    public synchronized long getLastBytes() {
+        return lastBytes;
+    }
+
+    public synchronized double getLastMillis() {
+        return lastMillis;
+    }
+}
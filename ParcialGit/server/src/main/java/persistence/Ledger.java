@@ -0,0 +1,455 @@
+package persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import services.Mutation;
+import services.MutationListener;
+import services.PocketOperation;
+import services.PocketService;
+
+/*
+ * Historial de movimientos: cada mutación publicada queda como una fila de 53
+ * bytes (versión, hora, tipo, bolsillo, monto y saldos resultantes) en columnas
+ * de arreglos primitivos, sin un objeto por movimiento. Cada fila tiene un número
+ * de secuencia denso que sirve de cursor.
+ *
+ * Las filas se agrupan en segmentos de segmentSize. Al cerrarse un segmento, los
+ * que excedan memorySegments los escribe un hilo aparte al archivo de volcado (la
+ * fila seq vive en seq * RECORD) y se sueltan los arreglos; el que muta solo
+ * copia la fila bajo un lock corto.
+ *
+ * La hora de cada fila nunca retrocede (se toma el máximo con la anterior), así
+ * que un rango de tiempo es un rango de secuencias: se busca en un índice ralo
+ * con la hora de una de cada STRIDE filas y se recorre un solo bloque. Por
+ * bolsillo se guardan las secuencias de sus filas (8 bytes por movimiento, en
+ * memoria aunque la fila esté volcada).
+ *
+ * Las mutaciones pueden llegar fuera de orden de versión; el historial guarda el
+ * orden de llegada y cada fila lleva su versión. No sobrevive a un reinicio: el
+ * archivo de volcado se trunca al abrir y se borra al cerrar (en Linux ya al
+ * abrir; el canal abierto lo mantiene vivo), así que no queda basura aunque el
+ * proceso muera.
+ */
+public class Ledger implements MutationListener, AutoCloseable {
+
+    private static final int RECORD = 8 + 8 + 1 + 4 + 8 * 4;
+    // filas por entrada del índice de tiempo y por lectura del archivo
+    private static final int STRIDE = 256;
+    private static final PocketOperation.Type[] TYPES = PocketOperation.Type.values();
+
+    private final int segmentSize;
+    private final int memorySegments;
+    private final FileChannel spill;
+    private final Thread spiller;
+    private final LinkedBlockingQueue<Segment> toSpill = new LinkedBlockingQueue<>();
+
+    // protegido por this; los arreglos solo se reemplazan por copias más grandes
+    private Segment[] segments = new Segment[16];
+    private int segmentCount;
+    private long size;
+    private long lastTimestamp = Long.MIN_VALUE;
+    private long[] timeIndex = new long[64];
+    private final Map<String, Integer> pocketIds = new HashMap<>();
+    private String[] pocketNames = new String[16];
+    private long[][] postings = new long[16][];
+    private int[] postingCounts = new int[16];
+    private int nextToSpill;
+    private boolean closed;
+
+    private volatile long spilledEntries;
+    private volatile long spillFailures;
+
+    public Ledger(Path spillFile, int segmentSize, int memorySegments) throws IOException {
+        if (memorySegments < 0) throw new IllegalArgumentException("Memory segments must be >= 0");
+        this.segmentSize = Math.max(STRIDE, (segmentSize + STRIDE - 1) / STRIDE * STRIDE);
+        this.memorySegments = memorySegments;
+        this.spill = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.DELETE_ON_CLOSE);
+        this.spiller = new Thread(this::runSpiller, "ledger-spill");
+        this.spiller.setDaemon(true);
+        this.spiller.start();
+    }
+
+    public void attach(PocketService service) {
+        service.addMutationListener(this);
+    }
+
+    @Override
+    public void onMutation(Mutation mutation) {
+        Segment sealed = null;
+        synchronized (this) {
+            if (closed) return;
+            long seq = size;
+            int row = (int) (seq % segmentSize);
+            if (row == 0) {
+                if (segmentCount == segments.length) segments = Arrays.copyOf(segments, segmentCount * 2);
+                segments[segmentCount++] = new Segment(seq, segmentSize);
+                // se suelta el más viejo de los que siguen en memoria, sin contar el activo
+                if (segmentCount - 1 - nextToSpill > memorySegments) sealed = segments[nextToSpill++];
+            }
+            long timestamp = Math.max(lastTimestamp, mutation.getTimestamp());
+            lastTimestamp = timestamp;
+            if (seq % STRIDE == 0) {
+                int k = (int) (seq / STRIDE);
+                if (k == timeIndex.length) timeIndex = Arrays.copyOf(timeIndex, k * 2);
+                timeIndex[k] = timestamp;
+            }
+            int pocket = mutation.getName() == null ? -1 : pocketId(mutation.getName());
+            Columns c = segments[segmentCount - 1].columns;
+            c.versions[row] = mutation.getVersion();
+            c.timestamps[row] = timestamp;
+            c.types[row] = (byte) mutation.getType().ordinal();
+            c.pockets[row] = pocket;
+            c.amounts[row] = mutation.getAmount();
+            c.pocketBalances[row] = mutation.getPocketBalance();
+            c.availableBalances[row] = mutation.getAvailableBalance();
+            c.totalBalances[row] = mutation.getTotalBalance();
+            if (pocket >= 0) addPosting(pocket, seq);
+            size = seq + 1;
+        }
+        if (sealed != null) toSpill.offer(sealed);
+    }
+
+    /*
+     * Movimientos con hora en [fromMillis, toMillis), de un bolsillo o de todos,
+     * desde la secuencia cursor (inclusive), en orden de llegada. next es el cursor
+     * de la página siguiente o -1 si no hay más.
+     */
+    public Page history(String pocket, long fromMillis, long toMillis, long cursor, int limit) throws IOException {
+        if (limit < 1) throw new IllegalArgumentException("Limit must be > 0");
+        long end;
+        long[] seqs = null;
+        int seqCount = 0;
+        Segment[] segs;
+        long[] index;
+        String[] names;
+        synchronized (this) {
+            end = size;
+            segs = segments;
+            index = timeIndex;
+            names = pocketNames;
+            if (pocket != null) {
+                Integer id = pocketIds.get(pocket);
+                if (id == null) return new Page(List.of(), -1);
+                seqs = postings[id];
+                seqCount = postingCounts[id];
+            }
+        }
+        Reader reader = new Reader(segs, names);
+        long start = Math.max(cursor, firstAtOrAfter(reader, index, end, fromMillis));
+        if (toMillis != Long.MAX_VALUE) end = Math.min(end, firstAtOrAfter(reader, index, end, toMillis));
+
+        List<Entry> entries = new ArrayList<>(Math.min(limit, 64));
+        long next = -1;
+        if (seqs == null) {
+            for (long seq = start; seq < end; seq++) {
+                if (entries.size() == limit) {
+                    next = seq;
+                    break;
+                }
+                entries.add(reader.entry(seq));
+            }
+        } else {
+            int i = Arrays.binarySearch(seqs, 0, seqCount, start);
+            for (i = i < 0 ? -i - 1 : i; i < seqCount && seqs[i] < end; i++) {
+                if (entries.size() == limit) {
+                    next = seqs[i];
+                    break;
+                }
+                entries.add(reader.entry(seqs[i]));
+            }
+        }
+        return new Page(entries, next);
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getSpilledEntries() {
+        return spilledEntries;
+    }
+
+    public long getSpillFailures() {
+        return spillFailures;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        spiller.interrupt();
+        try {
+            spiller.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        spill.close();
+    }
+
+    // primera secuencia con hora >= millis; size si no hay ninguna
+    private long firstAtOrAfter(Reader reader, long[] index, long end, long millis) throws IOException {
+        if (millis == Long.MIN_VALUE || end == 0) return 0;
+        int blocks = (int) ((end + STRIDE - 1) / STRIDE);
+        int lo = 0, hi = blocks - 1, block = -1;
+        // último bloque que empieza antes de millis
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (index[mid] < millis) {
+                block = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (block < 0) return 0;
+        long seq = (long) block * STRIDE;
+        long stop = Math.min(end, seq + STRIDE);
+        for (; seq < stop; seq++) {
+            if (reader.timestamp(seq) >= millis) return seq;
+        }
+        return stop;
+    }
+
+    private int pocketId(String name) {
+        Integer id = pocketIds.get(name);
+        if (id != null) return id;
+        int created = pocketIds.size();
+        if (created == pocketNames.length) {
+            pocketNames = Arrays.copyOf(pocketNames, created * 2);
+            postings = Arrays.copyOf(postings, created * 2);
+            postingCounts = Arrays.copyOf(postingCounts, created * 2);
+        }
+        pocketNames[created] = name;
+        postings[created] = new long[4];
+        pocketIds.put(name, created);
+        return created;
+    }
+
+    private void addPosting(int pocket, long seq) {
+        long[] list = postings[pocket];
+        int n = postingCounts[pocket];
+        // copia nueva: una consulta en curso sigue leyendo el arreglo anterior
+        if (n == list.length) postings[pocket] = list = Arrays.copyOf(list, n * 2);
+        list[n] = seq;
+        postingCounts[pocket] = n + 1;
+    }
+
+    private void runSpiller() {
+        ByteBuffer buffer = ByteBuffer.allocate(STRIDE * RECORD);
+        while (true) {
+            Segment segment;
+            try {
+                segment = toSpill.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Columns c = segment.columns;
+            try {
+                for (int row = 0; row < segmentSize; row += STRIDE) {
+                    buffer.clear();
+                    for (int r = row; r < row + STRIDE; r++) {
+                        buffer.putLong(c.versions[r]);
+                        buffer.putLong(c.timestamps[r]);
+                        buffer.put(c.types[r]);
+                        buffer.putInt(c.pockets[r]);
+                        buffer.putDouble(c.amounts[r]);
+                        buffer.putDouble(c.pocketBalances[r]);
+                        buffer.putDouble(c.availableBalances[r]);
+                        buffer.putDouble(c.totalBalances[r]);
+                    }
+                    buffer.flip();
+                    long offset = (segment.first + row) * RECORD;
+                    while (buffer.hasRemaining()) {
+                        offset += spill.write(buffer, offset);
+                    }
+                }
+            } catch (IOException e) {
+                // el segmento queda en memoria; se sigue sirviendo desde ahí
+                spillFailures++;
+                continue;
+            }
+            segment.columns = null;
+            spilledEntries += segmentSize;
+        }
+    }
+
+    private final class Reader {
+
+        private final Segment[] segments;
+        // ids anteriores a la foto: el arreglo puede haberse reemplazado pero estos no cambian
+        private final String[] names;
+        // último bloque leído del archivo; una página suele caer en uno o dos
+        private final ByteBuffer block = ByteBuffer.allocate(STRIDE * RECORD);
+        private long blockStart = -1;
+
+        Reader(Segment[] segments, String[] names) {
+            this.segments = segments;
+            this.names = names;
+        }
+
+        long timestamp(long seq) throws IOException {
+            Columns c = segments[(int) (seq / segmentSize)].columns;
+            if (c != null) return c.timestamps[(int) (seq % segmentSize)];
+            ByteBuffer r = load(seq);
+            return r.getLong(r.position() + 8);
+        }
+
+        Entry entry(long seq) throws IOException {
+            Columns c = segments[(int) (seq / segmentSize)].columns;
+            if (c != null) {
+                int row = (int) (seq % segmentSize);
+                return new Entry(seq, c.versions[row], c.timestamps[row], TYPES[c.types[row]], name(c.pockets[row]),
+                        c.amounts[row], c.pocketBalances[row], c.availableBalances[row], c.totalBalances[row]);
+            }
+            ByteBuffer r = load(seq);
+            return new Entry(seq, r.getLong(), r.getLong(), TYPES[r.get()], name(r.getInt()), r.getDouble(),
+                    r.getDouble(), r.getDouble(), r.getDouble());
+        }
+
+        private String name(int pocket) {
+            return pocket < 0 ? null : names[pocket];
+        }
+
+        // la fila seq, leída del archivo por bloques de STRIDE filas
+        private ByteBuffer load(long seq) throws IOException {
+            long start = seq / STRIDE * STRIDE;
+            if (start != blockStart) {
+                block.clear();
+                long offset = start * RECORD;
+                while (block.hasRemaining()) {
+                    int read = spill.read(block, offset + block.position());
+                    if (read < 0) throw new IOException("Ledger spill file is truncated");
+                }
+                blockStart = start;
+            }
+            return block.duplicate().position((int) (seq - start) * RECORD);
+        }
+
+    }
+
+    private static final class Segment {
+        final long first;
+        // null una vez que el segmento está en el archivo
+        volatile Columns columns;
+
+        Segment(long first, int size) {
+            this.first = first;
+            this.columns = new Columns(size);
+        }
+    }
+
+    private static final class Columns {
+        final long[] versions;
+        final long[] timestamps;
+        final byte[] types;
+        final int[] pockets;
+        final double[] amounts;
+        final double[] pocketBalances;
+        final double[] availableBalances;
+        final double[] totalBalances;
+
+        Columns(int size) {
+            versions = new long[size];
+            timestamps = new long[size];
+            types = new byte[size];
+            pockets = new int[size];
+            amounts = new double[size];
+            pocketBalances = new double[size];
+            availableBalances = new double[size];
+            totalBalances = new double[size];
+        }
+    }
+
+    // un movimiento; pocket es null para DEPOSIT_ACCOUNT
+    public static final class Entry {
+        private final long seq;
+        private final long version;
+        private final long timestamp;
+        private final PocketOperation.Type type;
+        private final String pocket;
+        private final double amount;
+        private final double pocketBalance;
+        private final double availableBalance;
+        private final double totalBalance;
+
+        Entry(long seq, long version, long timestamp, PocketOperation.Type type, String pocket, double amount,
+                double pocketBalance, double availableBalance, double totalBalance) {
+            this.seq = seq;
+            this.version = version;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.pocket = pocket;
+            this.amount = amount;
+            this.pocketBalance = pocketBalance;
+            this.availableBalance = availableBalance;
+            this.totalBalance = totalBalance;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public PocketOperation.Type getType() {
+            return type;
+        }
+
+        public String getPocket() {
+            return pocket;
+        }
+
+        public double getAmount() {
+            return amount;
+        }
+
+        public double getPocketBalance() {
+            return pocketBalance;
+        }
+
+        public double getAvailableBalance() {
+            return availableBalance;
+        }
+
+        public double getTotalBalance() {
+            return totalBalance;
+        }
+    }
+
+    public static final class Page {
+        private final List<Entry> entries;
+        private final long next;
+
+        Page(List<Entry> entries, long next) {
+            this.entries = entries;
+            this.next = next;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        public long getNext() {
+            return next;
+        }
+    }
+}
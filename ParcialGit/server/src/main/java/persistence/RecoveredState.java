@@ -0,0 +1,81 @@
+package persistence;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import services.PocketService;
+
+/*
+ * Estado que se va armando al arrancar: una base (vacía, la base de datos o un
+ * checkpoint) más los registros del log con versión mayor. Los bolsillos quedan
+ * en el orden en que aparecieron por primera vez. Se guarda en arreglos paralelos
+ * para que cargar un checkpoint grande no cree un objeto por bolsillo.
+ */
+final class RecoveredState {
+
+    double availableBalance;
+    double totalBalance;
+    long version;
+
+    String[] names;
+    double[] balances;
+    int count;
+    // nombre -> posición; solo se arma si algún registro del log lo necesita
+    private Map<String, Integer> index;
+
+    RecoveredState(double availableBalance, double totalBalance, long version) {
+        this(availableBalance, totalBalance, version, 16);
+    }
+
+    RecoveredState(double availableBalance, double totalBalance, long version, int capacity) {
+        this.availableBalance = availableBalance;
+        this.totalBalance = totalBalance;
+        this.version = version;
+        this.names = new String[Math.max(16, capacity)];
+        this.balances = new double[names.length];
+    }
+
+    void add(String name, double balance) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            balances = Arrays.copyOf(balances, count * 2);
+        }
+        if (index != null) index.put(name, count);
+        names[count] = name;
+        balances[count] = balance;
+        count++;
+    }
+
+    // devuelve false si el registro ya estaba incluido en el estado
+    boolean apply(long version, String name, double pocketBalance, double availableBalance, double totalBalance) {
+        if (version <= this.version) return false;
+        this.version = version;
+        this.availableBalance = availableBalance;
+        this.totalBalance = totalBalance;
+        if (name != null) {
+            Integer slot = index().get(name);
+            if (slot == null) add(name, pocketBalance);
+            else balances[slot] = pocketBalance;
+        }
+        return true;
+    }
+
+    private Map<String, Integer> index() {
+        if (index == null) {
+            index = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                index.put(names[i], i);
+            }
+        }
+        return index;
+    }
+
+    PocketService toService() {
+        return toService(PocketService.StoreType.IMMUTABLE);
+    }
+
+    PocketService toService(PocketService.StoreType type) {
+        return PocketService.restore(type, availableBalance, totalBalance, version, names, balances, count);
+    }
+}
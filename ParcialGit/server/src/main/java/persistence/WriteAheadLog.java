@@ -0,0 +1,522 @@
+package persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import services.Mutation;
+import services.MutationListener;
+import services.PocketService;
+
+/*
+ * Log de solo-append con las mutaciones del PocketService. Cada registro guarda
+ * los valores absolutos y la versión, así que repetir el log no depende de los
+ * montos sino de quedarse con la versión mayor.
+ *
+ * Los registros se encolan en orden de versión (los que llegan adelantados esperan
+ * a que se complete el hueco) y un único hilo los escribe con FileChannel. Con
+ * ALWAYS el hilo que hizo la mutación espera a que su registro esté en disco, y
+ * todas las mutaciones que se juntaron durante un fsync comparten el siguiente
+ * (group commit). INTERVAL hace fsync cada intervalMillis sin esperar; NONE deja
+ * la sincronización al sistema operativo.
+ *
+ * Formato: [int largo][cuerpo][int crc32(cuerpo)]. Una transferencia o un batch
+ * van en un solo registro de grupo con todos sus pasos: al repetir entra entero o
+ * no entra. Al arrancar se lee hasta el primer registro incompleto o corrupto y
+ * el archivo se trunca ahí.
+ *
+ * El log se entera de una mutación cuando ya está aplicada en memoria. Si no la
+ * puede escribir (error de disco, log cerrado) detiene el servicio: esa mutación
+ * y las que se cruzaron fallan y no se acepta ninguna escritura más.
+ *
+ * rotate() mueve el archivo actual a <ruta>.old y sigue en uno nuevo; quien
+ * rota (el checkpoint) borra el .old cuando ya no hace falta para repetir.
+ */
+public class WriteAheadLog implements MutationListener, AutoCloseable {
+
+    public enum FsyncPolicy {
+        ALWAYS,
+        INTERVAL,
+        NONE
+    }
+
+    // un batch de 10000 operaciones con nombres de 255 caracteres entra holgado
+    private static final int MAX_RECORD = 16 * 1024 * 1024;
+    // tipo de un registro de grupo; los simples llevan el ordinal de PocketOperation.Type
+    private static final byte GROUP = -1;
+    // tope de bytes sin escribir; más allá los que mutan esperan al escritor
+    private static final int MAX_PENDING_BYTES = 8 * 1024 * 1024;
+
+    private final Path path;
+    private FileChannel channel;
+    private final FsyncPolicy policy;
+    private final long intervalMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pendingData = lock.newCondition();
+    private final Condition written = lock.newCondition();
+
+    // protegido por lock
+    private byte[] buffer = new byte[64 * 1024];
+    private int bufferLength;
+    private long nextVersion = -1;
+    private long appendedVersion;
+    private long durableVersion;
+    // registros adelantados esperando una versión anterior (por primera versión); nunca se escriben fuera de orden
+    private final TreeMap<Long, Held> held = new TreeMap<>();
+    private int heldBytes;
+    private boolean closed;
+    private IOException failure;
+    // el escritor tiene un lote fuera del lock; mientras tanto nadie más toca channel
+    private boolean writerBusy;
+
+    private long records;
+    private long syncs;
+    private long bytesWritten;
+
+    private final Thread writer;
+    // se detiene si el log falla
+    private volatile PocketService service;
+
+    public WriteAheadLog(Path path, FsyncPolicy policy, long intervalMillis) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.channel.position(channel.size());
+        this.policy = policy;
+        this.intervalMillis = intervalMillis;
+        this.writer = new Thread(this::run, "wal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /*
+     * Reconstruye el servicio desde el log (o uno nuevo con initialAmount si no
+     * hay nada) y recorta la cola dañada para que los próximos append queden
+     * detrás del último registro válido.
+     */
+    public static PocketService recover(Path path, double initialAmount) throws IOException {
+        RecoveredState state = new RecoveredState(initialAmount, initialAmount, 0);
+        replayAll(path, state);
+        return state.toService();
+    }
+
+    static Path archiveOf(Path path) {
+        return path.resolveSibling(path.getFileName() + ".old");
+    }
+
+    // el .old (si quedó de una rotación sin checkpoint) va antes que el actual
+    static long replayAll(Path path, RecoveredState state) throws IOException {
+        return replay(archiveOf(path), state) + replay(path, state);
+    }
+
+    // aplica sobre state los registros con versión mayor; devuelve cuántos aplicó
+    static long replay(Path path, RecoveredState state) throws IOException {
+        if (!Files.exists(path)) return 0;
+        long applied = 0;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            ByteBuffer buf = ByteBuffer.allocate(256 * 1024);
+            in.read(buf);
+            buf.flip();
+            long valid = 0;
+            CRC32 crc = new CRC32();
+            while (true) {
+                if (buf.remaining() < 4 || buf.remaining() < 8 + buf.getInt(buf.position())) {
+                    // registro partido entre lecturas: se corre lo que queda al principio y se lee más
+                    int needed = buf.remaining() < 4 ? 4 : 8 + buf.getInt(buf.position());
+                    if (needed > buf.capacity() && needed <= 8 + MAX_RECORD) {
+                        // un grupo más grande que el buffer
+                        buf = ByteBuffer.allocate(needed).put(buf);
+                    } else {
+                        buf.compact();
+                    }
+                    int n = in.read(buf);
+                    buf.flip();
+                    if (n <= 0) break;
+                    continue;
+                }
+                int length = buf.getInt();
+                if (length <= 0 || length > MAX_RECORD) break;
+                byte[] body = new byte[length];
+                buf.get(body);
+                int expected = buf.getInt();
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != expected) break;
+                applied += applyRecord(ByteBuffer.wrap(body), state);
+                valid += 8 + length;
+            }
+            if (valid < size) {
+                System.err.println("WAL: discarding " + (size - valid) + " trailing bytes");
+                in.truncate(valid);
+            }
+        }
+        return applied;
+    }
+
+    private static int applyRecord(ByteBuffer body, RecoveredState state) {
+        if (body.get(body.position()) != GROUP) return applyMutation(body, state) ? 1 : 0;
+        body.get();
+        int count = body.getInt();
+        int applied = 0;
+        for (int i = 0; i < count; i++) {
+            if (applyMutation(body, state)) applied++;
+        }
+        return applied;
+    }
+
+    private static boolean applyMutation(ByteBuffer body, RecoveredState state) {
+        body.get(); // tipo, solo informativo al repetir
+        long version = body.getLong();
+        body.getLong(); // timestamp
+        body.getDouble(); // monto
+        double pocketBalance = body.getDouble();
+        double available = body.getDouble();
+        double total = body.getDouble();
+        short nameLength = body.getShort();
+        String name = null;
+        if (nameLength >= 0) {
+            byte[] bytes = new byte[nameLength];
+            body.get(bytes);
+            name = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return state.apply(version, name, pocketBalance, available, total);
+    }
+
+    // registra el log sobre el servicio; las versiones siguen desde la actual
+    public void attach(PocketService service) {
+        lock.lock();
+        try {
+            long current = service.getMainAccount().getVersion();
+            nextVersion = current + 1;
+            appendedVersion = current;
+            durableVersion = current;
+        } finally {
+            lock.unlock();
+        }
+        this.service = service;
+        service.addMutationListener(this);
+    }
+
+    @Override
+    public void onMutation(Mutation mutation) {
+        log(mutation.getVersion(), mutation.getVersion(), encode(mutation));
+    }
+
+    @Override
+    public void onMutations(List<Mutation> mutations) {
+        if (mutations.size() == 1) {
+            onMutation(mutations.get(0));
+            return;
+        }
+        log(mutations.get(0).getVersion(), mutations.get(mutations.size() - 1).getVersion(), encodeGroup(mutations));
+    }
+
+    // record cubre las versiones first..last
+    private void log(long first, long last, byte[] record) {
+        lock.lock();
+        try {
+            if (failure != null || closed) throw new IllegalStateException("Write-ahead log is not available");
+            if (nextVersion < 0) nextVersion = first;
+            // el que completa el hueco nunca espera, si no el escritor no tendría qué escribir
+            while (first != nextVersion && bufferLength + heldBytes > MAX_PENDING_BYTES && failure == null && !closed) {
+                written.awaitUninterruptibly();
+            }
+            if (first == nextVersion) {
+                append(record);
+                nextVersion = last + 1;
+                Held next;
+                while ((next = held.remove(nextVersion)) != null) {
+                    heldBytes -= next.record.length;
+                    append(next.record);
+                    nextVersion = next.last + 1;
+                }
+            } else if (first > nextVersion) {
+                held.put(first, new Held(record, last));
+                heldBytes += record.length;
+            }
+            appendedVersion = nextVersion - 1;
+            pendingData.signal();
+            if (policy == FsyncPolicy.ALWAYS) {
+                while (durableVersion < last && failure == null && !closed) {
+                    written.awaitUninterruptibly();
+                }
+                if (durableVersion < last) throw new IllegalStateException("Write-ahead log is not available");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void append(byte[] record) {
+        if (bufferLength + record.length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, bufferLength + record.length));
+        }
+        System.arraycopy(record, 0, buffer, bufferLength, record.length);
+        bufferLength += record.length;
+        records++;
+    }
+
+    private static byte[] encode(Mutation m) {
+        byte[] name = nameOf(m);
+        int length = sizeOf(name);
+        ByteBuffer out = ByteBuffer.allocate(8 + length);
+        out.putInt(length);
+        put(out, m, name);
+        return seal(out, length);
+    }
+
+    // [GROUP][int cantidad][cuerpo de cada paso]: un solo largo y un solo crc para todos
+    private static byte[] encodeGroup(List<Mutation> mutations) {
+        byte[][] names = new byte[mutations.size()][];
+        int length = 1 + 4;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = nameOf(mutations.get(i));
+            length += sizeOf(names[i]);
+        }
+        if (length > MAX_RECORD) throw new IllegalArgumentException("Operation too large for the write-ahead log");
+        ByteBuffer out = ByteBuffer.allocate(8 + length);
+        out.putInt(length);
+        out.put(GROUP);
+        out.putInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+            put(out, mutations.get(i), names[i]);
+        }
+        return seal(out, length);
+    }
+
+    private static byte[] nameOf(Mutation m) {
+        byte[] name = m.getName() == null ? null : m.getName().getBytes(StandardCharsets.UTF_8);
+        if (name != null && name.length > Short.MAX_VALUE) throw new IllegalArgumentException("Pocket name too long");
+        return name;
+    }
+
+    private static int sizeOf(byte[] name) {
+        return 1 + 8 + 8 + 8 * 4 + 2 + (name == null ? 0 : name.length);
+    }
+
+    private static void put(ByteBuffer out, Mutation m, byte[] name) {
+        out.put((byte) m.getType().ordinal());
+        out.putLong(m.getVersion());
+        out.putLong(m.getTimestamp());
+        out.putDouble(m.getAmount());
+        out.putDouble(m.getPocketBalance());
+        out.putDouble(m.getAvailableBalance());
+        out.putDouble(m.getTotalBalance());
+        if (name == null) {
+            out.putShort((short) -1);
+        } else {
+            out.putShort((short) name.length);
+            out.put(name);
+        }
+    }
+
+    private static byte[] seal(ByteBuffer out, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), 4, length);
+        out.putInt((int) crc.getValue());
+        return out.array();
+    }
+
+    private void run() {
+        byte[] spare = new byte[buffer.length];
+        long lastSync = System.nanoTime();
+        while (true) {
+            byte[] batch;
+            int length;
+            long upTo;
+            FileChannel target;
+            lock.lock();
+            try {
+                while (!closed && bufferLength == 0) {
+                    pendingData.awaitUninterruptibly();
+                }
+                if (policy == FsyncPolicy.INTERVAL) {
+                    // se juntan registros hasta completar el intervalo y se escriben con un solo fsync
+                    long remaining = TimeUnit.MILLISECONDS.toNanos(intervalMillis) - (System.nanoTime() - lastSync);
+                    while (!closed && remaining > 0) {
+                        remaining = pendingData.awaitNanos(remaining);
+                    }
+                }
+                if (bufferLength == 0) {
+                    if (closed) return;
+                    continue;
+                }
+                batch = buffer;
+                length = bufferLength;
+                upTo = appendedVersion;
+                buffer = spare.length >= batch.length ? spare : new byte[batch.length];
+                bufferLength = 0;
+                writerBusy = true;
+                target = channel;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                ByteBuffer out = ByteBuffer.wrap(batch, 0, length);
+                while (out.hasRemaining()) {
+                    target.write(out);
+                }
+                if (policy != FsyncPolicy.NONE) target.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            lastSync = System.nanoTime();
+            spare = batch;
+
+            lock.lock();
+            try {
+                writerBusy = false;
+                if (error != null) {
+                    // sin log no hay durabilidad: el servicio deja de aceptar escrituras
+                    failure = error;
+                    error.printStackTrace();
+                    PocketService stopped = service;
+                    if (stopped != null) stopped.halt(new IllegalStateException("Write-ahead log is not available", error));
+                } else {
+                    durableVersion = upTo;
+                    bytesWritten += length;
+                    if (policy != FsyncPolicy.NONE) syncs++;
+                }
+                written.signalAll();
+                if (failure != null) return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /*
+     * Escribe y sincroniza lo pendiente, mueve el archivo a <ruta>.old y abre uno
+     * nuevo. Devuelve la última versión que quedó en el .old: un checkpoint tomado
+     * después la cubre.
+     */
+    public long rotate() throws IOException {
+        lock.lock();
+        try {
+            while (writerBusy) {
+                written.awaitUninterruptibly();
+            }
+            if (failure != null || closed) throw new IOException("Write-ahead log is not available", failure);
+            ByteBuffer out = ByteBuffer.wrap(buffer, 0, bufferLength);
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            bytesWritten += bufferLength;
+            bufferLength = 0;
+            channel.force(false);
+            syncs++;
+            durableVersion = appendedVersion;
+            channel.close();
+            Files.move(path, archiveOf(path), StandardCopyOption.REPLACE_EXISTING);
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            written.signalAll();
+            return durableVersion;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // espera a que todo lo encolado hasta ahora esté escrito
+    public void sync() {
+        lock.lock();
+        try {
+            long target = appendedVersion;
+            while (durableVersion < target && failure == null && writer.isAlive()) {
+                pendingData.signal();
+                written.await(100, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        lock.lock();
+        try {
+            closed = true;
+            pendingData.signal();
+            written.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (policy != FsyncPolicy.NONE) channel.force(false);
+        channel.close();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // ---- métricas ----
+    public long getRecords() {
+        lock.lock();
+        try {
+            return records;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSyncs() {
+        lock.lock();
+        try {
+            return syncs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBytesWritten() {
+        lock.lock();
+        try {
+            return bytesWritten;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDurableVersion() {
+        lock.lock();
+        try {
+            return durableVersion;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Held {
+        final byte[] record;
+        final long last;
+
+        Held(byte[] record, long last) {
+            this.record = record;
+            this.last = last;
+        }
+    }
+}
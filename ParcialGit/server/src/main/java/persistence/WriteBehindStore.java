@@ -0,0 +1,391 @@
+package persistence;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import DBConfig.ConnectionManager;
+import daos.MainAccountDao;
+import daos.PocketDao;
+import model.MainAccount;
+import model.Pocket;
+import services.Mutation;
+import services.MutationListener;
+import services.PocketService;
+
+/*
+ * Persistencia asíncrona del PocketService. Cada mutación solo marca como sucio
+ * su bolsillo y la cuenta principal (varias mutaciones sobre el mismo bolsillo se
+ * funden en una fila, gana la versión mayor). Un hilo aparte escribe lo sucio en
+ * H2 con un batch MERGE por transacción cuando se junta batchSize bolsillos o
+ * pasa flushIntervalMillis.
+ *
+ * Como mucho hay capacity bolsillos pendientes (sucios + en escritura); si se
+ * llena, el hilo que hizo la mutación espera a que termine la escritura en curso.
+ */
+public class WriteBehindStore implements MutationListener, AutoCloseable {
+
+    private final PocketDao pocketDao = new PocketDao();
+    private final MainAccountDao accountDao = new MainAccountDao();
+
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition flushNeeded = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+
+    // protegido por lock
+    private Map<String, DirtyPocket> pockets = new HashMap<>();
+    private int writing;
+    private boolean accountDirty;
+    private double availableBalance;
+    private double totalBalance;
+    private long accountVersion = -1;
+    private boolean flushRequested;
+    private boolean closed;
+
+    // métricas, también bajo lock
+    private long mutations;
+    private long coalesced;
+    private long flushes;
+    private long rowsWritten;
+    private long failures;
+    private long backpressureWaits;
+    private long backpressureNanos;
+
+    private final Thread flusher;
+
+    public WriteBehindStore(int batchSize, long flushIntervalMillis, int capacity) {
+        if (batchSize < 1 || capacity < batchSize) throw new IllegalArgumentException("Invalid write-behind sizes");
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.capacity = capacity;
+        this.flusher = new Thread(this::run, "write-behind");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /*
+     * Carga el estado guardado o, si no hay, crea uno nuevo con initialAmount y lo
+     * deja marcado para el primer flush. El servicio queda escuchado por este store.
+     *
+     * Cualquier error de la base sale como SQLException: tomarlo como "no hay nada
+     * guardado" haría que el primer flush pise las filas buenas con un estado nuevo.
+     */
+    public PocketService load(double initialAmount) throws SQLException {
+        return load(initialAmount, PocketService.StoreType.IMMUTABLE);
+    }
+
+    public PocketService load(double initialAmount, PocketService.StoreType type) throws SQLException {
+        MainAccount saved;
+        List<Pocket> rows;
+        try (Connection conn = ConnectionManager.getInstance().getConnection()) {
+            if (conn == null) throw new SQLException("No database connection");
+            // cuenta y bolsillos de la misma transacción
+            conn.setAutoCommit(false);
+            try {
+                saved = accountDao.find(conn);
+                rows = saved == null ? List.of() : pocketDao.findAll(conn);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+        if (saved == null) {
+            PocketService service = new PocketService(type, initialAmount);
+            attach(service);
+            return service;
+        }
+        PocketService service = PocketService.restore(type, saved.getAvailableBalance(), saved.getTotalBalance(),
+                saved.getVersion(), rows);
+        System.out.println("Loaded " + rows.size() + " pockets at version " + saved.getVersion());
+        service.addMutationListener(this);
+        return service;
+    }
+
+    // para un servicio que viene de otra fuente (el log): se guarda completo y se sigue escuchando
+    public void attach(PocketService service) {
+        MainAccount account = service.getMainAccount();
+        lock.lock();
+        try {
+            for (Pocket pocket : account.getPockets()) {
+                pockets.put(pocket.getName(), new DirtyPocket(pocket.getBalance(), account.getVersion()));
+            }
+            markAccount(account.getAvailableBalance(), account.getTotalBalance(), account.getVersion());
+            flushNeeded.signal();
+        } finally {
+            lock.unlock();
+        }
+        service.addMutationListener(this);
+    }
+
+    @Override
+    public void onMutation(Mutation mutation) {
+        lock.lock();
+        try {
+            mutations++;
+            String name = mutation.getName();
+            if (name != null) {
+                DirtyPocket dirty = pockets.get(name);
+                if (dirty == null && pockets.size() + writing >= capacity && !closed) {
+                    long start = System.nanoTime();
+                    backpressureWaits++;
+                    while (!closed && (dirty = pockets.get(name)) == null && pockets.size() + writing >= capacity) {
+                        flushNeeded.signal();
+                        notFull.awaitUninterruptibly();
+                    }
+                    backpressureNanos += System.nanoTime() - start;
+                }
+                if (dirty == null) {
+                    pockets.put(name, new DirtyPocket(mutation.getPocketBalance(), mutation.getVersion()));
+                } else {
+                    coalesced++;
+                    if (mutation.getVersion() > dirty.version) {
+                        dirty.balance = mutation.getPocketBalance();
+                        dirty.version = mutation.getVersion();
+                    }
+                }
+                if (pockets.size() >= batchSize) flushNeeded.signal();
+            }
+            markAccount(mutation.getAvailableBalance(), mutation.getTotalBalance(), mutation.getVersion());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // bloquea hasta que todo lo sucio hasta este momento esté en la base o falle una escritura
+    public void flush() {
+        lock.lock();
+        try {
+            long failed = failures;
+            while ((!pockets.isEmpty() || accountDirty || writing > 0) && flusher.isAlive() && failures == failed) {
+                flushRequested = true;
+                flushNeeded.signal();
+                flushed.await(100, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        lock.lock();
+        try {
+            closed = true;
+            flushNeeded.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void markAccount(double available, double total, long version) {
+        if (version <= accountVersion) return;
+        availableBalance = available;
+        totalBalance = total;
+        accountVersion = version;
+        accountDirty = true;
+    }
+
+    private void run() {
+        while (true) {
+            Map<String, DirtyPocket> batch;
+            MainAccount account = null;
+            lock.lock();
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+                while (!closed && !flushRequested && pockets.size() < batchSize && remaining > 0) {
+                    remaining = flushNeeded.awaitNanos(remaining);
+                }
+                flushRequested = false;
+                if (pockets.isEmpty() && !accountDirty) {
+                    if (closed) return;
+                    continue;
+                }
+                batch = pockets;
+                pockets = new HashMap<>();
+                writing = batch.size();
+                if (accountDirty) {
+                    account = new MainAccount();
+                    account.setAvailableBalance(availableBalance);
+                    account.setTotalBalance(totalBalance);
+                    account.setVersion(accountVersion);
+                    accountDirty = false;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            boolean ok = write(batch, account);
+            boolean stop;
+
+            lock.lock();
+            try {
+                stop = closed;
+                writing = 0;
+                if (ok) {
+                    flushes++;
+                    rowsWritten += batch.size() + (account != null ? 1 : 0);
+                } else {
+                    failures++;
+                    requeue(batch, account);
+                }
+                notFull.signalAll();
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (!ok) {
+                // al cerrar no se reintenta para siempre: lo que quede se pierde con un aviso
+                if (stop) {
+                    System.err.println("Write-behind closed with unsaved changes");
+                    return;
+                }
+                pause();
+            }
+        }
+    }
+
+    private boolean write(Map<String, DirtyPocket> batch, MainAccount account) {
+        try (Connection conn = ConnectionManager.getInstance().getConnection()) {
+            if (conn == null) throw new SQLException("No database connection");
+            conn.setAutoCommit(false);
+            try {
+                if (!batch.isEmpty()) {
+                    List<Pocket> rows = new ArrayList<>(batch.size());
+                    for (Map.Entry<String, DirtyPocket> e : batch.entrySet()) {
+                        Pocket pocket = new Pocket();
+                        pocket.setName(e.getKey());
+                        pocket.setBalance(e.getValue().balance);
+                        rows.add(pocket);
+                    }
+                    pocketDao.upsertAll(conn, rows);
+                }
+                if (account != null) accountDao.upsert(conn, account);
+                conn.commit();
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // vuelve a marcar lo que no se pudo escribir, salvo que ya haya algo más nuevo
+    private void requeue(Map<String, DirtyPocket> batch, MainAccount account) {
+        for (Map.Entry<String, DirtyPocket> e : batch.entrySet()) {
+            DirtyPocket newer = pockets.get(e.getKey());
+            if (newer == null || newer.version < e.getValue().version) pockets.put(e.getKey(), e.getValue());
+        }
+        if (account != null && account.getVersion() >= accountVersion) {
+            accountVersion = -1;
+            markAccount(account.getAvailableBalance(), account.getTotalBalance(), account.getVersion());
+        }
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(Math.max(10, flushIntervalMillis));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---- métricas ----
+    public long getMutations() {
+        lock.lock();
+        try {
+            return mutations;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCoalesced() {
+        lock.lock();
+        try {
+            return coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFlushes() {
+        lock.lock();
+        try {
+            return flushes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRowsWritten() {
+        lock.lock();
+        try {
+            return rowsWritten;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFailures() {
+        lock.lock();
+        try {
+            return failures;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBackpressureWaits() {
+        lock.lock();
+        try {
+            return backpressureWaits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getBackpressureMillis() {
+        lock.lock();
+        try {
+            return backpressureNanos / 1e6;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class DirtyPocket {
+        private double balance;
+        private long version;
+
+        DirtyPocket(double balance, long version) {
+            this.balance = balance;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package services;
+
+/*
+ * Estado inmutable de la cuenta. Cada operación produce un AccountState nuevo con
+ * version + 1 que comparte casi toda la estructura con el anterior; quien tenga
+ * una referencia ve una vista consistente sin copiar nada.
+ */
+final class AccountState {
+
+    // par nombre/saldo inmutable guardado en el vector
+    static final class PocketBalance {
+        final String name;
+        final double balance;
+
+        PocketBalance(String name, double balance) {
+            this.name = name;
+            this.balance = balance;
+        }
+    }
+
+    final double availableBalance;
+    final double totalBalance;
+    final long version;
+    final PersistentVector<PocketBalance> pockets;
+
+    AccountState(double availableBalance, double totalBalance, long version, PersistentVector<PocketBalance> pockets) {
+        this.availableBalance = availableBalance;
+        this.totalBalance = totalBalance;
+        this.version = version;
+        this.pockets = pockets;
+    }
+
+    AccountState withPocket(int slot, double balance, double availableBalance) {
+        PocketBalance old = pockets.get(slot);
+        return new AccountState(availableBalance, totalBalance, version + 1,
+                pockets.set(slot, new PocketBalance(old.name, balance)));
+    }
+
+    AccountState withNewPocket(String name, double balance, double availableBalance) {
+        return new AccountState(availableBalance, totalBalance, version + 1,
+                pockets.append(new PocketBalance(name, balance)));
+    }
+
+    AccountState withBalances(double availableBalance, double totalBalance) {
+        return new AccountState(availableBalance, totalBalance, version + 1, pockets);
+    }
+}
@@ -0,0 +1,72 @@
+package services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import model.MainAccount;
+import model.Pocket;
+
+public class BatchResult {
+
+    public enum Status {
+        OK,
+        ERROR,
+        ROLLED_BACK,
+        SKIPPED
+    }
+
+    // resultado de cada sub-operación, en el mismo orden del batch
+    public static class Item {
+        private final Status status;
+        private final String message;
+        private final Pocket pocket;
+        private final MainAccount account;
+
+        Item(Status status, String message, Pocket pocket, MainAccount account) {
+            this.status = status;
+            this.message = message;
+            this.pocket = pocket;
+            this.account = account;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public Pocket getPocket() {
+            return pocket;
+        }
+
+        public MainAccount getAccount() {
+            return account;
+        }
+    }
+
+    private final List<Item> items = new ArrayList<>();
+    private boolean committed;
+    private MainAccount account;
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    void setCommitted(boolean committed) {
+        this.committed = committed;
+    }
+
+    public MainAccount getAccount() {
+        return account;
+    }
+
+    void setAccount(MainAccount account) {
+        this.account = account;
+    }
+}
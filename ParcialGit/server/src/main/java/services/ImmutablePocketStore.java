@@ -0,0 +1,424 @@
+package services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+import model.MainAccount;
+import model.Pocket;
+
+/*
+ * El estado completo vive en un AccountState inmutable publicado en una
+ * AtomicReference. Cada mutación calcula el estado siguiente (copiando solo el
+ * camino del bolsillo tocado) y lo publica por CAS; si otro hilo ganó, se
+ * reintenta sobre el estado nuevo. Las validaciones se hacen sobre el estado que
+ * se va a reemplazar, así que no hay sobregiros y total = disponible +
+ * suma(bolsillos) vale en cada versión.
+ *
+ * Como todas las operaciones de bolsillo mueven el disponible, el único punto de
+ * contención sigue siendo ese valor, ahora dentro del CAS de la raíz. Las lecturas
+ * y las respuestas toman una vista en O(1) sin lock.
+ */
+final class ImmutablePocketStore implements PocketStore {
+
+    private final PocketService owner;
+
+    private final AtomicReference<AccountState> state;
+    // nombre -> posición en el vector; solo crece porque los bolsillos no se borran.
+    // Un alta registra la posición antes de su CAS: quien vea el bolsillo en la raíz
+    // ya lo encuentra acá, y slotOf ignora las posiciones que su estado no alcanza
+    private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+    // serializa altas de bolsillos y BATCH para que un nombre no reciba dos posiciones;
+    // los listeners se avisan afuera, así un fsync no frena las demás altas
+    private final Object createLock = new Object();
+    // un BATCH que perdió OPTIMISTIC_BATCH_ATTEMPTS CAS lo prende (bajo createLock) y
+    // las escrituras sueltas esperan en createLock a que publique antes de su próximo CAS
+    private volatile boolean exclusive;
+    private static final int OPTIMISTIC_BATCH_ATTEMPTS = 3;
+    // nombres ordenados para LIST_POCKETS; se arma la primera vez que se pide y
+    // después se mantiene bajo createLock junto con slots
+    private volatile ConcurrentSkipListSet<String> sortedNames;
+
+    ImmutablePocketStore(PocketService owner, double availableBalance, double totalBalance, long version,
+            String[] names, double[] balances, int count) {
+        this.owner = owner;
+        Object[] entries = new Object[count];
+        for (int i = 0; i < count; i++) {
+            entries[i] = new AccountState.PocketBalance(names[i], balances[i]);
+            slots.put(names[i], i);
+        }
+        this.state = new AtomicReference<>(new AccountState(availableBalance, totalBalance, version,
+                PersistentVector.of(entries, count)));
+    }
+
+    @Override
+    public Pocket addPocket(String name, double initialAmount) {
+        Integer slot = slotOf(name, state.get(), Map.of());
+        if (slot == null) {
+            AccountState next = null;
+            int created = -1;
+            synchronized (createLock) {
+                slot = slots.get(name);
+                if (slot == null) {
+                    // solo las altas (bajo este lock) agrandan el vector: la posición no cambia hasta el CAS
+                    created = state.get().pockets.size();
+                    slots.put(name, created);
+                    if (sortedNames != null) sortedNames.add(name);
+                    try {
+                        next = commit(s -> createPocket(s, name, initialAmount));
+                    } catch (RuntimeException e) {
+                        slots.remove(name);
+                        if (sortedNames != null) sortedNames.remove(name);
+                        throw e;
+                    }
+                }
+            }
+            if (next != null) {
+                publish(PocketOperation.Type.ADD_POCKET, initialAmount, next, created);
+                return attach(next, created);
+            }
+        }
+        int existing = slot;
+        AccountState next = commit(s -> credit(s, existing, initialAmount));
+        publish(PocketOperation.Type.ADD_POCKET, initialAmount, next, existing);
+        return attach(next, existing);
+    }
+
+    @Override
+    public Pocket depositInPocket(String name, double amount) {
+        int slot = requireSlot(name, state.get());
+        AccountState next = commit(s -> credit(s, slot, amount));
+        publish(PocketOperation.Type.DEPOSIT_POCKET, amount, next, slot);
+        return attach(next, slot);
+    }
+
+    @Override
+    public Pocket withdrawFromPocket(String name, double amount) {
+        int slot = requireSlot(name, state.get());
+        AccountState next = commit(s -> debit(s, slot, amount));
+        publish(PocketOperation.Type.WITHDRAW_POCKET, amount, next, slot);
+        return attach(next, slot);
+    }
+
+    @Override
+    public MainAccount depositInAccount(double amount) {
+        AccountState next = commit(s -> s.withBalances(s.availableBalance + amount, s.totalBalance + amount));
+        publish(PocketOperation.Type.DEPOSIT_ACCOUNT, amount, next, -1);
+        return view(next);
+    }
+
+    // sin locks: el retiro y el depósito son dos pasos de la misma transición y se publican con un CAS
+    @Override
+    public PocketTransfer transferBetweenPockets(String from, String to, double amount) {
+        AccountState current = state.get();
+        int source = requireSlot(from, current);
+        int target = requireSlot(to, current);
+        AccountState[] debited = new AccountState[1];
+        AccountState next = commit(s -> {
+            debited[0] = debit(s, source, amount);
+            return credit(debited[0], target, amount);
+        });
+        if (owner.hasListeners()) {
+            owner.publishAll(List.of(mutation(PocketOperation.Type.WITHDRAW_POCKET, amount, debited[0], source),
+                    mutation(PocketOperation.Type.DEPOSIT_POCKET, amount, next, target)));
+        }
+        return new PocketTransfer(pocketAt(next, source), pocketAt(next, target), view(next));
+    }
+
+    /*
+     * Todas las operaciones se aplican sobre una misma cadena de estados y se
+     * publican con un solo CAS, con una sola vista final. Con atomic = true la
+     * primera falla descarta la cadena entera: no hay nada que deshacer.
+     */
+    @Override
+    public BatchResult executeBatch(List<PocketOperation> operations, boolean atomic) {
+        List<Mutation> mutations = new ArrayList<>();
+        BatchResult result;
+        synchronized (createLock) {
+            try {
+                result = commitBatch(operations, atomic, mutations);
+            } finally {
+                exclusive = false;
+            }
+        }
+        if (!mutations.isEmpty()) owner.publishAll(mutations);
+        return result;
+    }
+
+    /*
+     * Deja en mutations lo que hay que avisar a los listeners si el batch se publica.
+     * Primero prueba sin frenar a nadie; si otras escrituras le ganan el CAS varias
+     * veces pasa a modo exclusivo. Desde ahí cada escritor puede adelantarse a lo sumo
+     * una vez más (el CAS que ya tenía en curso), así que el batch termina en un
+     * número acotado de vueltas.
+     */
+    private BatchResult commitBatch(List<PocketOperation> operations, boolean atomic, List<Mutation> mutations) {
+        for (int attempt = 1; ; attempt++) {
+            if (attempt > OPTIMISTIC_BATCH_ATTEMPTS) exclusive = true;
+            AccountState current = state.get();
+            AccountState next = current;
+            Map<String, Integer> created = new HashMap<>();
+            BatchResult result = new BatchResult();
+            // estados intermedios para avisar a los listeners si el batch se publica
+            List<AccountState> steps = owner.hasListeners() ? new ArrayList<>() : null;
+            List<PocketOperation> applied = steps != null ? new ArrayList<>() : null;
+
+            boolean failed = false;
+            for (PocketOperation op : operations) {
+                if (failed) {
+                    result.getItems().add(new BatchResult.Item(BatchResult.Status.SKIPPED, null, null, null));
+                    continue;
+                }
+                try {
+                    next = apply(next, op, created);
+                    result.getItems().add(itemFor(next, op, created));
+                    if (steps != null) {
+                        steps.add(next);
+                        applied.add(op);
+                    }
+                } catch (IllegalArgumentException | IllegalStateException ex) {
+                    result.getItems().add(new BatchResult.Item(BatchResult.Status.ERROR, ex.getMessage(), null, null));
+                    failed = atomic;
+                }
+            }
+
+            if (failed) {
+                List<BatchResult.Item> items = result.getItems();
+                for (int i = 0; i < items.size(); i++) {
+                    if (items.get(i).getStatus() == BatchResult.Status.OK) {
+                        items.set(i, new BatchResult.Item(BatchResult.Status.ROLLED_BACK, null, null, null));
+                    }
+                }
+                result.setCommitted(false);
+                result.setAccount(view(current));
+                return result;
+            }
+            // las posiciones nuevas se registran antes del CAS, igual que en addPocket
+            slots.putAll(created);
+            if (!state.compareAndSet(current, next)) {
+                // otro hilo movió el estado mientras tanto: se recalcula el batch completo
+                slots.keySet().removeAll(created.keySet());
+                continue;
+            }
+            if (sortedNames != null) sortedNames.addAll(created.keySet());
+            if (steps != null) {
+                for (int i = 0; i < steps.size(); i++) {
+                    PocketOperation op = applied.get(i);
+                    AccountState step = steps.get(i);
+                    int slot = op.getType() == PocketOperation.Type.DEPOSIT_ACCOUNT
+                            ? -1 : slotOf(op.getName(), step, created);
+                    mutations.add(mutation(op.getType(), op.getAmount(), step, slot));
+                }
+            }
+            result.setCommitted(true);
+            result.setAccount(view(next));
+            return result;
+        }
+    }
+
+    @Override
+    public MainAccount getMainAccount() {
+        return view(state.get());
+    }
+
+    /*
+     * Página ordenada por nombre: los que siguen a after (exclusivo) y empiezan con
+     * prefix, hasta limit. Los saldos salen todos del mismo estado; un bolsillo
+     * creado después de ese estado no aparece aunque ya esté en el índice.
+     */
+    @Override
+    public PocketPage listPockets(String after, String prefix, int limit) {
+        AccountState s = state.get();
+        NavigableSet<String> names = sortedNames();
+        NavigableSet<String> from;
+        if (after != null && (prefix == null || after.compareTo(prefix) >= 0)) {
+            from = names.tailSet(after, false);
+        } else if (prefix != null) {
+            from = names.tailSet(prefix, true);
+        } else {
+            from = names;
+        }
+        List<Pocket> page = new ArrayList<>(Math.min(limit, 64));
+        String next = null;
+        for (String name : from) {
+            if (prefix != null && !name.startsWith(prefix)) break;
+            Integer slot = slots.get(name);
+            if (slot == null || slot >= s.pockets.size()) continue;
+            if (page.size() == limit) {
+                next = page.get(limit - 1).getName();
+                break;
+            }
+            page.add(pocketAt(s, slot));
+        }
+        return new PocketPage(page, next, s.version);
+    }
+
+    private NavigableSet<String> sortedNames() {
+        ConcurrentSkipListSet<String> names = sortedNames;
+        if (names == null) {
+            synchronized (createLock) {
+                names = sortedNames;
+                if (names == null) {
+                    // desde un SortedSet la skip list se arma en tiempo lineal
+                    names = new ConcurrentSkipListSet<>(new TreeSet<>(slots.keySet()));
+                    sortedNames = names;
+                }
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public Pocket getPocket(String name) {
+        AccountState s = state.get();
+        return attach(s, requireSlot(name, s));
+    }
+
+    // ---- helpers ----
+    private AccountState commit(UnaryOperator<AccountState> transition) {
+        while (true) {
+            if (exclusive) awaitBatch();
+            AccountState current = state.get();
+            // lanza IllegalArgumentException / IllegalStateException si no es válida sobre current
+            AccountState next = transition.apply(current);
+            if (state.compareAndSet(current, next)) return next;
+        }
+    }
+
+    // el batch exclusivo tiene createLock hasta publicar; las altas ya lo tienen y nunca ven exclusive
+    private void awaitBatch() {
+        synchronized (createLock) {
+            // nada: solo esperar a que el batch suelte el lock
+        }
+    }
+
+    // slot < 0: la mutación no toca bolsillos
+    private void publish(PocketOperation.Type type, double amount, AccountState s, int slot) {
+        if (!owner.hasListeners()) return;
+        String name = null;
+        double balance = 0;
+        if (slot >= 0) {
+            AccountState.PocketBalance entry = s.pockets.get(slot);
+            name = entry.name;
+            balance = entry.balance;
+        }
+        owner.publish(type, name, amount, balance, s.availableBalance, s.totalBalance, s.version);
+    }
+
+    private Mutation mutation(PocketOperation.Type type, double amount, AccountState s, int slot) {
+        String name = null;
+        double balance = 0;
+        if (slot >= 0) {
+            AccountState.PocketBalance entry = s.pockets.get(slot);
+            name = entry.name;
+            balance = entry.balance;
+        }
+        return owner.mutation(type, name, amount, balance, s.availableBalance, s.totalBalance, s.version);
+    }
+
+    private static AccountState createPocket(AccountState s, String name, double initialAmount) {
+        if (s.availableBalance < initialAmount)
+            throw new IllegalStateException("Insufficient funds in main account");
+        return s.withNewPocket(name, initialAmount, s.availableBalance - initialAmount);
+    }
+
+    private static AccountState credit(AccountState s, int slot, double amount) {
+        if (s.availableBalance < amount)
+            throw new IllegalStateException("Insufficient funds in main account");
+        return s.withPocket(slot, s.pockets.get(slot).balance + amount, s.availableBalance - amount);
+    }
+
+    private static AccountState debit(AccountState s, int slot, double amount) {
+        double balance = s.pockets.get(slot).balance;
+        if (balance < amount)
+            throw new IllegalStateException("Insufficient funds in pocket");
+        return s.withPocket(slot, balance - amount, s.availableBalance + amount);
+    }
+
+    private AccountState apply(AccountState s, PocketOperation op, Map<String, Integer> created) {
+        PocketService.validate(op);
+        String name = op.getName();
+        double amount = op.getAmount();
+        switch (op.getType()) {
+            case ADD_POCKET: {
+                Integer slot = slotOf(name, s, created);
+                if (slot != null) return credit(s, slot, amount);
+                AccountState next = createPocket(s, name, amount);
+                created.put(name, next.pockets.size() - 1);
+                return next;
+            }
+            case DEPOSIT_POCKET: {
+                return credit(s, requireSlot(name, s, created), amount);
+            }
+            case WITHDRAW_POCKET: {
+                return debit(s, requireSlot(name, s, created), amount);
+            }
+            case DEPOSIT_ACCOUNT: {
+                return s.withBalances(s.availableBalance + amount, s.totalBalance + amount);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown action");
+        }
+    }
+
+    private BatchResult.Item itemFor(AccountState s, PocketOperation op, Map<String, Integer> created) {
+        if (op.getType() == PocketOperation.Type.DEPOSIT_ACCOUNT) {
+            MainAccount totals = new MainAccount();
+            totals.setAvailableBalance(s.availableBalance);
+            totals.setTotalBalance(s.totalBalance);
+            totals.setVersion(s.version);
+            return new BatchResult.Item(BatchResult.Status.OK, null, null, totals);
+        }
+        return new BatchResult.Item(BatchResult.Status.OK, null, pocketAt(s, slotOf(op.getName(), s, created)), null);
+    }
+
+    private Integer slotOf(String name, AccountState s, Map<String, Integer> created) {
+        if (name == null) return null;
+        Integer slot = created.get(name);
+        if (slot != null) return slot;
+        slot = slots.get(name);
+        // una posición más allá del tamaño pertenece a un estado más nuevo que s
+        return slot != null && slot < s.pockets.size() ? slot : null;
+    }
+
+    private int requireSlot(String name, AccountState s, Map<String, Integer> created) {
+        Integer slot = slotOf(name, s, created);
+        if (slot == null) throw new IllegalArgumentException("Pocket not found: " + name);
+        return slot;
+    }
+
+    private int requireSlot(String name, AccountState s) {
+        return requireSlot(name, s, Map.of());
+    }
+
+    private static Pocket pocketAt(AccountState s, int slot) {
+        AccountState.PocketBalance entry = s.pockets.get(slot);
+        Pocket out = new Pocket();
+        out.setName(entry.name);
+        out.setBalance(entry.balance);
+        return out;
+    }
+
+    private static Pocket attach(AccountState s, int slot) {
+        Pocket out = pocketAt(s, slot);
+        out.setMainAccount(view(s));
+        return out;
+    }
+
+    // O(1): la lista de bolsillos es una vista sobre el vector inmutable
+    private static MainAccount view(AccountState s) {
+        MainAccount acc = new MainAccount();
+        acc.setAvailableBalance(s.availableBalance);
+        acc.setTotalBalance(s.totalBalance);
+        acc.setVersion(s.version);
+        acc.setPockets(new PocketListView(s.pockets));
+        return acc;
+    }
+}
@@ -0,0 +1,63 @@
+package services;
+
+/*
+ * Una mutación ya publicada: valores absolutos después de aplicarla más la versión
+ * del estado que la contiene. Con eso un consumidor puede descartar lo que llegue
+ * fuera de orden quedándose con la versión mayor.
+ */
+public final class Mutation {
+
+    private final PocketOperation.Type type;
+    private final String name;
+    private final double amount;
+    private final double pocketBalance;
+    private final double availableBalance;
+    private final double totalBalance;
+    private final long version;
+    private final long timestamp;
+
+    Mutation(PocketOperation.Type type, String name, double amount, double pocketBalance,
+            double availableBalance, double totalBalance, long version, long timestamp) {
+        this.type = type;
+        this.name = name;
+        this.amount = amount;
+        this.pocketBalance = pocketBalance;
+        this.availableBalance = availableBalance;
+        this.totalBalance = totalBalance;
+        this.version = version;
+        this.timestamp = timestamp;
+    }
+
+    public PocketOperation.Type getType() {
+        return type;
+    }
+
+    // null para DEPOSIT_ACCOUNT
+    public String getName() {
+        return name;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public double getPocketBalance() {
+        return pocketBalance;
+    }
+
+    public double getAvailableBalance() {
+        return availableBalance;
+    }
+
+    public double getTotalBalance() {
+        return totalBalance;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
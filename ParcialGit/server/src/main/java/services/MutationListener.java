@@ -0,0 +1,20 @@
+package services;
+
+import java.util.List;
+
+/*
+ * Se llama en el hilo que hizo el commit, después del CAS; puede llegar fuera de
+ * orden. Si lanza, el servicio deja de aceptar escrituras (PocketService.halt):
+ * la mutación ya es visible pero quien la persiste no pudo.
+ */
+@FunctionalInterface
+public interface MutationListener {
+    void onMutation(Mutation mutation);
+
+    // los pasos de una operación compuesta (transferencia, batch), con versiones consecutivas
+    default void onMutations(List<Mutation> mutations) {
+        for (Mutation mutation : mutations) {
+            onMutation(mutation);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package services;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/*
+ * Vector inmutable con estructura compartida: un trie de 32 hijos por nodo.
+ * set/append copian solo el camino de la raíz a la hoja (log32 n nodos), así que
+ * cada versión cuesta O(log n) y todas las versiones anteriores siguen siendo
+ * válidas para quien las esté leyendo.
+ */
+final class PersistentVector<T> implements Iterable<T> {
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private static final PersistentVector<Object> EMPTY = new PersistentVector<>(0, 0, new Object[WIDTH]);
+
+    private final int size;
+    // shift == 0: la raíz es una hoja
+    private final int shift;
+    private final Object[] root;
+
+    private PersistentVector(int size, int shift, Object[] root) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> PersistentVector<T> empty() {
+        return (PersistentVector<T>) EMPTY;
+    }
+
+    // construcción en bloque, O(n): arma las hojas y sube nivel por nivel sin copias intermedias
+    static <T> PersistentVector<T> of(Object[] items, int count) {
+        if (count == 0) return empty();
+        Object[] level = new Object[(count + MASK) >>> BITS];
+        for (int i = 0; i < level.length; i++) {
+            Object[] leaf = new Object[WIDTH];
+            System.arraycopy(items, i << BITS, leaf, 0, Math.min(WIDTH, count - (i << BITS)));
+            level[i] = leaf;
+        }
+        int shift = 0;
+        while (level.length > 1) {
+            Object[] parents = new Object[(level.length + MASK) >>> BITS];
+            for (int i = 0; i < parents.length; i++) {
+                Object[] node = new Object[WIDTH];
+                System.arraycopy(level, i << BITS, node, 0, Math.min(WIDTH, level.length - (i << BITS)));
+                parents[i] = node;
+            }
+            level = parents;
+            shift += BITS;
+        }
+        return new PersistentVector<>(count, shift, (Object[]) level[0]);
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException(index);
+        return (T) leafFor(index)[index & MASK];
+    }
+
+    PersistentVector<T> set(int index, T value) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException(index);
+        return new PersistentVector<>(size, shift, set(shift, root, index, value));
+    }
+
+    PersistentVector<T> append(T value) {
+        if (size == 1 << (shift + BITS)) {
+            // raíz llena: el árbol crece un nivel
+            Object[] newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            return new PersistentVector<>(size + 1, shift + BITS, push(shift + BITS, newRoot, size, value));
+        }
+        return new PersistentVector<>(size + 1, shift, push(shift, root, size, value));
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int index;
+            private Object[] leaf;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (index >= size) throw new NoSuchElementException();
+                if ((index & MASK) == 0 || leaf == null) leaf = leafFor(index);
+                return (T) leaf[index++ & MASK];
+            }
+        };
+    }
+
+    private Object[] leafFor(int index) {
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(index >>> level) & MASK];
+        }
+        return node;
+    }
+
+    private static Object[] set(int level, Object[] node, int index, Object value) {
+        Object[] copy = node.clone();
+        if (level == 0) {
+            copy[index & MASK] = value;
+        } else {
+            int child = (index >>> level) & MASK;
+            copy[child] = set(level - BITS, (Object[]) node[child], index, value);
+        }
+        return copy;
+    }
+
+    private static Object[] push(int level, Object[] node, int index, Object value) {
+        Object[] copy = node == null ? new Object[WIDTH] : node.clone();
+        if (level == 0) {
+            copy[index & MASK] = value;
+        } else {
+            int child = (index >>> level) & MASK;
+            copy[child] = push(level - BITS, (Object[]) copy[child], index, value);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,50 @@
+package services;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.RandomAccess;
+
+import model.Pocket;
+
+// lista de solo lectura sobre un AccountState: los Pocket se crean al leerlos
+final class PocketListView extends AbstractList<Pocket> implements RandomAccess {
+
+    private final PersistentVector<AccountState.PocketBalance> pockets;
+
+    PocketListView(PersistentVector<AccountState.PocketBalance> pockets) {
+        this.pockets = pockets;
+    }
+
+    @Override
+    public Pocket get(int index) {
+        return toPocket(pockets.get(index));
+    }
+
+    @Override
+    public int size() {
+        return pockets.size();
+    }
+
+    @Override
+    public Iterator<Pocket> iterator() {
+        Iterator<AccountState.PocketBalance> it = pockets.iterator();
+        return new Iterator<Pocket>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Pocket next() {
+                return toPocket(it.next());
+            }
+        };
+    }
+
+    private static Pocket toPocket(AccountState.PocketBalance entry) {
+        Pocket p = new Pocket();
+        p.setName(entry.name);
+        p.setBalance(entry.balance);
+        return p;
+    }
+}
@@ -0,0 +1,34 @@
+package services;
+
+// una sub-operación de un BATCH
+public class PocketOperation {
+
+    public enum Type {
+        ADD_POCKET,
+        DEPOSIT_POCKET,
+        WITHDRAW_POCKET,
+        DEPOSIT_ACCOUNT
+    }
+
+    private final Type type;
+    private final String name;
+    private final double amount;
+
+    public PocketOperation(Type type, String name, double amount) {
+        this.type = type;
+        this.name = name;
+        this.amount = amount;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+}
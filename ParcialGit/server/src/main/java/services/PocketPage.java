@@ -0,0 +1,32 @@
+package services;
+
+import java.util.List;
+
+import model.Pocket;
+
+// una página de LIST_POCKETS, leída de un solo estado
+public class PocketPage {
+
+    private final List<Pocket> pockets;
+    // nombre desde el que sigue la próxima página; null si no hay más
+    private final String next;
+    private final long version;
+
+    PocketPage(List<Pocket> pockets, String next, long version) {
+        this.pockets = pockets;
+        this.next = next;
+        this.version = version;
+    }
+
+    public List<Pocket> getPockets() {
+        return pockets;
+    }
+
+    public String getNext() {
+        return next;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
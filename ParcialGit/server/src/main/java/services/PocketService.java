@@ -1,141 +1,229 @@
 package services;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import model.MainAccount;
 import model.Pocket;
 
-public class PocketService {
+/*
+ * Fachada del estado de la cuenta: valida los argumentos y delega en un
+ * PocketStore. IMMUTABLE (por defecto) publica estados inmutables por CAS con
+ * vistas O(1); PRIMITIVE/OFF_HEAP guardan los saldos como centavos en arreglos
+ * de long (en el heap o fuera de él) con nombres internados a ids densos, para
+ * cuentas con millones de bolsillos.
+ *
+ * Después de cada commit se avisa a los MutationListener registrados (persistencia,
+ * etc.) con los valores absolutos resultantes. Si un listener falla el servicio
+ * queda detenido para escrituras (fail-stop): lo que ya está en memoria no es
+ * durable y nada posterior debe apoyarse en eso. Las lecturas siguen.
+ */
+public final class PocketService {
+
+    public enum StoreType {
+        IMMUTABLE,
+        PRIMITIVE,
+        OFF_HEAP
+    }
+
+    // el largo de la columna en la base; también acota el registro del log
+    static final int MAX_NAME_LENGTH = 255;
 
-    private final MainAccount mainAccount;
-    private final Map<String, Pocket> pockets = new HashMap<>();
+    private final PocketStore store;
+    private final List<MutationListener> listeners = new CopyOnWriteArrayList<>();
+    // primera falla de un listener; desde ahí toda escritura se rechaza
+    private volatile RuntimeException halted;
 
     public PocketService(double initialAmount) {
+        this(StoreType.IMMUTABLE, initialAmount);
+    }
+
+    public PocketService(StoreType type, double initialAmount) {
         if (initialAmount < 0) throw new IllegalArgumentException("Initial amount must be >= 0");
-        this.mainAccount = new MainAccount();
-        this.mainAccount.setAvailableBalance(initialAmount);
-        this.mainAccount.setTotalBalance(initialAmount);
+        this.store = createStore(type, initialAmount, initialAmount, 0, new String[0], new double[0], 0);
+    }
 
-        // Si tu MainAccount(initialAmount) no existe, usa:
-        // this.mainAccount = new MainAccount();
-        // this.mainAccount.setAvailableBalance(initialAmount);
-        // this.mainAccount.setTotalBalance(initialAmount);
+    private PocketService(StoreType type, double availableBalance, double totalBalance, long version,
+            String[] names, double[] balances, int count) {
+        this.store = createStore(type, availableBalance, totalBalance, version, names, balances, count);
     }
 
-    public synchronized Pocket addPocket(String name, double initialAmount) throws Exception {
-        if (name == null || name.isBlank()) throw new IllegalArgumentException("Pocket name is required");
-        if (initialAmount < 0) throw new IllegalArgumentException("Initial amount must be >= 0");
-        if (mainAccount.getAvailableBalance() < initialAmount)
-            throw new IllegalStateException("Insufficient funds in main account");
-
-        Pocket p = pockets.get(name);
-        if (p == null) {
-            p = new Pocket();
-            p.setName(name);
-            p.setBalance(0.0);
-            pockets.put(name, p);
-            // refleja en la lista del MainAccount (si existe)
-            if (mainAccount.getPockets() != null) {
-                List<Pocket> list = new ArrayList<>(mainAccount.getPockets());
-                list.add(p);
-                // Si no tienes setPockets, agrega uno a uno:
-                // mainAccount.addPocket(p);
-                // Para mantener compatibilidad, intentamos addPocket si existe:
-                try { mainAccount.addPocket(p); } catch (Throwable ignore) {}
-            }
+    private PocketStore createStore(StoreType type, double availableBalance, double totalBalance, long version,
+            String[] names, double[] balances, int count) {
+        switch (type) {
+            case PRIMITIVE:
+                return new PrimitivePocketStore(this, false, availableBalance, totalBalance, version, names, balances, count);
+            case OFF_HEAP:
+                return new PrimitivePocketStore(this, true, availableBalance, totalBalance, version, names, balances, count);
+            default:
+                return new ImmutablePocketStore(this, availableBalance, totalBalance, version, names, balances, count);
         }
+    }
 
-        p.setBalance(p.getBalance() + initialAmount);
-        mainAccount.setAvailableBalance(mainAccount.getAvailableBalance() - initialAmount);
-        return attach(p);
+    // reconstruye el servicio a partir de un estado guardado, en el orden dado
+    public static PocketService restore(double availableBalance, double totalBalance, long version, List<Pocket> pockets) {
+        return restore(StoreType.IMMUTABLE, availableBalance, totalBalance, version, pockets);
     }
 
-    public synchronized Pocket depositInPocket(String name, double amount) throws Exception {
-        if (amount <= 0) throw new IllegalArgumentException("Amount must be > 0");
-        Pocket p = requirePocket(name);
-        if (mainAccount.getAvailableBalance() < amount)
-            throw new IllegalStateException("Insufficient funds in main account");
+    public static PocketService restore(StoreType type, double availableBalance, double totalBalance, long version,
+            List<Pocket> pockets) {
+        String[] names = new String[pockets.size()];
+        double[] balances = new double[pockets.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = pockets.get(i).getName();
+            balances[i] = pockets.get(i).getBalance();
+        }
+        return restore(type, availableBalance, totalBalance, version, names, balances, names.length);
+    }
+
+    // variante sin objetos intermedios para cargas grandes (checkpoints)
+    public static PocketService restore(double availableBalance, double totalBalance, long version,
+            String[] names, double[] balances, int count) {
+        return restore(StoreType.IMMUTABLE, availableBalance, totalBalance, version, names, balances, count);
+    }
+
+    public static PocketService restore(StoreType type, double availableBalance, double totalBalance, long version,
+            String[] names, double[] balances, int count) {
+        return new PocketService(type, availableBalance, totalBalance, version, names, balances, count);
+    }
+
+    public void addMutationListener(MutationListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeMutationListener(MutationListener listener) {
+        listeners.remove(listener);
+    }
 
-        p.setBalance(p.getBalance() + amount);
-        mainAccount.setAvailableBalance(mainAccount.getAvailableBalance() - amount);
-        return attach(p);
+    // deja de aceptar escrituras; lo llama la persistencia cuando ya no puede garantizar durabilidad
+    public void halt(RuntimeException cause) {
+        if (halted == null) halted = cause;
     }
 
-    public synchronized Pocket withdrawFromPocket(String name, double amount) throws Exception {
+    public boolean isHalted() {
+        return halted != null;
+    }
+
+    public Pocket addPocket(String name, double initialAmount) throws Exception {
+        if (name == null || name.isBlank()) throw new IllegalArgumentException("Pocket name is required");
+        if (name.length() > MAX_NAME_LENGTH) throw new IllegalArgumentException("Pocket name too long");
+        if (initialAmount < 0) throw new IllegalArgumentException("Initial amount must be >= 0");
+        checkWritable();
+        return store.addPocket(name, initialAmount);
+    }
+
+    public Pocket depositInPocket(String name, double amount) throws Exception {
         if (amount <= 0) throw new IllegalArgumentException("Amount must be > 0");
-        Pocket p = requirePocket(name);
-        if (p.getBalance() < amount)
-            throw new IllegalStateException("Insufficient funds in pocket");
+        checkWritable();
+        return store.depositInPocket(name, amount);
+    }
+
+    public Pocket withdrawFromPocket(String name, double amount) throws Exception {
+        if (amount <= 0) throw new IllegalArgumentException("Amount must be > 0");
+        checkWritable();
+        return store.withdrawFromPocket(name, amount);
+    }
 
-        p.setBalance(p.getBalance() - amount);
-        mainAccount.setAvailableBalance(mainAccount.getAvailableBalance() + amount);
-        return attach(p);
+    public MainAccount depositInAccount(double amount) {
+        if (amount <= 0) throw new IllegalArgumentException("Amount must be > 0");
+        checkWritable();
+        return store.depositInAccount(amount);
     }
 
-    public synchronized MainAccount depositInAccount(double amount) {
+    /*
+     * Mueve amount de un bolsillo a otro en un solo commit: el disponible no
+     * cambia y nadie ve un estado intermedio. Los listeners reciben un
+     * WITHDRAW_POCKET y un DEPOSIT_POCKET con versiones consecutivas, igual que
+     * un BATCH de esas dos operaciones.
+     */
+    public PocketTransfer transferBetweenPockets(String from, String to, double amount) {
+        if (from == null || from.isBlank() || to == null || to.isBlank())
+            throw new IllegalArgumentException("Source and target pockets are required");
+        if (from.equals(to)) throw new IllegalArgumentException("Cannot transfer to the same pocket");
         if (amount <= 0) throw new IllegalArgumentException("Amount must be > 0");
-        mainAccount.setAvailableBalance(mainAccount.getAvailableBalance() + amount);
-        mainAccount.setTotalBalance(mainAccount.getTotalBalance() + amount);
-        return snapshot();
+        checkWritable();
+        return store.transferBetweenPockets(from, to, amount);
     }
 
-    public synchronized MainAccount getMainAccount() {
-        return snapshot();
+    /*
+     * Todas las operaciones se validan y aplican en orden y se publican juntas.
+     * Con atomic = true la primera falla descarta el batch entero.
+     */
+    public BatchResult executeBatch(List<PocketOperation> operations, boolean atomic) {
+        checkWritable();
+        return store.executeBatch(operations, atomic);
     }
 
-    public synchronized Pocket getPocket(String name) {
-        Pocket p = requirePocket(name);
-        return attach(p);
+    public MainAccount getMainAccount() {
+        return store.getMainAccount();
     }
 
-    // ---- helpers ----
-    private Pocket requirePocket(String name) {
-        Pocket p = pockets.get(name);
-        if (p == null) throw new IllegalArgumentException("Pocket not found: " + name);
-        return p;
+    public Pocket getPocket(String name) {
+        return store.getPocket(name);
     }
 
-    private Pocket attach(Pocket p) {
-        // copia del bolsillo
-        Pocket out = new Pocket();
-        out.setName(p.getName());
-        out.setBalance(p.getBalance());
+    /*
+     * Página ordenada por nombre: los que siguen a after (exclusivo) y empiezan con
+     * prefix, hasta limit.
+     */
+    public PocketPage listPockets(String after, String prefix, int limit) {
+        if (limit < 1) throw new IllegalArgumentException("Limit must be > 0");
+        return store.listPockets(after, prefix, limit);
+    }
 
-        // snapshot de la cuenta
-        MainAccount acc = new MainAccount();
-        acc.setAvailableBalance(mainAccount.getAvailableBalance());
-        acc.setTotalBalance(mainAccount.getTotalBalance());
+    // ---- para los stores ----
+    boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    void publish(PocketOperation.Type type, String name, double amount, double pocketBalance,
+            double availableBalance, double totalBalance, long version) {
+        if (listeners.isEmpty()) return;
+        Mutation mutation = mutation(type, name, amount, pocketBalance, availableBalance, totalBalance, version);
+        for (MutationListener listener : listeners) {
+            try {
+                listener.onMutation(mutation);
+            } catch (RuntimeException e) {
+                halt(e);
+                throw e;
+            }
+        }
+    }
 
-        // clonar lista de pockets (sin depender de setPockets)
-        if (mainAccount.getPockets() != null) {
-            for (Pocket orig : mainAccount.getPockets()) {
-                Pocket cp = new Pocket();
-                cp.setName(orig.getName());
-                cp.setBalance(orig.getBalance());
-                try { acc.addPocket(cp); } catch (Throwable ignore) {}
+    // una operación compuesta llega entera a cada listener (el log la guarda como un solo registro)
+    void publishAll(List<Mutation> mutations) {
+        if (listeners.isEmpty() || mutations.isEmpty()) return;
+        for (MutationListener listener : listeners) {
+            try {
+                listener.onMutations(mutations);
+            } catch (RuntimeException e) {
+                halt(e);
+                throw e;
             }
         }
+    }
 
-        out.setMainAccount(acc);
-        return out;
+    Mutation mutation(PocketOperation.Type type, String name, double amount, double pocketBalance,
+            double availableBalance, double totalBalance, long version) {
+        return new Mutation(type, name, amount, pocketBalance, availableBalance, totalBalance,
+                version, System.currentTimeMillis());
     }
 
-    private MainAccount snapshot() {
-        MainAccount acc = new MainAccount();
-        acc.setAvailableBalance(mainAccount.getAvailableBalance());
-        acc.setTotalBalance(mainAccount.getTotalBalance());
+    private void checkWritable() {
+        if (halted != null) throw new IllegalStateException("Service is not accepting writes");
+    }
 
-        if (mainAccount.getPockets() != null) {
-            for (Pocket orig : mainAccount.getPockets()) {
-                Pocket cp = new Pocket();
-                cp.setName(orig.getName());
-                cp.setBalance(orig.getBalance());
-                try { acc.addPocket(cp); } catch (Throwable ignore) {}
-            }
+    // validación de una sub-operación de batch, igual para todos los stores
+    static void validate(PocketOperation op) {
+        switch (op.getType()) {
+            case ADD_POCKET:
+                if (op.getName() == null || op.getName().isBlank())
+                    throw new IllegalArgumentException("Pocket name is required");
+                if (op.getName().length() > MAX_NAME_LENGTH) throw new IllegalArgumentException("Pocket name too long");
+                if (op.getAmount() < 0) throw new IllegalArgumentException("Initial amount must be >= 0");
+                break;
+            default:
+                if (op.getAmount() <= 0) throw new IllegalArgumentException("Amount must be > 0");
         }
-        return acc;
     }
 }
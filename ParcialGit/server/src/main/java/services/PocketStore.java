@@ -0,0 +1,36 @@
+package services;
+
+import java.util.List;
+
+import model.MainAccount;
+import model.Pocket;
+
+/*
+ * Dónde y cómo se guardan los saldos. PocketService valida los argumentos y
+ * delega; cada implementación decide su concurrencia y avisa a owner de cada
+ * mutación publicada.
+ *
+ * Una operación que toca dos bolsillos (transferBetweenPockets) toma sus locks,
+ * si los hay por bolsillo, en orden de id ascendente y nunca según el sentido de
+ * la transferencia: A->B y B->A en paralelo no pueden trabarse.
+ */
+interface PocketStore {
+
+    Pocket addPocket(String name, double initialAmount);
+
+    Pocket depositInPocket(String name, double amount);
+
+    Pocket withdrawFromPocket(String name, double amount);
+
+    MainAccount depositInAccount(double amount);
+
+    PocketTransfer transferBetweenPockets(String from, String to, double amount);
+
+    BatchResult executeBatch(List<PocketOperation> operations, boolean atomic);
+
+    MainAccount getMainAccount();
+
+    Pocket getPocket(String name);
+
+    PocketPage listPockets(String after, String prefix, int limit);
+}
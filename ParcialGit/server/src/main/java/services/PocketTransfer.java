@@ -0,0 +1,30 @@
+package services;
+
+import model.MainAccount;
+import model.Pocket;
+
+// resultado de TRANSFER_POCKET: los dos bolsillos y los totales, todos del mismo estado
+public class PocketTransfer {
+
+    private final Pocket from;
+    private final Pocket to;
+    private final MainAccount account;
+
+    public PocketTransfer(Pocket from, Pocket to, MainAccount account) {
+        this.from = from;
+        this.to = to;
+        this.account = account;
+    }
+
+    public Pocket getFrom() {
+        return from;
+    }
+
+    public Pocket getTo() {
+        return to;
+    }
+
+    public MainAccount getAccount() {
+        return account;
+    }
+}
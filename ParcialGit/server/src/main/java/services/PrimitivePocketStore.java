@@ -0,0 +1,599 @@
+package services;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.StampedLock;
+
+import model.MainAccount;
+import model.Pocket;
+
+/*
+ * Store compacto para cuentas con millones de bolsillos. Cada nombre se interna
+ * una vez a un id denso (tabla hash abierta de int, sin Integer ni nodos) y los
+ * saldos son centavos exactos en un long[] o, con offHeap, en un ByteBuffer
+ * directo que el GC no recorre. Pocket y MainAccount se crean solo al responder.
+ *
+ * Los montos se convierten a centavos en la entrada: más de dos decimales es un
+ * error. Las escrituras toman el write lock del StampedLock; getMainAccount y
+ * getPocket leen en modo optimista (sin escribir nada compartido) y solo toman
+ * el read lock si una escritura se cruzó.
+ *
+ * A diferencia del store inmutable, la cuenta que acompaña a la respuesta de una
+ * mutación (y de getPocket) trae solo los totales y la versión de esa operación,
+ * sin lista de bolsillos: copiarla bajo el mismo lock costaría O(bolsillos) por
+ * operación y leerla después mezclaría versiones. La lista completa sale de
+ * getMainAccount y del resultado de un batch, siempre de una sola versión. Por
+ * eso Server solo acepta mutaciones con mode=delta sobre este store.
+ */
+final class PrimitivePocketStore implements PocketStore {
+
+    private static final long SCALE = 100;
+
+    private final PocketService owner;
+    private final boolean offHeap;
+    private final StampedLock lock = new StampedLock();
+
+    // protegido por lock
+    // id -> nombre; una entrada ya escrita no cambia, así que las fotos comparten el arreglo
+    private String[] names;
+    private int count;
+    // hash abierto con sondeo lineal: id + 1, 0 = libre
+    private int[] table;
+    private long[] heapBalances;
+    private ByteBuffer directBalances;
+    private long available;
+    private long total;
+    private long version;
+    // índice ordenado para LIST_POCKETS; se arma la primera vez que se pide
+    private volatile ConcurrentSkipListSet<String> sortedNames;
+
+    PrimitivePocketStore(PocketService owner, boolean offHeap, double availableBalance, double totalBalance,
+            long version, String[] names, double[] balances, int count) {
+        this.owner = owner;
+        this.offHeap = offHeap;
+        int capacity = Math.max(16, count);
+        this.names = new String[capacity];
+        this.table = new int[tableSizeFor(capacity)];
+        if (offHeap) {
+            this.directBalances = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder());
+        } else {
+            this.heapBalances = new long[capacity];
+        }
+        this.available = toMinor(availableBalance);
+        this.total = toMinor(totalBalance);
+        this.version = version;
+        for (int i = 0; i < count; i++) {
+            intern(names[i], toMinor(balances[i]));
+        }
+    }
+
+    @Override
+    public Pocket addPocket(String name, double initialAmount) {
+        long amount = toMinor(initialAmount);
+        long balance, avail, tot, ver;
+        long stamp = lock.writeLock();
+        try {
+            if (available < amount) throw new IllegalStateException("Insufficient funds in main account");
+            int id = find(name);
+            if (id < 0) {
+                intern(name, amount);
+                balance = amount;
+            } else {
+                balance = balance(id) + amount;
+                setBalance(id, balance);
+            }
+            avail = available -= amount;
+            tot = total;
+            ver = ++version;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return published(PocketOperation.Type.ADD_POCKET, name, initialAmount, balance, avail, tot, ver);
+    }
+
+    @Override
+    public Pocket depositInPocket(String name, double amount) {
+        long minor = toMinor(amount);
+        long balance, avail, tot, ver;
+        long stamp = lock.writeLock();
+        try {
+            int id = requireId(name);
+            if (available < minor) throw new IllegalStateException("Insufficient funds in main account");
+            balance = balance(id) + minor;
+            setBalance(id, balance);
+            avail = available -= minor;
+            tot = total;
+            ver = ++version;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return published(PocketOperation.Type.DEPOSIT_POCKET, name, amount, balance, avail, tot, ver);
+    }
+
+    @Override
+    public Pocket withdrawFromPocket(String name, double amount) {
+        long minor = toMinor(amount);
+        long balance, avail, tot, ver;
+        long stamp = lock.writeLock();
+        try {
+            int id = requireId(name);
+            balance = balance(id);
+            if (balance < minor) throw new IllegalStateException("Insufficient funds in pocket");
+            balance -= minor;
+            setBalance(id, balance);
+            avail = available += minor;
+            tot = total;
+            ver = ++version;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return published(PocketOperation.Type.WITHDRAW_POCKET, name, amount, balance, avail, tot, ver);
+    }
+
+    @Override
+    public MainAccount depositInAccount(double amount) {
+        long minor = toMinor(amount);
+        long avail, tot, ver;
+        long stamp = lock.writeLock();
+        try {
+            avail = available += minor;
+            tot = total += minor;
+            ver = ++version;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        owner.publish(PocketOperation.Type.DEPOSIT_ACCOUNT, null, amount, 0, toMajor(avail), toMajor(tot), ver);
+        return account(avail, tot, ver, null);
+    }
+
+    // un solo write lock para los dos bolsillos; el disponible no se toca
+    @Override
+    public PocketTransfer transferBetweenPockets(String from, String to, double amount) {
+        long minor = toMinor(amount);
+        long fromBalance, toBalance, avail, tot, ver;
+        long stamp = lock.writeLock();
+        try {
+            int source = requireId(from);
+            int target = requireId(to);
+            fromBalance = balance(source);
+            if (fromBalance < minor) throw new IllegalStateException("Insufficient funds in pocket");
+            fromBalance -= minor;
+            toBalance = balance(target) + minor;
+            setBalance(source, fromBalance);
+            setBalance(target, toBalance);
+            avail = available;
+            tot = total;
+            ver = version += 2;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        // el paso intermedio que ven los listeners: el monto pasa por el disponible
+        if (owner.hasListeners()) {
+            owner.publishAll(List.of(
+                    owner.mutation(PocketOperation.Type.WITHDRAW_POCKET, from, amount, toMajor(fromBalance),
+                            toMajor(avail + minor), toMajor(tot), ver - 1),
+                    owner.mutation(PocketOperation.Type.DEPOSIT_POCKET, to, amount, toMajor(toBalance),
+                            toMajor(avail), toMajor(tot), ver)));
+        }
+        return new PocketTransfer(pocket(from, fromBalance), pocket(to, toBalance),
+                account(avail, tot, ver, null));
+    }
+
+    /*
+     * Se simula todo el batch sobre una capa de cambios (saldos tocados por nombre,
+     * en orden de primera aparición) y solo si corresponde se vuelca a los arreglos.
+     * Con atomic = true una falla descarta la capa; no hay nada que deshacer.
+     */
+    @Override
+    public BatchResult executeBatch(List<PocketOperation> operations, boolean atomic) {
+        BatchResult result = new BatchResult();
+        List<BatchResult.Item> items = result.getItems();
+        List<long[]> steps = new ArrayList<>();
+        List<PocketOperation> applied = new ArrayList<>();
+        long baseVersion;
+        MainAccount account;
+        long stamp = lock.writeLock();
+        try {
+            Map<String, Long> touched = new LinkedHashMap<>();
+            long avail = available;
+            long tot = total;
+            boolean failed = false;
+            for (PocketOperation op : operations) {
+                if (failed) {
+                    items.add(new BatchResult.Item(BatchResult.Status.SKIPPED, null, null, null));
+                    continue;
+                }
+                try {
+                    PocketService.validate(op);
+                    long amount = toMinor(op.getAmount());
+                    String name = op.getName();
+                    long balance = 0;
+                    switch (op.getType()) {
+                        case ADD_POCKET: {
+                            if (avail < amount) throw new IllegalStateException("Insufficient funds in main account");
+                            Long current = touched.get(name);
+                            if (current == null) {
+                                int id = find(name);
+                                current = id < 0 ? 0L : balance(id);
+                            }
+                            balance = current + amount;
+                            avail -= amount;
+                            break;
+                        }
+                        case DEPOSIT_POCKET: {
+                            long current = overlayBalance(touched, name);
+                            if (avail < amount) throw new IllegalStateException("Insufficient funds in main account");
+                            balance = current + amount;
+                            avail -= amount;
+                            break;
+                        }
+                        case WITHDRAW_POCKET: {
+                            long current = overlayBalance(touched, name);
+                            if (current < amount) throw new IllegalStateException("Insufficient funds in pocket");
+                            balance = current - amount;
+                            avail += amount;
+                            break;
+                        }
+                        case DEPOSIT_ACCOUNT:
+                            avail += amount;
+                            tot += amount;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown action");
+                    }
+                    long ver = version + applied.size() + 1;
+                    if (op.getType() == PocketOperation.Type.DEPOSIT_ACCOUNT) {
+                        items.add(new BatchResult.Item(BatchResult.Status.OK, null, null, account(avail, tot, ver, null)));
+                    } else {
+                        touched.put(name, balance);
+                        items.add(new BatchResult.Item(BatchResult.Status.OK, null, pocket(name, balance), null));
+                    }
+                    applied.add(op);
+                    steps.add(new long[] { balance, avail, tot, ver });
+                } catch (IllegalArgumentException | IllegalStateException ex) {
+                    items.add(new BatchResult.Item(BatchResult.Status.ERROR, ex.getMessage(), null, null));
+                    failed = atomic;
+                }
+            }
+
+            if (failed) {
+                for (int i = 0; i < items.size(); i++) {
+                    if (items.get(i).getStatus() == BatchResult.Status.OK) {
+                        items.set(i, new BatchResult.Item(BatchResult.Status.ROLLED_BACK, null, null, null));
+                    }
+                }
+                result.setCommitted(false);
+                applied.clear();
+            } else {
+                for (Map.Entry<String, Long> e : touched.entrySet()) {
+                    int id = find(e.getKey());
+                    if (id < 0) intern(e.getKey(), e.getValue());
+                    else setBalance(id, e.getValue());
+                }
+                available = avail;
+                total = tot;
+                result.setCommitted(true);
+            }
+            baseVersion = version;
+            version += applied.size();
+            account = snapshot();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (owner.hasListeners()) {
+            List<Mutation> mutations = new ArrayList<>(applied.size());
+            for (int i = 0; i < applied.size(); i++) {
+                PocketOperation op = applied.get(i);
+                long[] step = steps.get(i);
+                mutations.add(owner.mutation(op.getType(), op.getName(), op.getAmount(), toMajor(step[0]),
+                        toMajor(step[1]), toMajor(step[2]), baseVersion + i + 1));
+            }
+            owner.publishAll(mutations);
+        }
+        result.setAccount(account);
+        return result;
+    }
+
+    /*
+     * Lectura optimista: se toman los campos a locales, se valida el sello, se copia
+     * y se valida otra vez. Los arreglos viejos nunca se modifican después de
+     * reemplazados, así que una copia hecha con locales validados no se sale de
+     * rango; si hubo una escritura en el medio se repite con el read lock.
+     */
+    @Override
+    public MainAccount getMainAccount() {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            String[] names = this.names;
+            int count = this.count;
+            long[] heap = heapBalances;
+            ByteBuffer direct = directBalances;
+            long avail = available;
+            long tot = total;
+            long ver = version;
+            if (lock.validate(stamp)) {
+                long[] balances = copyBalances(heap, direct, count);
+                if (lock.validate(stamp)) {
+                    return account(avail, tot, ver, new Snapshot(names, balances, count));
+                }
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return snapshot();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Pocket getPocket(String name) {
+        long balance, avail, tot, ver;
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int[] table = this.table;
+            String[] names = this.names;
+            int count = this.count;
+            long[] heap = heapBalances;
+            ByteBuffer direct = directBalances;
+            avail = available;
+            tot = total;
+            ver = version;
+            if (lock.validate(stamp)) {
+                // un id >= count es un alta en curso sobre esta misma tabla
+                int id = probe(table, names, count, name);
+                if (id < count) {
+                    balance = id < 0 ? 0 : (offHeap ? direct.getLong(id << 3) : heap[id]);
+                    if (lock.validate(stamp)) {
+                        if (id < 0) throw new IllegalArgumentException("Pocket not found: " + name);
+                        Pocket out = pocket(name, balance);
+                        out.setMainAccount(account(avail, tot, ver, null));
+                        return out;
+                    }
+                }
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            balance = balance(requireId(name));
+            avail = available;
+            tot = total;
+            ver = version;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        Pocket out = pocket(name, balance);
+        out.setMainAccount(account(avail, tot, ver, null));
+        return out;
+    }
+
+    @Override
+    public PocketPage listPockets(String after, String prefix, int limit) {
+        NavigableSet<String> sorted = sortedNames();
+        List<Pocket> page = new ArrayList<>(Math.min(limit, 64));
+        String next = null;
+        long ver;
+        long stamp = lock.readLock();
+        try {
+            NavigableSet<String> from;
+            if (after != null && (prefix == null || after.compareTo(prefix) >= 0)) {
+                from = sorted.tailSet(after, false);
+            } else if (prefix != null) {
+                from = sorted.tailSet(prefix, true);
+            } else {
+                from = sorted;
+            }
+            for (String name : from) {
+                if (prefix != null && !name.startsWith(prefix)) break;
+                if (page.size() == limit) {
+                    next = page.get(limit - 1).getName();
+                    break;
+                }
+                page.add(pocket(name, balance(find(name))));
+            }
+            ver = version;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return new PocketPage(page, next, ver);
+    }
+
+    private NavigableSet<String> sortedNames() {
+        ConcurrentSkipListSet<String> sorted = sortedNames;
+        if (sorted == null) {
+            long stamp = lock.writeLock();
+            try {
+                sorted = sortedNames;
+                if (sorted == null) {
+                    String[] copy = Arrays.copyOf(names, count);
+                    Arrays.sort(copy);
+                    sorted = new ConcurrentSkipListSet<>();
+                    for (String name : copy) {
+                        sorted.add(name);
+                    }
+                    sortedNames = sorted;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+        return sorted;
+    }
+
+    // ---- arreglos (siempre con el lock tomado) ----
+    private int find(String name) {
+        return probe(table, names, count, name);
+    }
+
+    // -1 si no está; count si se cruzó con un id que todavía no está a la vista
+    private static int probe(int[] table, String[] names, int count, String name) {
+        if (name == null) return -1;
+        int mask = table.length - 1;
+        for (int i = spread(name.hashCode()) & mask; ; i = (i + 1) & mask) {
+            int id = table[i] - 1;
+            if (id < 0) return -1;
+            if (id >= count) return count;
+            if (names[id].equals(name)) return id;
+        }
+    }
+
+    private int requireId(String name) {
+        int id = find(name);
+        if (id < 0) throw new IllegalArgumentException("Pocket not found: " + name);
+        return id;
+    }
+
+    private long overlayBalance(Map<String, Long> touched, String name) {
+        Long current = touched.get(name);
+        return current != null ? current : balance(requireId(name));
+    }
+
+    private int intern(String name, long balance) {
+        if (count == names.length) grow();
+        int id = count++;
+        names[id] = name;
+        setBalance(id, balance);
+        if (count * 2 > table.length) {
+            rehash(table.length * 2);
+        } else {
+            insert(table, name, id);
+        }
+        if (sortedNames != null) sortedNames.add(name);
+        return id;
+    }
+
+    private void insert(int[] into, String name, int id) {
+        int mask = into.length - 1;
+        int i = spread(name.hashCode()) & mask;
+        while (into[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        into[i] = id + 1;
+    }
+
+    private void rehash(int size) {
+        int[] bigger = new int[size];
+        for (int id = 0; id < count; id++) {
+            insert(bigger, names[id], id);
+        }
+        table = bigger;
+    }
+
+    private void grow() {
+        int capacity = names.length * 2;
+        // copia nueva: las fotos que ya tienen el arreglo viejo lo siguen viendo intacto
+        names = Arrays.copyOf(names, capacity);
+        if (offHeap) {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder());
+            bigger.put(directBalances.duplicate().clear());
+            bigger.clear();
+            directBalances = bigger;
+        } else {
+            heapBalances = Arrays.copyOf(heapBalances, capacity);
+        }
+    }
+
+    private long balance(int id) {
+        return offHeap ? directBalances.getLong(id << 3) : heapBalances[id];
+    }
+
+    private void setBalance(int id, long balance) {
+        if (offHeap) directBalances.putLong(id << 3, balance);
+        else heapBalances[id] = balance;
+    }
+
+    // foto consistente; el lock (lectura o escritura) lo tiene quien llama
+    private MainAccount snapshot() {
+        return account(available, total, version,
+                new Snapshot(names, copyBalances(heapBalances, directBalances, count), count));
+    }
+
+    private static long[] copyBalances(long[] heap, ByteBuffer direct, int count) {
+        long[] balances = new long[count];
+        if (heap != null) {
+            System.arraycopy(heap, 0, balances, 0, count);
+        } else {
+            direct.duplicate().order(ByteOrder.nativeOrder()).clear().asLongBuffer().get(balances);
+        }
+        return balances;
+    }
+
+    private Pocket published(PocketOperation.Type type, String name, double amount, long balance,
+            long avail, long tot, long ver) {
+        owner.publish(type, name, amount, toMajor(balance), toMajor(avail), toMajor(tot), ver);
+        Pocket out = pocket(name, balance);
+        out.setMainAccount(account(avail, tot, ver, null));
+        return out;
+    }
+
+    private static Pocket pocket(String name, long balance) {
+        Pocket out = new Pocket();
+        out.setName(name);
+        out.setBalance(toMajor(balance));
+        return out;
+    }
+
+    private static MainAccount account(long avail, long tot, long ver, List<Pocket> pockets) {
+        MainAccount acc = new MainAccount();
+        acc.setAvailableBalance(toMajor(avail));
+        acc.setTotalBalance(toMajor(tot));
+        acc.setVersion(ver);
+        acc.setPockets(pockets);
+        return acc;
+    }
+
+    static long toMinor(double amount) {
+        double scaled = amount * SCALE;
+        // más allá de 2^53 un double ya no representa todos los enteros
+        if (Math.abs(scaled) >= 9e15) throw new IllegalArgumentException("Amount too large");
+        long minor = Math.round(scaled);
+        if (Math.abs(scaled - minor) > 1e-6) throw new IllegalArgumentException("Amount must have at most 2 decimals");
+        return minor;
+    }
+
+    static double toMajor(long minor) {
+        return minor / (double) SCALE;
+    }
+
+    // potencia de dos con carga <= 0.5
+    private static int tableSizeFor(int capacity) {
+        return Integer.highestOneBit(Math.max(2, capacity) * 4 - 1);
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    // bolsillos de una foto: los Pocket se crean al leerlos
+    private static final class Snapshot extends AbstractList<Pocket> implements RandomAccess {
+        private final String[] names;
+        private final long[] balances;
+        private final int count;
+
+        Snapshot(String[] names, long[] balances, int count) {
+            this.names = names;
+            this.balances = balances;
+            this.count = count;
+        }
+
+        @Override
+        public Pocket get(int index) {
+            if (index < 0 || index >= count) throw new IndexOutOfBoundsException(index);
+            return pocket(names[index], balances[index]);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package services;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Muchas cuentas por proceso. Cada cuenta vive en un shard (hash del id) y cada
+ * shard es un hilo propio con una bandeja sin locks: todo lo que toca las cuentas
+ * de un shard corre en ese hilo, una tarea a la vez. Dos cuentas de shards
+ * distintos nunca compiten; dos de un mismo shard se atienden en orden.
+ *
+ * Solo existen las cuentas pasadas al construir y las que se den de alta con
+ * createAccount, cada una con initialAmount; un id desconocido es "Account not
+ * found", nunca una cuenta nueva con fondos.
+ */
+public final class ShardedPocketService implements AutoCloseable {
+
+    // trabajo sobre una cuenta; corre en el hilo del shard
+    public interface Task<T> {
+        T run(PocketService account) throws Exception;
+    }
+
+    private final Shard[] shards;
+    private final PocketService.StoreType storeType;
+    private final double initialAmount;
+
+    public ShardedPocketService(int shardCount, PocketService.StoreType storeType, double initialAmount,
+            Collection<String> accountIds) {
+        if (shardCount < 1) throw new IllegalArgumentException("Shard count must be > 0");
+        if (initialAmount < 0) throw new IllegalArgumentException("Initial amount must be >= 0");
+        this.storeType = storeType;
+        this.initialAmount = initialAmount;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+        // antes de arrancar los hilos: start() publica los mapas ya cargados
+        for (String id : accountIds) {
+            if (id == null || id.isBlank()) throw new IllegalArgumentException("Account id is required");
+            shards[shardOf(id)].accounts.putIfAbsent(id, new PocketService(storeType, initialAmount));
+        }
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    // alta explícita; false si la cuenta ya existía
+    public boolean createAccount(String accountId) throws Exception {
+        if (accountId == null || accountId.isBlank()) throw new IllegalArgumentException("Account id is required");
+        Shard shard = shards[shardOf(accountId)];
+        return execute(shard, () -> shard.accounts.putIfAbsent(accountId,
+                new PocketService(storeType, initialAmount)) == null);
+    }
+
+    public <T> CompletableFuture<T> submit(String accountId, Task<T> task) {
+        if (accountId == null || accountId.isBlank()) throw new IllegalArgumentException("Account id is required");
+        Shard shard = shards[shardOf(accountId)];
+        return submit(shard, () -> task.run(shard.account(accountId)));
+    }
+
+    // como submit pero espera el resultado; los errores salen tal cual los lanzó la tarea
+    public <T> T execute(String accountId, Task<T> task) throws Exception {
+        return join(submit(accountId, task));
+    }
+
+    private <T> T execute(Shard shard, Callable<T> task) throws Exception {
+        return join(submit(shard, task));
+    }
+
+    private static <T> CompletableFuture<T> submit(Shard shard, Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (!shard.running) throw new IllegalStateException("Service is closed");
+        Runnable work = () -> {
+            try {
+                result.complete(task.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        };
+        shard.offer(work);
+        // close() pudo correr entre el chequeo y el offer: si la tarea sigue en la
+        // bandeja nadie la va a atender; si ya no está, el shard la tomó y la corre
+        if (!shard.running && shard.inbox.remove(work)) {
+            result.completeExceptionally(new IllegalStateException("Service is closed"));
+        }
+        return result;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+
+    public int shardOf(String accountId) {
+        int h = accountId.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    // ---- métricas por shard ----
+    public long getProcessed(int shard) {
+        return shards[shard].processed.get();
+    }
+
+    public long getParks(int shard) {
+        return shards[shard].parks.get();
+    }
+
+    // lo que queda en las bandejas se atiende antes de que los hilos terminen;
+    // si interrumpen la espera se deja de esperar y se conserva la interrupción
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.running = false;
+            LockSupport.unpark(shard.thread);
+        }
+        try {
+            for (Shard shard : shards) {
+                shard.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Shard {
+        private final Thread thread;
+        // varios productores, un solo consumidor
+        private final ConcurrentLinkedQueue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+        // solo la usa el hilo del shard
+        private final Map<String, PocketService> accounts = new HashMap<>();
+        private volatile boolean sleeping;
+        private volatile boolean running = true;
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong parks = new AtomicLong();
+
+        Shard(int index) {
+            this.thread = new Thread(this::run, "shard-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void offer(Runnable task) {
+            inbox.offer(task);
+            // quien duerme marcó sleeping antes de mirar la bandeja por última vez
+            if (sleeping) LockSupport.unpark(thread);
+        }
+
+        PocketService account(String accountId) {
+            PocketService account = accounts.get(accountId);
+            if (account == null) throw new IllegalArgumentException("Account not found");
+            return account;
+        }
+
+        private void run() {
+            long done = 0;
+            while (true) {
+                Runnable task = inbox.poll();
+                if (task != null) {
+                    // antes de correrla: quien espera el resultado ya la ve contada
+                    processed.lazySet(++done);
+                    task.run();
+                    continue;
+                }
+                if (!running) {
+                    // un offer anterior al cierre puede haber llegado después del último poll
+                    if (inbox.isEmpty()) return;
+                    continue;
+                }
+                sleeping = true;
+                if (inbox.isEmpty() && running) {
+                    parks.lazySet(parks.get() + 1);
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+            }
+        }
+    }
+}
@@ -4,8 +4,16 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -15,15 +23,28 @@ import java.util.stream.Collectors;
 
 import org.junit.BeforeClass;
 import org.junit.FixMethodOrder;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runners.MethodSorters;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 
 import DBConfig.ConnectionManager;
+import daos.MainAccountDao;
+import daos.PocketDao;
 import model.MainAccount;
 import model.Pocket;
+import persistence.Checkpoint;
+import persistence.Ledger;
+import persistence.WriteAheadLog;
+import persistence.WriteBehindStore;
+import services.BatchResult;
+import services.Mutation;
+import services.PocketOperation;
+import services.PocketService;
+import services.ShardedPocketService;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class PocketServiceTest {
@@ -40,6 +61,10 @@ public class PocketServiceTest {
     private static Gson gson = new Gson();
     private static Connection connection;
 
+    // directorios de logs y fotos de cada test; JUnit los borra al terminar
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
     @BeforeClass
     public static void init() throws Exception {
         System.out.println("Starting test...");
@@ -320,6 +345,2130 @@ public class PocketServiceTest {
 
     }
 
+    public Response depositAccount(double amount, BufferedReader reader, BufferedWriter writer) throws Exception {
+        Request request = new Request();
+        request.action = "DEPOSIT_ACCOUNT";
+        request.data = Map.of("amount", String.valueOf(amount));
+        writer.write(gson.toJson(request));
+        writer.newLine();
+        writer.flush();
+        return gson.fromJson(reader.readLine(), Response.class);
+    }
+
+    @Test
+    public void I_testKeepAlivePipelining() throws Exception {
+        int n = 200;
+
+        // one-shot: una conexión por petición (comportamiento anterior)
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            Socket socket = new Socket("localhost", 5000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            Response response = depositAccount(1, reader, writer);
+            socket.close();
+            assert response.status.equals("ok");
+        }
+        long oneShot = System.nanoTime() - t0;
+
+        // keep-alive + pipelining: todas las peticiones se envían antes de leer respuestas
+        double totalBefore = getAccount().getTotalBalance();
+        t0 = System.nanoTime();
+        Socket socket = new Socket("localhost", 5000);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        Request request = new Request();
+        request.action = "DEPOSIT_ACCOUNT";
+        request.data = Map.of("amount", "1");
+        String jsonRequest = gson.toJson(request);
+        for (int i = 0; i < n; i++) {
+            writer.write(jsonRequest);
+            writer.newLine();
+        }
+        writer.flush();
+        List<Response> responses = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            responses.add(gson.fromJson(reader.readLine(), Response.class));
+        }
+        long pipelined = System.nanoTime() - t0;
+        socket.close();
+
+        System.out.println("One-shot: " + n + " requests in " + oneShot / 1_000_000 + " ms, keep-alive pipelined: "
+                + pipelined / 1_000_000 + " ms");
+
+        // las respuestas llegan en el orden de las peticiones
+        for (int i = 0; i < n; i++) {
+            assert responses.get(i).status.equals("ok");
+            MainAccount account = gson.fromJson(responses.get(i).data, MainAccount.class);
+            assert account.getTotalBalance() == totalBefore + i + 1;
+        }
+        assertTrue("Pipelined keep-alive slower than one-shot", pipelined < oneShot);
+    }
+
+    @Test
+    public void J_testNioServer() throws Exception {
+        new Thread(() -> {
+            try {
+                Server server = new Server();
+                server.setPort(5001);
+                server.setIoMode("nio");
+                server.init(1000.0);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+        Thread.sleep(500);
+
+        int n = 50;
+        CountDownLatch done = new CountDownLatch(n);
+        List<Response> responses = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int id = i;
+            new Thread(() -> {
+                try (Socket socket = new Socket("localhost", 5001)) {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+                    Response added = addPocket("Nio Pocket " + id, 5.0, reader, writer);
+                    Response deposited = depositPocket("Nio Pocket " + id, 5.0, reader, writer);
+                    synchronized (responses) {
+                        responses.add(added);
+                        responses.add(deposited);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        assert responses.size() == 2 * n;
+        assert responses.stream().allMatch(r -> "ok".equals(r.status));
+
+        Socket socket = new Socket("localhost", 5001);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        writer.write("{\"action\":\"GET_ACCOUNT\",\"data\":{}}\n\n{\"action\":\"NOPE\",\"data\":{}}\n");
+        writer.flush();
+        Response account = gson.fromJson(reader.readLine(), Response.class);
+        Response empty = gson.fromJson(reader.readLine(), Response.class);
+        Response unknown = gson.fromJson(reader.readLine(), Response.class);
+        socket.close();
+
+        MainAccount responseAccount = gson.fromJson(account.data, MainAccount.class);
+        assert responseAccount.getAvailableBalance() == 1000 - n * 10;
+        assert responseAccount.getPockets().size() == n;
+        assert empty.data.get("message").getAsString().equals("Empty request");
+        assert unknown.data.get("message").getAsString().equals("Unknown action");
+
+        // contrapresión: un cliente que manda sin leer no hace crecer las colas del servidor
+        Server backed = new Server();
+        backed.prepare(1_000_000.0);
+        for (int i = 0; i < 200; i++) {
+            backed.processLine(gson.toJson(operation("ADD_POCKET", "name", "Backpressure " + i, "initialAmount", "1")));
+        }
+        NioServer nio = new NioServer(backed, 5010, 1, 30000, java.util.concurrent.Executors.newFixedThreadPool(2));
+        new Thread(() -> {
+            try {
+                nio.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+        Thread.sleep(300);
+        int pipelined = 5000; // ~8 KB por respuesta: ~40 MB si nadie frenara
+        try (Socket client = new Socket("localhost", 5010)) {
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream()));
+            Thread sender = new Thread(() -> {
+                try {
+                    for (int i = 0; i < pipelined; i++) {
+                        out.write("{\"action\":\"GET_ACCOUNT\",\"data\":{}}\n");
+                    }
+                    out.flush();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            sender.start();
+            Thread.sleep(1000);
+            assert nio.getReadPauses() > 0;
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            for (int i = 0; i < pipelined; i++) {
+                Response r = gson.fromJson(in.readLine(), Response.class);
+                assert "ok".equals(r.status);
+            }
+            sender.join();
+        }
+    }
+
+    private static void startServer(int port, String executionMode, int workerThreads, int queueCapacity) throws Exception {
+        new Thread(() -> {
+            try {
+                Server server = new Server();
+                server.setPort(port);
+                server.setExecutionMode(executionMode);
+                server.setWorkerThreads(workerThreads);
+                server.setQueueCapacity(queueCapacity);
+                server.init(100000.0);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+        Thread.sleep(500);
+    }
+
+    @Test
+    public void K_testExecutionModes() throws Exception {
+        String[] modes = { "thread", "virtual", "pool" };
+        int n = 200;
+        for (int m = 0; m < modes.length; m++) {
+            int port = 5002 + m;
+            startServer(port, modes[m], 16, 1000);
+
+            // mismo patrón que H_testConcurrence, midiendo cada petición por separado
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(n);
+            long[] latencies = new long[2 * n];
+            List<Response> responses = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                int id = i;
+                new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int k = 0; k < 2; k++) {
+                            long t0 = System.nanoTime();
+                            try (Socket socket = new Socket("localhost", port)) {
+                                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+                                Response r = k == 0 ? addPocket("Pocket " + id, 5.0, reader, writer)
+                                        : depositPocket("Pocket " + id, 5.0, reader, writer);
+                                synchronized (responses) {
+                                    responses.add(r);
+                                }
+                            }
+                            latencies[2 * id + k] = System.nanoTime() - t0;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            start.countDown();
+            done.await();
+
+            long[] sorted = latencies.clone();
+            java.util.Arrays.sort(sorted);
+            System.out.println(modes[m] + ": p50 " + sorted[sorted.length / 2] / 1000 + " us, p99 "
+                    + sorted[sorted.length * 99 / 100] / 1000 + " us");
+            assert responses.size() == 2 * n;
+            assert responses.stream().allMatch(r -> "ok".equals(r.status));
+        }
+
+        // pool de 1 hilo sin cola: acota peticiones, no conexiones
+        Server pooled = new Server();
+        pooled.setPort(5005);
+        pooled.setExecutionMode("pool");
+        pooled.setWorkerThreads(1);
+        pooled.setQueueCapacity(0);
+        new Thread(() -> {
+            try {
+                pooled.init(100000.0);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+        Thread.sleep(500);
+        List<Socket> idle = new ArrayList<>();
+        try {
+            // más conexiones keep-alive abiertas que workers: todas se atienden
+            for (int i = 0; i < 4; i++) {
+                idle.add(new Socket("localhost", 5005));
+            }
+            for (int i = idle.size() - 1; i >= 0; i--) {
+                assert sendLine(idle.get(i), operation("GET_ACCOUNT")).status.equals("ok");
+            }
+
+            // con el único lugar tomado la petición recibe "Server busy" y la conexión sigue
+            pooled.requestSlots.acquire();
+            Response busy = sendLine(idle.get(0), operation("GET_ACCOUNT"));
+            assert busy.status.equals("error");
+            assert busy.data.get("message").getAsString().equals("Server busy");
+            pooled.requestSlots.release();
+            assert sendLine(idle.get(0), operation("GET_ACCOUNT")).status.equals("ok");
+        } finally {
+            for (Socket socket : idle) {
+                socket.close();
+            }
+        }
+    }
+
+    // una línea por una conexión que queda abierta (keep-alive)
+    private Response sendLine(Socket socket, JsonObject request) throws Exception {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        writer.write(gson.toJson(request));
+        writer.newLine();
+        writer.flush();
+        // sin buffer propio: la respuesta es una sola línea y no puede quedar nada leído de más
+        StringBuilder line = new StringBuilder();
+        java.io.InputStream in = socket.getInputStream();
+        for (int c; (c = in.read()) != '\n' && c >= 0;) {
+            line.append((char) c);
+        }
+        return gson.fromJson(line.toString(), Response.class);
+    }
+
+    private JsonObject operation(String action, String... keyValues) {
+        JsonObject op = new JsonObject();
+        op.addProperty("action", action);
+        JsonObject data = new JsonObject();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            data.addProperty(keyValues[i], keyValues[i + 1]);
+        }
+        op.add("data", data);
+        return op;
+    }
+
+    private Response batch(boolean atomic, JsonObject... operations) throws Exception {
+        JsonObject request = operation("BATCH", "atomic", String.valueOf(atomic));
+        com.google.gson.JsonArray ops = new com.google.gson.JsonArray();
+        for (JsonObject op : operations) {
+            ops.add(op);
+        }
+        request.add("operations", ops);
+        try (Socket socket = new Socket("localhost", 5000)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            writer.write(gson.toJson(request));
+            writer.newLine();
+            writer.flush();
+            return gson.fromJson(reader.readLine(), Response.class);
+        }
+    }
+
+    @Test
+    public void L_testBatch() throws Exception {
+        MainAccount before = getAccount();
+
+        Response response = batch(false,
+                operation("ADD_POCKET", "name", "Batch A", "initialAmount", "10"),
+                operation("DEPOSIT_POCKET", "name", "Batch A", "amount", "5"),
+                operation("WITHDRAW_POCKET", "name", "Batch A", "amount", "1000"),
+                operation("DEPOSIT_ACCOUNT", "amount", "1"));
+        assert response.status.equals("ok");
+        assert response.data.get("committed").getAsBoolean();
+        com.google.gson.JsonArray results = response.data.getAsJsonArray("results");
+        assert results.size() == 4;
+        assert results.get(0).getAsJsonObject().get("status").getAsString().equals("ok");
+        Pocket pocket = gson.fromJson(results.get(1).getAsJsonObject().get("data"), Pocket.class);
+        assert pocket.getName().equals("Batch A") && pocket.getBalance() == 15;
+        assert results.get(2).getAsJsonObject().get("status").getAsString().equals("error");
+        assert results.get(2).getAsJsonObject().getAsJsonObject("data").get("message").getAsString()
+                .equals("Insufficient funds in pocket");
+        assert results.get(3).getAsJsonObject().get("status").getAsString().equals("ok");
+        MainAccount account = gson.fromJson(response.data.get("account"), MainAccount.class);
+        assert account.getAvailableBalance() == before.getAvailableBalance() - 15 + 1;
+        assert account.getTotalBalance() == before.getTotalBalance() + 1;
+
+        // all-or-nothing: la falla deshace el bolsillo creado y el depósito previo
+        response = batch(true,
+                operation("ADD_POCKET", "name", "Batch B", "initialAmount", "10"),
+                operation("DEPOSIT_POCKET", "name", "Batch A", "amount", "5"),
+                operation("WITHDRAW_POCKET", "name", "Batch B", "amount", "50"),
+                operation("DEPOSIT_ACCOUNT", "amount", "1"));
+        assert response.status.equals("ok");
+        assert !response.data.get("committed").getAsBoolean();
+        results = response.data.getAsJsonArray("results");
+        assert results.get(0).getAsJsonObject().get("status").getAsString().equals("rolled_back");
+        assert results.get(1).getAsJsonObject().get("status").getAsString().equals("rolled_back");
+        assert results.get(2).getAsJsonObject().get("status").getAsString().equals("error");
+        assert results.get(3).getAsJsonObject().get("status").getAsString().equals("skipped");
+
+        MainAccount after = getAccount();
+        assert after.getAvailableBalance() == account.getAvailableBalance();
+        assert after.getTotalBalance() == account.getTotalBalance();
+        assert after.getPockets().stream().noneMatch(p -> p.getName().equals("Batch B"));
+        assert after.getPockets().stream().filter(p -> p.getName().equals("Batch A"))
+                .allMatch(p -> p.getBalance() == 15);
+
+        response = batch(false, operation("TRANSFER_ALL", "amount", "1"));
+        assert response.status.equals("error");
+        assert response.data.get("message").getAsString().equals("Unknown action in batch: TRANSFER_ALL");
+    }
+
+    @Test
+    public void M_testPocketServiceScaling() throws Exception {
+        int opsPerThread = 20000;
+        for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors() * 2; threads *= 2) {
+            services.PocketService service = new services.PocketService(1_000_000_000.0);
+            for (int t = 0; t < threads; t++) {
+                service.addPocket("Scale " + t, 0);
+            }
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                String name = "Scale " + t;
+                new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < opsPerThread; i++) {
+                            if (i % 2 == 0) service.depositInPocket(name, 2);
+                            else service.withdrawFromPocket(name, 1);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            long t0 = System.nanoTime();
+            start.countDown();
+            done.await();
+            long elapsed = System.nanoTime() - t0;
+            System.out.println(threads + " threads: " + (long) (threads * opsPerThread / (elapsed / 1e9)) + " ops/s");
+
+            MainAccount account = service.getMainAccount();
+            double pockets = account.getPockets().stream().mapToDouble(Pocket::getBalance).sum();
+            assert pockets == threads * opsPerThread / 2.0;
+            assert account.getTotalBalance() == account.getAvailableBalance() + pockets;
+        }
+
+        // muchos hilos compiten por un disponible escaso y por el mismo bolsillo: nunca hay sobregiro
+        services.PocketService service = new services.PocketService(100);
+        service.addPocket("Shared", 0);
+        CountDownLatch done = new CountDownLatch(16);
+        for (int t = 0; t < 16; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    try {
+                        service.depositInPocket("Shared", 3);
+                        service.withdrawFromPocket("Shared", 2);
+                    } catch (Exception expected) {
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        MainAccount account = service.getMainAccount();
+        double shared = account.getPockets().get(0).getBalance();
+        assert account.getAvailableBalance() >= 0 && shared >= 0;
+        assert account.getTotalBalance() == 100;
+        assert account.getAvailableBalance() + shared == 100;
+    }
+
+    @Test
+    public void N_testCopyOnWriteViews() throws Exception {
+        int ops = 20000;
+        for (int pocketCount : new int[] { 100, 20000 }) {
+            services.PocketService service = new services.PocketService(1_000_000_000.0);
+            for (int i = 0; i < pocketCount; i++) {
+                service.addPocket("View " + i, 1);
+            }
+            long t0 = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                service.depositInPocket("View " + (i % pocketCount), 1);
+            }
+            long elapsed = System.nanoTime() - t0;
+            System.out.println(pocketCount + " pockets: " + elapsed / ops + " ns per deposit");
+        }
+
+        // una vista tomada antes no cambia con las mutaciones posteriores
+        services.PocketService service = new services.PocketService(100);
+        service.addPocket("A", 10);
+        MainAccount before = service.getMainAccount();
+        Pocket deposited = service.depositInPocket("A", 5);
+        service.addPocket("B", 20);
+        assert before.getAvailableBalance() == 90;
+        assert before.getPockets().size() == 1;
+        assert before.getPockets().get(0).getBalance() == 10;
+        assert deposited.getBalance() == 15;
+        assert deposited.getMainAccount().getPockets().size() == 1;
+        MainAccount after = service.getMainAccount();
+        assert after.getPockets().size() == 2;
+        assert after.getAvailableBalance() == 65;
+        assert service.getPocket("B").getBalance() == 20;
+
+        // un bolsillo visible en la raíz ya se encuentra por nombre, aunque otro hilo lo esté creando
+        services.PocketService racing = new services.PocketService(1_000_000);
+        int creations = 5000;
+        java.util.concurrent.atomic.AtomicReference<Exception> lost = new java.util.concurrent.atomic.AtomicReference<>();
+        Thread depositor = new Thread(() -> {
+            int seen = 0;
+            while (seen < creations && lost.get() == null) {
+                List<Pocket> pockets = racing.getMainAccount().getPockets();
+                if (pockets.isEmpty()) continue;
+                seen = pockets.size();
+                try {
+                    racing.depositInPocket(pockets.get(seen - 1).getName(), 1);
+                } catch (Exception e) {
+                    lost.set(e);
+                }
+            }
+        });
+        depositor.start();
+        for (int i = 0; i < creations; i++) {
+            racing.addPocket("Race " + i, 1);
+        }
+        depositor.join();
+        assert lost.get() == null : lost.get();
+
+        // los listeners se avisan fuera del lock de altas: uno lento no frena otra alta
+        CountDownLatch release = new CountDownLatch(1);
+        racing.addMutationListener(m -> {
+            if ("Slow".equals(m.getName())) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Thread slow = new Thread(() -> {
+            try {
+                racing.addPocket("Slow", 1);
+            } catch (Exception e) {
+                lost.set(e);
+            }
+        });
+        slow.start();
+        while (racing.getMainAccount().getPockets().size() == creations) {
+            Thread.sleep(1);
+        }
+        Thread fast = new Thread(() -> {
+            try {
+                racing.addPocket("Fast", 1);
+            } catch (Exception e) {
+                lost.set(e);
+            }
+        });
+        fast.start();
+        fast.join(5000);
+        boolean blocked = fast.isAlive();
+        release.countDown();
+        fast.join();
+        slow.join();
+        assert !blocked : "a slow listener held up another pocket creation";
+        assert lost.get() == null : lost.get();
+        assert racing.getPocket("Slow").getBalance() == 1 && racing.getPocket("Fast").getBalance() == 1;
+
+        // un BATCH grande termina aunque haya depósitos sueltos todo el tiempo
+        services.PocketService contended = new services.PocketService(1_000_000_000.0);
+        contended.addPocket("Hot", 0);
+        contended.addPocket("Payroll", 0);
+        java.util.concurrent.atomic.AtomicBoolean stop = new java.util.concurrent.atomic.AtomicBoolean();
+        java.util.concurrent.atomic.AtomicLong singles = new java.util.concurrent.atomic.AtomicLong();
+        List<Thread> depositors = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread d = new Thread(() -> {
+                while (!stop.get()) {
+                    try {
+                        contended.depositInPocket("Hot", 1);
+                        singles.incrementAndGet();
+                    } catch (Exception e) {
+                        lost.set(e);
+                        return;
+                    }
+                }
+            });
+            d.start();
+            depositors.add(d);
+        }
+        List<PocketOperation> payroll = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            payroll.add(new PocketOperation(PocketOperation.Type.DEPOSIT_POCKET, "Payroll", 1));
+        }
+        long batchStart = System.nanoTime();
+        for (int round = 0; round < 5; round++) {
+            assert contended.executeBatch(payroll, true).isCommitted();
+        }
+        long batchMillis = (System.nanoTime() - batchStart) / 1_000_000;
+        stop.set(true);
+        for (Thread d : depositors) {
+            d.join();
+        }
+        assert lost.get() == null : lost.get();
+        System.out.println("5 x 10k BATCH with 8 depositors: " + batchMillis + " ms, " + singles.get() + " single deposits");
+        assert contended.getPocket("Payroll").getBalance() == 50_000;
+        assert contended.getPocket("Hot").getBalance() == singles.get();
+        assert batchMillis < 10_000;
+    }
+
+    @Test
+    public void O_testDeltaResponses() throws Exception {
+        try (Socket socket = new Socket("localhost", 5000)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+
+            writer.write(gson.toJson(operation("DEPOSIT_POCKET", "name", "Test Pocket", "amount", "1")));
+            writer.newLine();
+            writer.write(gson.toJson(operation("DEPOSIT_POCKET", "name", "Test Pocket", "amount", "1", "mode", "delta")));
+            writer.newLine();
+            writer.write(gson.toJson(operation("DEPOSIT_ACCOUNT", "amount", "1", "mode", "delta")));
+            writer.newLine();
+            writer.flush();
+            String fullLine = reader.readLine();
+            String deltaLine = reader.readLine();
+            String accountLine = reader.readLine();
+            System.out.println("Full reply: " + fullLine.length() + " bytes, delta reply: " + deltaLine.length() + " bytes");
+
+            Pocket full = gson.fromJson(gson.fromJson(fullLine, Response.class).data, Pocket.class);
+            Response delta = gson.fromJson(deltaLine, Response.class);
+            assert delta.status.equals("ok");
+            assert delta.data.getAsJsonObject("pocket").get("name").getAsString().equals("Test Pocket");
+            assert delta.data.getAsJsonObject("pocket").get("balance").getAsDouble() == full.getBalance() + 1;
+            assert delta.data.get("availableBalance").getAsDouble() == full.getMainAccount().getAvailableBalance() - 1;
+            assert delta.data.get("version").getAsLong() > full.getMainAccount().getVersion();
+            assert !delta.data.has("pockets");
+            assert deltaLine.length() < 200 && fullLine.length() > 1000;
+
+            Response account = gson.fromJson(accountLine, Response.class);
+            assert account.data.get("totalBalance").getAsDouble() == full.getMainAccount().getTotalBalance() + 1;
+            assert account.data.get("version").getAsLong() > delta.data.get("version").getAsLong();
+        }
+    }
+
+    @Test
+    public void P_testStreamingSerialization() throws Exception {
+        services.PocketService service = new services.PocketService(1_000_000_000.0);
+        for (int i = 0; i < 10000; i++) {
+            service.addPocket("Stream " + i, 1);
+        }
+        Pocket pocket = service.depositInPocket("Stream 0", 1);
+        Gson plain = new Gson();
+        Gson streaming = Server.createGson();
+
+        // camino anterior: toJsonTree a JsonObject y luego toJson a String
+        dtos.Response tree = new dtos.Response();
+        tree.status = "ok";
+        tree.data = plain.toJsonTree(pocket).getAsJsonObject();
+        String before = plain.toJson(tree);
+
+        dtos.Response direct = new dtos.Response();
+        direct.status = "ok";
+        direct.entity = pocket;
+        java.io.StringWriter out = new java.io.StringWriter();
+        streaming.toJson(direct, dtos.Response.class, new com.google.gson.stream.JsonWriter(out));
+        assert out.toString().equals(before);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory
+                .getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        int rounds = 200;
+        for (int pass = 0; pass < 2; pass++) { // la primera pasada es de calentamiento
+            long bytes0 = threads.getThreadAllocatedBytes(threadId);
+            long t0 = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                dtos.Response r = new dtos.Response();
+                r.status = "ok";
+                r.data = plain.toJsonTree(pocket).getAsJsonObject();
+                java.io.Writer sink = java.io.Writer.nullWriter();
+                sink.write(plain.toJson(r));
+            }
+            long treeNanos = System.nanoTime() - t0;
+            long treeBytes = threads.getThreadAllocatedBytes(threadId) - bytes0;
+
+            bytes0 = threads.getThreadAllocatedBytes(threadId);
+            t0 = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                dtos.Response r = new dtos.Response();
+                r.status = "ok";
+                r.entity = pocket;
+                streaming.toJson(r, dtos.Response.class,
+                        new com.google.gson.stream.JsonWriter(new java.io.BufferedWriter(java.io.Writer.nullWriter())));
+            }
+            long streamNanos = System.nanoTime() - t0;
+            long streamBytes = threads.getThreadAllocatedBytes(threadId) - bytes0;
+
+            if (pass == 1) {
+                System.out.println("10k pockets, tree+toJson: " + treeNanos / rounds / 1000 + " us, "
+                        + treeBytes / rounds / 1024 + " KiB per reply; streaming: " + streamNanos / rounds / 1000
+                        + " us, " + streamBytes / rounds / 1024 + " KiB per reply");
+                assert streamBytes < treeBytes;
+            }
+        }
+    }
+
+    @Test
+    public void Q_testRequestDecoder() throws Exception {
+        dtos.RequestDecoder decoder = new dtos.RequestDecoder();
+
+        String[] lines = {
+                "{\"action\":\"DEPOSIT_POCKET\",\"data\":{\"name\":\"Test Pocket\",\"amount\":\"200.0\"}}",
+                "{\"data\":{\"initialAmount\":\"0.1\",\"name\":\"A\"},\"action\":\"ADD_POCKET\"}",
+                " { \"action\" : \"WITHDRAW_POCKET\" , \"data\" : { \"name\" : \"B\" , \"amount\" : 12.75 } } ",
+                "{\"action\":\"DEPOSIT_ACCOUNT\",\"data\":{\"amount\":\"1e3\",\"mode\":\"delta\"}}",
+                "{\"action\":\"DEPOSIT_ACCOUNT\",\"data\":{\"amount\":\"123456789.123456789\"}}",
+                "{\"action\":\"GET_ACCOUNT\",\"data\":{}}",
+        };
+        for (String line : lines) {
+            dtos.Command fast = decoder.decode(line);
+            dtos.Request request = gson.fromJson(line, dtos.Request.class);
+            dtos.Command slow = dtos.Command.from(dtos.Action.valueOf(request.action), request.data);
+            assert fast != null : line;
+            assert fast.action == slow.action;
+            assert java.util.Objects.equals(fast.name, slow.name);
+            assert fast.amount == slow.amount : line;
+            assert fast.delta == slow.delta;
+        }
+
+        // todo lo que no es el caso simple se deja a Gson
+        String[] fallbacks = {
+                "{\"action\":\"BATCH\",\"data\":{},\"operations\":[]}",
+                "{\"action\":\"DEPOSIT_POCKET\",\"data\":{\"name\":\"Tab\\tPocket\",\"amount\":\"1\"}}",
+                "{\"action\":\"DEPOSIT_POCKET\",\"data\":{\"name\":\"A\",\"amount\":\"abc\"}}",
+                "{\"action\":\"DEPOSIT_POCKET\",\"data\":{\"name\":\"A\"}}",
+                "{\"action\":\"DEPOSIT_POCKET\",\"data\":{\"name\":\"A\",\"amount\":\"1\",\"extra\":\"x\"}}",
+                "{\"action\":\"DEPOSIT_POCKET\",\"data\":{\"name\":\"A\",\"amount\":\"1\",\"mode\":\"delta\",\"mode\":\"full\"}}",
+                "{\"action\":\"GET_ACCOUNT\"",
+                "not json",
+        };
+        for (String line : fallbacks) {
+            assert decoder.decode(line) == null : line;
+        }
+        // una clave repetida sigue por Gson, que la rechaza en vez de quedarse con la última
+        Server fallback = new Server();
+        fallback.prepare(1000.0);
+        dtos.Response duplicated = fallback.processLine(
+                "{\"action\":\"GET_ACCOUNT\",\"data\":{\"mode\":\"delta\",\"mode\":\"full\"}}");
+        assert duplicated.status.equals("error");
+        assert duplicated.data.get("message").getAsString().equals("duplicate key: mode");
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory
+                .getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        String line = lines[0];
+        int rounds = 200000;
+        for (int pass = 0; pass < 2; pass++) {
+            long bytes0 = threads.getThreadAllocatedBytes(threadId);
+            long t0 = System.nanoTime();
+            double sum = 0;
+            for (int i = 0; i < rounds; i++) {
+                dtos.Request request = gson.fromJson(line, dtos.Request.class);
+                sum += Double.parseDouble(request.data.get("amount"));
+            }
+            long gsonNanos = System.nanoTime() - t0;
+            long gsonBytes = threads.getThreadAllocatedBytes(threadId) - bytes0;
+
+            bytes0 = threads.getThreadAllocatedBytes(threadId);
+            t0 = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                sum += decoder.decode(line).amount;
+            }
+            long fastNanos = System.nanoTime() - t0;
+            long fastBytes = threads.getThreadAllocatedBytes(threadId) - bytes0;
+            if (pass == 1) {
+                System.out.println("Gson decode: " + gsonNanos / rounds + " ns, " + gsonBytes / rounds
+                        + " B per request; RequestDecoder: " + fastNanos / rounds + " ns, " + fastBytes / rounds
+                        + " B per request (" + sum + ")");
+                assert fastBytes < gsonBytes;
+            }
+        }
+    }
+
+    @Test
+    public void R_testBinaryProtocol() throws Exception {
+        new Thread(() -> {
+            try {
+                Server server = new Server();
+                server.setPort(5006);
+                server.setBinaryPort(5007);
+                server.init(1_000_000.0);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+        Thread.sleep(500);
+
+        int n = 5000;
+        try (client.BinaryPocketClient binary = new client.BinaryPocketClient("localhost", 5007);
+                Socket socket = new Socket("localhost", 5006)) {
+            Pocket added = binary.addPocket("Binary", 10);
+            assert added.getBalance() == 10 && added.getMainAccount().getAvailableBalance() == 1_000_000 - 10;
+
+            try {
+                binary.withdrawFromPocket("Binary", 50);
+                assert false;
+            } catch (IllegalStateException expected) {
+                assert expected.getMessage().equals("Insufficient funds in pocket");
+            }
+
+            socket.setTcpNoDelay(true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            String jsonRequest = gson.toJson(operation("DEPOSIT_POCKET", "name", "Binary", "amount", "1"));
+            long jsonBytes = 0;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                writer.write(jsonRequest);
+                writer.newLine();
+                writer.flush();
+                jsonBytes += jsonRequest.length() + 1 + reader.readLine().length() + 1;
+            }
+            long jsonNanos = System.nanoTime() - t0;
+
+            long sent = binary.getBytesSent();
+            long received = binary.getBytesReceived();
+            t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                binary.depositInPocket("Binary", 1);
+            }
+            long binaryNanos = System.nanoTime() - t0;
+            long binaryBytes = binary.getBytesSent() - sent + binary.getBytesReceived() - received;
+
+            System.out.println("JSON: " + (long) (n / (jsonNanos / 1e9)) + " req/s, " + jsonBytes / n
+                    + " bytes/op; binary: " + (long) (n / (binaryNanos / 1e9)) + " req/s, " + binaryBytes / n
+                    + " bytes/op");
+
+            // ambos listeners comparten el mismo PocketService
+            MainAccount account = binary.getMainAccount();
+            assert account.getPockets().size() == 1;
+            assert account.getPockets().get(0).getBalance() == 10 + 2 * n;
+            assert account.getTotalBalance() == 1_000_000;
+            assert binaryBytes < jsonBytes;
+
+            // una cuenta que no entra en un frame es un error, y la conexión sigue en fase
+            String padding = "x".repeat(200);
+            for (int i = 0; i < 5200; i++) {
+                binary.addPocket("Big " + i + " " + padding, 0);
+            }
+            try {
+                binary.getMainAccount();
+                assert false;
+            } catch (IllegalStateException expected) {
+                assert expected.getMessage().equals("Account too large for one frame");
+            }
+            assert binary.depositInPocket("Binary", 1).getBalance() == 11 + 2 * n;
+        }
+
+        // un nombre que dice ser más largo que el frame no lee bytes viejos
+        try (Socket raw = new Socket("localhost", 5007)) {
+            java.io.DataOutputStream out = new java.io.DataOutputStream(raw.getOutputStream());
+            java.io.DataInputStream in = new java.io.DataInputStream(raw.getInputStream());
+            for (byte[] body : new byte[][] { { dtos.BinaryProtocol.DEPOSIT_POCKET, 0x01, (byte) 0xF4, 'a', 'b' },
+                    { dtos.BinaryProtocol.DEPOSIT_ACCOUNT, 0 } }) {
+                out.writeInt(body.length);
+                out.write(body);
+                out.flush();
+                byte[] reply = new byte[in.readInt()];
+                in.readFully(reply);
+                java.nio.ByteBuffer frame = java.nio.ByteBuffer.wrap(reply);
+                assert frame.get() == dtos.BinaryProtocol.ERROR;
+                assert dtos.BinaryProtocol.getName(frame).equals("Malformed frame");
+            }
+        }
+    }
+
+    @Test
+    public void S_testConnectionPool() throws Exception {
+        ConnectionManager pool = ConnectionManager.getInstance();
+        int base = pool.getActiveConnections(); // la conexión que abrió init()
+        pool.configurePool(0, base + 2, 200);
+        try {
+            Connection c1 = pool.getConnection();
+            Connection c2 = pool.getConnection();
+            assert c1 != null && c2 != null;
+            long timeouts = pool.getTimeouts();
+            assert pool.getConnection() == null;
+            assert pool.getTimeouts() == timeouts + 1;
+
+            c1.close();
+            assert c1.isClosed();
+            assert pool.getIdleConnections() == 1;
+            Connection c3 = pool.getConnection();
+            assert c3 != null && !c3.isClosed();
+            assert pool.getIdleConnections() == 0 && pool.getActiveConnections() == base + 2;
+            c2.close();
+            c3.close();
+
+            pool.configurePool(0, base + 4, 5000);
+            int threads = 16;
+            CountDownLatch done = new CountDownLatch(threads);
+            List<Exception> errors = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 50; i++) {
+                            try (Connection c = pool.getConnection(); var st = c.createStatement()) {
+                                st.executeQuery("SELECT 1").close();
+                            }
+                        }
+                    } catch (Exception e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            done.await();
+            assert errors.isEmpty() : errors;
+            assert pool.getActiveConnections() == base;
+            assert pool.getIdleConnections() <= 4;
+            System.out.println("Pool: " + pool.getBorrowCount() + " borrows, avg wait "
+                    + String.format("%.3f", pool.getAverageWaitMillis()) + " ms, max wait "
+                    + String.format("%.3f", pool.getMaxWaitMillis()) + " ms");
+        } finally {
+            pool.configurePool(1, 10, 5000);
+        }
+    }
+
+    @Test
+    public void T_testDaoStatements() throws Exception {
+        ConnectionManager pool = ConnectionManager.getInstance();
+        int base = pool.getActiveConnections();
+        pool.configurePool(0, base + 1, 5000);
+        try {
+            PocketDao dao = new PocketDao(); // crea la tabla
+            String sql = "SELECT name, balance FROM pocket WHERE name = ?";
+            PreparedStatement first;
+            try (Connection c = pool.getConnection(); PreparedStatement ps = c.prepareStatement(sql)) {
+                first = ps.unwrap(PreparedStatement.class);
+            }
+            try (Connection c = pool.getConnection(); PreparedStatement ps = c.prepareStatement(sql)) {
+                // misma conexión física, mismo statement: close() solo lo devolvió a la caché
+                assert ps.unwrap(PreparedStatement.class) == first;
+                assert !first.isClosed();
+            }
+
+            Pocket pocket = new Pocket();
+            pocket.setName("dao-bench");
+            pocket.setBalance(1);
+            dao.save(pocket);
+            assert dao.finById("dao-bench").getBalance() == 1;
+
+            int n = 20_000;
+            // antes: un prepare por llamada (la variante con opciones no pasa por la caché)
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                try (Connection c = pool.getConnection();
+                     PreparedStatement ps = c.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    ps.setString(1, "dao-bench");
+                    try (ResultSet rs = ps.executeQuery()) {
+                        rs.next();
+                    }
+                }
+                try (Connection c = pool.getConnection();
+                     PreparedStatement ps = c.prepareStatement("UPDATE pocket SET balance = ? WHERE name = ?",
+                             ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    ps.setDouble(1, i);
+                    ps.setString(2, "dao-bench");
+                    ps.executeUpdate();
+                }
+            }
+            double uncached = n / ((System.nanoTime() - start) / 1e9);
+
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                dao.finById("dao-bench");
+                pocket.setBalance(i);
+                dao.update(pocket);
+            }
+            double cached = n / ((System.nanoTime() - start) / 1e9);
+
+            assert dao.finById("dao-bench").getBalance() == n - 1;
+            dao.delete(pocket);
+            assert dao.finById("dao-bench") == null;
+            assert pool.getActiveConnections() == base;
+            System.out.println("DAO finById+update: " + String.format("%.0f", uncached) + " ops/s prepare per call, "
+                    + String.format("%.0f", cached) + " ops/s cached statements");
+        } finally {
+            pool.configurePool(1, 10, 5000);
+        }
+    }
+
+    @Test
+    public void U_testWriteBehind() throws Exception {
+        WriteBehindStore store = new WriteBehindStore(50, 20, 100);
+        try (var st = connection.createStatement()) {
+            st.execute("DELETE FROM main_account");
+            st.execute("DELETE FROM pocket");
+        }
+        PocketService service = store.load(1_000_000);
+        PocketService plain = new PocketService(1_000_000);
+        int pockets = 200;
+        for (int i = 0; i < pockets; i++) {
+            service.addPocket("wb-" + i, 10);
+            plain.addPocket("wb-" + i, 10);
+        }
+
+        double plainRate = runDeposits(plain, "wb-", pockets, 5000);
+        double persistedRate = runDeposits(service, "wb-", pockets, 5000);
+        store.flush();
+
+        PocketDao pocketDao = new PocketDao();
+        MainAccount saved = new MainAccountDao().find();
+        MainAccount live = service.getMainAccount();
+        assert saved.getVersion() == live.getVersion();
+        assert saved.getAvailableBalance() == live.getAvailableBalance();
+        assert saved.getTotalBalance() == live.getTotalBalance();
+        for (int i = 0; i < pockets; i++) {
+            assert pocketDao.finById("wb-" + i).getBalance() == service.getPocket("wb-" + i).getBalance();
+        }
+        assert store.getBackpressureWaits() > 0; // 200 bolsillos con capacidad 100
+        System.out.println("Write-behind: " + String.format("%.0f", plainRate) + " ops/s in memory, "
+                + String.format("%.0f", persistedRate) + " ops/s with write-behind; "
+                + store.getMutations() + " mutations, " + store.getCoalesced() + " coalesced, "
+                + store.getRowsWritten() + " rows in " + store.getFlushes() + " flushes, "
+                + store.getBackpressureWaits() + " backpressure waits ("
+                + String.format("%.1f", store.getBackpressureMillis()) + " ms)");
+        store.close();
+
+        // reinicio: el estado sale de la base
+        WriteBehindStore reloaded = new WriteBehindStore(50, 20, 100);
+        PocketService restored = reloaded.load(0);
+        assert restored.getMainAccount().getVersion() == live.getVersion();
+        assert restored.getMainAccount().getAvailableBalance() == live.getAvailableBalance();
+        assert restored.getMainAccount().getPockets().size() == pockets;
+        restored.withdrawFromPocket("wb-7", 1);
+        reloaded.close();
+        assert pocketDao.finById("wb-7").getBalance() == service.getPocket("wb-7").getBalance() - 1;
+
+        // si la base falla al cargar no se arranca de cero: un flush pisaría lo guardado
+        MainAccount kept = new MainAccountDao().find();
+        for (String table : new String[] { "pocket", "main_account" }) {
+            try (var st = connection.createStatement()) {
+                st.execute("ALTER TABLE " + table + " RENAME TO " + table + "_moved");
+            }
+            WriteBehindStore broken = new WriteBehindStore(50, 20, 100);
+            try {
+                broken.load(5);
+                assert false : "load should fail without table " + table;
+            } catch (java.sql.SQLException expected) {
+            } finally {
+                broken.close();
+                try (var st = connection.createStatement()) {
+                    st.execute("ALTER TABLE " + table + "_moved RENAME TO " + table);
+                }
+            }
+        }
+        MainAccount after = new MainAccountDao().find();
+        assert after.getVersion() == kept.getVersion() && after.getTotalBalance() == kept.getTotalBalance();
+        assert pocketDao.findAll().size() == pockets;
+
+        try (var st = connection.createStatement()) {
+            st.execute("DELETE FROM main_account");
+            st.execute("DELETE FROM pocket");
+        }
+    }
+
+    @Test
+    public void V_testWriteAheadLog() throws Exception {
+        Path dir = temp.newFolder("wal").toPath();
+        int pockets = 50;
+        for (WriteAheadLog.FsyncPolicy policy : WriteAheadLog.FsyncPolicy.values()) {
+            Path file = dir.resolve(policy + ".log");
+            PocketService service = WriteAheadLog.recover(file, 1_000_000);
+            WriteAheadLog wal = new WriteAheadLog(file, policy, 5);
+            wal.attach(service);
+            for (int i = 0; i < pockets; i++) {
+                service.addPocket("wal-" + i, 10);
+            }
+            service.depositInAccount(5);
+            double rate = runDeposits(service, "wal-", pockets, 2000);
+            wal.close();
+            System.out.println("WAL " + policy + ": " + String.format("%.0f", rate) + " ops/s, "
+                    + wal.getRecords() + " records, " + wal.getSyncs() + " fsyncs, "
+                    + wal.getBytesWritten() / wal.getRecords() + " bytes/record");
+            assert wal.getDurableVersion() == service.getMainAccount().getVersion();
+
+            MainAccount live = service.getMainAccount();
+            MainAccount recovered = WriteAheadLog.recover(file, 0).getMainAccount();
+            assert recovered.getVersion() == live.getVersion();
+            assert recovered.getAvailableBalance() == live.getAvailableBalance();
+            assert recovered.getTotalBalance() == live.getTotalBalance();
+            assert recovered.getPockets().size() == pockets;
+            for (int i = 0; i < pockets; i++) {
+                assert recovered.getPockets().get(i).getName().equals("wal-" + i);
+                assert recovered.getPockets().get(i).getBalance() == live.getPockets().get(i).getBalance();
+            }
+        }
+
+        // cola partida por un corte: se descarta y el log sigue siendo utilizable
+        Path file = dir.resolve("ALWAYS.log");
+        long size = Files.size(file);
+        Files.write(file, new byte[] { 0, 0, 0, 60, 1, 2, 3 }, StandardOpenOption.APPEND);
+        PocketService service = WriteAheadLog.recover(file, 0);
+        assert Files.size(file) == size;
+        WriteAheadLog wal = new WriteAheadLog(file, WriteAheadLog.FsyncPolicy.ALWAYS, 0);
+        wal.attach(service);
+        service.withdrawFromPocket("wal-0", 1);
+        wal.close();
+        assert WriteAheadLog.recover(file, 0).getPocket("wal-0").getBalance() == service.getPocket("wal-0").getBalance();
+
+        // una transferencia y un batch van en un registro cada uno
+        Path groups = dir.resolve("groups.log");
+        PocketService grouped = WriteAheadLog.recover(groups, 1000);
+        WriteAheadLog groupLog = new WriteAheadLog(groups, WriteAheadLog.FsyncPolicy.ALWAYS, 0);
+        groupLog.attach(grouped);
+        grouped.addPocket("a", 100);
+        grouped.addPocket("b", 100);
+        grouped.transferBetweenPockets("a", "b", 30);
+        grouped.executeBatch(List.of(
+                new PocketOperation(PocketOperation.Type.DEPOSIT_POCKET, "a", 5),
+                new PocketOperation(PocketOperation.Type.WITHDRAW_POCKET, "b", 10),
+                new PocketOperation(PocketOperation.Type.DEPOSIT_ACCOUNT, null, 7)), true);
+        groupLog.close();
+        assert groupLog.getRecords() == 4;
+        MainAccount whole = WriteAheadLog.recover(groups, 1000).getMainAccount();
+        assert whole.getVersion() == 7 && whole.getTotalBalance() == 1007;
+        assert whole.getPockets().get(0).getBalance() == 75 && whole.getPockets().get(1).getBalance() == 120;
+        // corte dentro del batch: se pierde entero, nunca la mitad
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(groups, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        MainAccount cut = WriteAheadLog.recover(groups, 1000).getMainAccount();
+        assert cut.getVersion() == 4 && cut.getTotalBalance() == 1000;
+        assert cut.getPockets().get(0).getBalance() == 70 && cut.getPockets().get(1).getBalance() == 130;
+
+        // fail-stop: si el log no puede escribir, el servicio no acepta más escrituras
+        PocketService stopped = WriteAheadLog.recover(groups, 1000);
+        WriteAheadLog closedLog = new WriteAheadLog(groups, WriteAheadLog.FsyncPolicy.NONE, 0);
+        closedLog.attach(stopped);
+        closedLog.close();
+        try {
+            stopped.depositInPocket("a", 1);
+            assert false;
+        } catch (IllegalStateException e) {
+            assert e.getMessage().equals("Write-ahead log is not available");
+        }
+        assert stopped.isHalted();
+        try {
+            stopped.transferBetweenPockets("a", "b", 1);
+            assert false;
+        } catch (IllegalStateException e) {
+            assert e.getMessage().equals("Service is not accepting writes");
+        }
+        // lo que se aplicó antes de la falla se ve pero no es durable
+        assert stopped.getPocket("a").getBalance() == 71;
+        assert WriteAheadLog.recover(groups, 1000).getPocket("a").getBalance() == 70;
+    }
+
+    @Test
+    public void W_testCheckpoint() throws Exception {
+        Path dir = temp.newFolder("checkpoint").toPath();
+        int n = 1_000_000;
+        String[] names = new String[n];
+        double[] balances = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            names[i] = "cp-" + i;
+            balances[i] = i % 1000;
+            sum += balances[i];
+        }
+        PocketService big = PocketService.restore(1_000_000, 1_000_000 + sum, 0, names, balances, n);
+        big.depositInPocket("cp-5", 1);
+
+        Path file = dir.resolve("state.ckp");
+        Checkpoint checkpoint = new Checkpoint(big, file, null, 0);
+        long start = System.nanoTime();
+        checkpoint.checkpoint();
+        double writeMillis = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        PocketService loaded = Checkpoint.recover(file, null, 0);
+        double loadMillis = (System.nanoTime() - start) / 1e6;
+
+        MainAccount account = loaded.getMainAccount();
+        assert account.getVersion() == 1;
+        assert account.getPockets().size() == n;
+        assert account.getTotalBalance() == big.getMainAccount().getTotalBalance();
+        assert account.getPockets().get(n - 1).getName().equals("cp-" + (n - 1));
+        assert loaded.getPocket("cp-5").getBalance() == 6;
+        loaded.withdrawFromPocket("cp-999", 999);
+
+        // referencia: la misma carga fila por fila desde H2, con 100k bolsillos
+        int rows = 100_000;
+        PocketDao dao = new PocketDao();
+        List<Pocket> saved = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            Pocket p = new Pocket();
+            p.setName(names[i]);
+            p.setBalance(balances[i]);
+            saved.add(p);
+        }
+        try (Connection c = ConnectionManager.getInstance().getConnection()) {
+            dao.upsertAll(c, saved);
+        }
+        start = System.nanoTime();
+        List<Pocket> fromDb = dao.findAll();
+        PocketService.restore(0, 0, 0, fromDb);
+        double dbMillis = (System.nanoTime() - start) / 1e6;
+        assert fromDb.size() == rows;
+        try (var st = connection.createStatement()) {
+            st.execute("DELETE FROM pocket");
+        }
+        System.out.println("Checkpoint 1M pockets: " + checkpoint.getLastBytes() / 1024 / 1024 + " MiB written in "
+                + String.format("%.0f", writeMillis) + " ms, loaded in " + String.format("%.0f", loadMillis)
+                + " ms (" + String.format("%.2f", loadMillis * 1000 / n) + " us/pocket); H2 findAll "
+                + String.format("%.2f", dbMillis * 1000 / rows) + " us/pocket");
+
+        // con log: cada foto rota el log y lo que queda es solo lo posterior
+        Path walFile = dir.resolve("wal.log");
+        PocketService service = Checkpoint.recover(dir.resolve("svc.ckp"), walFile, 1_000_000);
+        WriteAheadLog wal = new WriteAheadLog(walFile, WriteAheadLog.FsyncPolicy.NONE, 0);
+        wal.attach(service);
+        for (int i = 0; i < 20; i++) {
+            service.addPocket("ck-" + i, 100);
+        }
+        Checkpoint periodic = new Checkpoint(service, dir.resolve("svc.ckp"), wal, 10);
+        periodic.start();
+        runDeposits(service, "ck-", 20, 2000);
+        // con una sola CPU el hilo de fotos puede no haber corrido todavía
+        long deadline = System.currentTimeMillis() + 5000;
+        while (periodic.getCheckpoints() <= 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        periodic.close();
+        assert periodic.getCheckpoints() > 1;
+        assert !Files.exists(dir.resolve("wal.log.old"));
+        service.depositInPocket("ck-3", 7);
+        service.depositInAccount(3);
+        wal.close();
+        assert Files.size(walFile) < 200; // dos registros después de la última foto
+
+        MainAccount live = service.getMainAccount();
+        MainAccount recovered = Checkpoint.recover(dir.resolve("svc.ckp"), walFile, 0).getMainAccount();
+        assert recovered.getVersion() == live.getVersion();
+        assert recovered.getAvailableBalance() == live.getAvailableBalance();
+        assert recovered.getTotalBalance() == live.getTotalBalance();
+        for (int i = 0; i < 20; i++) {
+            assert recovered.getPockets().get(i).getBalance() == live.getPockets().get(i).getBalance();
+        }
+    }
+
+    private Response call(JsonObject request) throws Exception {
+        return call(5000, request);
+    }
+
+    private Response call(int port, JsonObject request) throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            writer.write(gson.toJson(request));
+            writer.newLine();
+            writer.flush();
+            return gson.fromJson(reader.readLine(), Response.class);
+        }
+    }
+
+    @Test
+    public void X_testListPockets() throws Exception {
+        JsonObject[] adds = new JsonObject[120];
+        for (int i = 0; i < adds.length; i++) {
+            // nombres desordenados para que el orden venga del índice
+            adds[i] = operation("ADD_POCKET", "name", "list-" + (char) ('a' + (i * 7) % 26) + "-" + i, "initialAmount", "1");
+        }
+        assert batch(true, adds).data.get("committed").getAsBoolean();
+        assert batch(true, operation("ADD_POCKET", "name", "list_x", "initialAmount", "1")).data.get("committed").getAsBoolean();
+
+        List<String> seen = new ArrayList<>();
+        String after = null;
+        int pages = 0;
+        do {
+            JsonObject request = after == null
+                    ? operation("LIST_POCKETS", "prefix", "list-", "limit", "50")
+                    : operation("LIST_POCKETS", "prefix", "list-", "limit", "50", "after", after);
+            Response page = call(request);
+            assert page.status.equals("ok");
+            for (var pocket : page.data.getAsJsonArray("pockets")) {
+                seen.add(pocket.getAsJsonObject().get("name").getAsString());
+                assert pocket.getAsJsonObject().get("balance").getAsDouble() == 1;
+            }
+            after = page.data.has("next") ? page.data.get("next").getAsString() : null;
+            pages++;
+        } while (after != null);
+        assert pages == 3;
+        assert seen.size() == 120;
+        List<String> sorted = new ArrayList<>(seen);
+        java.util.Collections.sort(sorted);
+        assert seen.equals(sorted);
+        assert !seen.contains("list_x");
+
+        Response bad = call(operation("LIST_POCKETS", "limit", "5000"));
+        assert bad.status.equals("error");
+
+        // mismo recorrido del lado de la base, por clave y sin OFFSET
+        PocketDao dao = new PocketDao();
+        List<Pocket> rows = new ArrayList<>();
+        for (String name : seen) {
+            Pocket p = new Pocket();
+            p.setName(name);
+            p.setBalance(1);
+            rows.add(p);
+        }
+        Pocket other = new Pocket();
+        other.setName("list_x");
+        rows.add(other);
+        try (Connection c = ConnectionManager.getInstance().getConnection()) {
+            dao.upsertAll(c, rows);
+        }
+        List<String> fromDb = new ArrayList<>();
+        String cursor = null;
+        List<Pocket> dbPage;
+        do {
+            dbPage = dao.findPage(cursor, "list-", 50);
+            for (Pocket p : dbPage) {
+                fromDb.add(p.getName());
+            }
+            cursor = dbPage.isEmpty() ? null : dbPage.get(dbPage.size() - 1).getName();
+        } while (dbPage.size() == 50);
+        assert fromDb.equals(seen);
+        int[] streamed = new int[1];
+        dao.forEach(p -> streamed[0]++);
+        assert streamed[0] == 121;
+        try (var st = connection.createStatement()) {
+            st.execute("DELETE FROM pocket");
+        }
+    }
+
+    @Test
+    public void Y_testPrimitiveStore() throws Exception {
+        for (PocketService.StoreType type : new PocketService.StoreType[] { PocketService.StoreType.PRIMITIVE,
+                PocketService.StoreType.OFF_HEAP }) {
+            PocketService service = new PocketService(type, 1000);
+            List<Mutation> seen = new ArrayList<>();
+            service.addMutationListener(m -> {
+                synchronized (seen) {
+                    seen.add(m);
+                }
+            });
+            Pocket ahorro = service.addPocket("ahorro", 100.10);
+            assert ahorro.getBalance() == 100.10;
+            assert ahorro.getMainAccount().getAvailableBalance() == 899.90;
+            // la cuenta de una mutación trae solo totales y versión, nunca bolsillos de una versión posterior
+            assert ahorro.getMainAccount().getPockets().isEmpty();
+            assert ahorro.getMainAccount().getVersion() == 1;
+            assert service.depositInPocket("ahorro", 0.2).getBalance() == 100.30;
+            assert service.withdrawFromPocket("ahorro", 50).getBalance() == 50.30;
+            assert service.depositInAccount(10).getTotalBalance() == 1010;
+            try {
+                service.depositInPocket("ahorro", 0.001);
+                assert false;
+            } catch (IllegalArgumentException e) {
+                assert e.getMessage().contains("decimals");
+            }
+            try {
+                service.withdrawFromPocket("ahorro", 60);
+                assert false;
+            } catch (IllegalStateException e) {
+                assert e.getMessage().equals("Insufficient funds in pocket");
+            }
+            try {
+                service.getPocket("nada");
+                assert false;
+            } catch (IllegalArgumentException e) {
+                assert e.getMessage().equals("Pocket not found: nada");
+            }
+
+            // atómico con una falla: nada cambia y no se avisa a nadie
+            List<PocketOperation> ops = List.of(
+                    new PocketOperation(PocketOperation.Type.ADD_POCKET, "viaje", 10),
+                    new PocketOperation(PocketOperation.Type.WITHDRAW_POCKET, "ahorro", 1000));
+            BatchResult rolled = service.executeBatch(ops, true);
+            assert !rolled.isCommitted();
+            assert rolled.getItems().get(0).getStatus() == BatchResult.Status.ROLLED_BACK;
+            assert rolled.getAccount().getPockets().size() == 1;
+            BatchResult partial = service.executeBatch(ops, false);
+            assert partial.isCommitted();
+            assert service.getPocket("viaje").getBalance() == 10;
+            MainAccount account = service.getMainAccount();
+            assert account.getVersion() == 5;
+            assert account.getAvailableBalance() == 949.70;
+            assert seen.size() == 5;
+            assert seen.get(4).getName().equals("viaje") && seen.get(4).getVersion() == 5;
+
+            service.depositInAccount(100_000);
+            for (int i = 0; i < 40; i++) {
+                service.addPocket("grow-" + i, 100);
+            }
+            assert service.listPockets("grow-8", "grow-", 10).getPockets().size() == 1;
+            assert service.listPockets(null, null, 3).getNext().equals("grow-1");
+            MainAccount last = service.getMainAccount();
+            PocketService copy = PocketService.restore(type, last.getAvailableBalance(), last.getTotalBalance(),
+                    last.getVersion(), last.getPockets());
+            assert copy.getMainAccount().getPockets().size() == 42;
+            assert copy.getPocket("grow-39").getBalance() == 100;
+            runDeposits(service, "grow-", 40, 3000);
+            assert service.getMainAccount().getVersion() == last.getVersion() + 8 * 3000;
+        }
+
+        // por el servidor: una mutación sin mode=delta se rechaza antes de aplicarse
+        Server compact = new Server();
+        compact.setStoreType(PocketService.StoreType.PRIMITIVE);
+        compact.prepare(1000.0);
+        String[] full = {
+                "{\"action\":\"ADD_POCKET\",\"data\":{\"name\":\"c\",\"initialAmount\":\"10\"}}",
+                "{\"action\":\"DEPOSIT_ACCOUNT\",\"data\":{\"amount\":\"10\"}}",
+                "{\"data\":{\"initialAmount\":\"10\",\"name\":\"c\"},\"action\":\"ADD_POCKET\"}" };
+        for (String line : full) {
+            dtos.Response rejected = compact.processLine(line);
+            assert rejected.status.equals("error");
+            assert rejected.data.get("message").getAsString()
+                    .equals("The PRIMITIVE store only replies to mutations with mode=delta");
+        }
+        dtos.Response added = compact.processLine(
+                "{\"action\":\"ADD_POCKET\",\"data\":{\"name\":\"c\",\"initialAmount\":\"10\",\"mode\":\"delta\"}}");
+        assert compact.encode(added).equals("{\"status\":\"ok\",\"data\":{\"availableBalance\":990.0,"
+                + "\"totalBalance\":1000.0,\"version\":1,\"pocket\":{\"name\":\"c\",\"balance\":10.0}}}");
+        MainAccount compactAccount = (MainAccount) compact.processLine("{\"action\":\"GET_ACCOUNT\"}").entity;
+        assert compactAccount.getPockets().size() == 1 && compactAccount.getVersion() == 1;
+
+        // memoria por bolsillo y GC con 1M bolsillos; los nombres son los mismos en los tres
+        int n = 1_000_000;
+        String[] names = new String[n];
+        double[] balances = new double[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = "mem-" + i;
+            balances[i] = 10;
+        }
+        BufferPoolMXBean direct = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(b -> b.getName().equals("direct")).findFirst().get();
+        for (PocketService.StoreType type : PocketService.StoreType.values()) {
+            long heapBefore = usedHeap();
+            long directBefore = direct.getMemoryUsed();
+            PocketService service = PocketService.restore(type, 1_000_000, 1_000_000 + 10.0 * n, 0, names, balances, n);
+            service.getPocket("mem-0");
+            long heap = usedHeap() - heapBefore;
+            long offHeap = direct.getMemoryUsed() - directBefore;
+
+            long[] gcBefore = gcTotals();
+            double opsPerSec = runDeposits(service, "mem-", n, 50_000);
+            long[] gc = gcTotals();
+            assert service.getMainAccount().getPockets().size() == n;
+            System.out.println("Store " + type + ": " + heap / n + " B/pocket heap, " + offHeap / n
+                    + " B/pocket off-heap; " + String.format("%.0f", opsPerSec) + " ops/s, "
+                    + (gc[0] - gcBefore[0]) + " GCs, " + (gc[1] - gcBefore[1]) + " ms in GC");
+            service = null;
+        }
+    }
+
+    @Test
+    public void Z_testOptimisticReads() throws Exception {
+        int pockets = 1000;
+        for (PocketService.StoreType type : PocketService.StoreType.values()) {
+            PocketService service = new PocketService(type, 1_000_000);
+            for (int i = 0; i < pockets; i++) {
+                service.addPocket("read-" + i, 100);
+            }
+            // 90% lecturas (casi todas GET_ACCOUNT), cada foto tiene que cerrar: disponible + bolsillos = total
+            int threads = 8;
+            int perThread = 20_000;
+            CountDownLatch done = new CountDownLatch(threads);
+            List<Throwable> errors = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int seed = t;
+                new Thread(() -> {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            String name = "read-" + ((seed * 31 + i * 7) % pockets);
+                            if (i % 10 == 0) {
+                                if (i % 20 == 0) service.withdrawFromPocket(name, 1);
+                                else service.depositInPocket(name, 1);
+                            } else if (i % 10 == 1) {
+                                assert service.getPocket(name).getBalance() > 50;
+                            } else {
+                                MainAccount account = service.getMainAccount();
+                                double sum = 0;
+                                for (Pocket p : account.getPockets()) {
+                                    sum += p.getBalance();
+                                }
+                                assert account.getPockets().size() == pockets;
+                                assert account.getAvailableBalance() + sum == account.getTotalBalance()
+                                        : account.getVersion();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            done.await();
+            assert errors.isEmpty() : errors;
+            double opsPerSec = threads * perThread / ((System.nanoTime() - start) / 1e9);
+            assert service.getMainAccount().getVersion() == pockets + threads * perThread / 10;
+            try {
+                service.getPocket("read-x");
+                assert false;
+            } catch (IllegalArgumentException e) {
+                assert e.getMessage().equals("Pocket not found: read-x");
+            }
+            System.out.println("Read-heavy " + type + " (" + pockets + " pockets, 90% reads): "
+                    + String.format("%.0f", opsPerSec) + " ops/s");
+        }
+    }
+
+    @Test
+    public void Za_testShardedAccounts() throws Exception {
+        new Thread(() -> {
+            try {
+                Server server = new Server();
+                server.setPort(5008);
+                server.setShards(4);
+                server.setAccountIds(List.of("ana", "beto"));
+                server.init(1000.0);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+        Thread.sleep(500);
+
+        // cada cuenta es independiente; sin "account" sigue la cuenta por defecto
+        Response ana = call(5008, operation("ADD_POCKET", "account", "ana", "name", "viaje", "initialAmount", "100"));
+        assert ana.status.equals("ok");
+        assert ana.data.getAsJsonObject("mainAccount").get("availableBalance").getAsDouble() == 900;
+        Response beto = call(5008, operation("DEPOSIT_POCKET", "account", "beto", "name", "viaje", "amount", "1"));
+        assert beto.data.get("message").getAsString().equals("Pocket not found: viaje");
+        assert call(5008, operation("DEPOSIT_ACCOUNT", "account", "beto", "amount", "50", "mode", "delta"))
+                .data.get("totalBalance").getAsDouble() == 1050;
+        Response batch = call(5008, operation("BATCH", "account", "ana", "atomic", "true"));
+        assert batch.status.equals("error");
+        JsonObject ops = operation("BATCH", "account", "ana", "atomic", "true");
+        com.google.gson.JsonArray list = new com.google.gson.JsonArray();
+        list.add(operation("WITHDRAW_POCKET", "name", "viaje", "amount", "40"));
+        list.add(operation("ADD_POCKET", "name", "auto", "initialAmount", "10"));
+        ops.add("operations", list);
+        assert call(5008, ops).data.get("committed").getAsBoolean();
+        Response page = call(5008, operation("LIST_POCKETS", "account", "ana"));
+        assert page.data.getAsJsonArray("pockets").size() == 2;
+        assert call(5008, operation("GET_ACCOUNT", "account", "ana")).data.get("availableBalance").getAsDouble() == 930;
+        assert call(5008, operation("GET_ACCOUNT")).data.get("availableBalance").getAsDouble() == 1000;
+        // un id que no está configurado no crea una cuenta (ni fondos), ni siquiera al leer
+        for (String action : new String[] { "GET_ACCOUNT", "DEPOSIT_ACCOUNT", "LIST_POCKETS" }) {
+            Response unknown = call(5008, operation(action, "account", "anna", "amount", "1"));
+            assert unknown.status.equals("error");
+            assert unknown.data.get("message").getAsString().equals("Account not found");
+        }
+        assert call(operation("GET_ACCOUNT", "account", "ana")).data.get("message").getAsString()
+                .equals("Multiple accounts are not enabled");
+
+        // benchmark: shards 1..8, carga uniforme o con una cuenta caliente (80% de las operaciones)
+        int accounts = 64;
+        int threads = 8;
+        int perThread = 20_000;
+        for (int shards : new int[] { 1, 2, 4, 8 }) {
+            for (boolean skewed : new boolean[] { false, true }) {
+                List<String> ids = new ArrayList<>();
+                for (int a = 0; a < accounts; a++) {
+                    ids.add("acc-" + a);
+                }
+                ShardedPocketService service = new ShardedPocketService(shards, PocketService.StoreType.IMMUTABLE,
+                        1_000_000, ids.subList(0, accounts / 2));
+                for (int a = accounts / 2; a < accounts; a++) {
+                    assert service.createAccount("acc-" + a);
+                }
+                assert !service.createAccount("acc-0");
+                for (int a = 0; a < accounts; a++) {
+                    service.execute("acc-" + a, account -> account.addPocket("p", 1000));
+                }
+                CountDownLatch done = new CountDownLatch(threads);
+                List<Exception> errors = new ArrayList<>();
+                long start = System.nanoTime();
+                for (int t = 0; t < threads; t++) {
+                    int seed = t;
+                    new Thread(() -> {
+                        try {
+                            java.util.Random random = new java.util.Random(seed);
+                            for (int i = 0; i < perThread; i++) {
+                                int a = skewed && random.nextInt(10) < 8 ? 0 : random.nextInt(accounts);
+                                boolean withdraw = i % 2 == 1;
+                                service.execute("acc-" + a, account -> withdraw
+                                        ? account.withdrawFromPocket("p", 1)
+                                        : account.depositInPocket("p", 1));
+                            }
+                        } catch (Exception e) {
+                            synchronized (errors) {
+                                errors.add(e);
+                            }
+                        } finally {
+                            done.countDown();
+                        }
+                    }).start();
+                }
+                done.await();
+                double opsPerSec = threads * perThread / ((System.nanoTime() - start) / 1e9);
+                assert errors.isEmpty() : errors;
+                long processed = 0;
+                for (int i = 0; i < shards; i++) {
+                    processed += service.getProcessed(i);
+                }
+                // altas (y el intento repetido) + bolsillos + operaciones
+                assert processed == accounts / 2 + 1 + accounts + threads * perThread;
+                double total = 0;
+                for (int a = 0; a < accounts; a++) {
+                    total += service.execute("acc-" + a, account -> account.getMainAccount().getTotalBalance());
+                }
+                assert total == accounts * 1_000_000.0;
+                service.close();
+                System.out.println("Shards " + shards + (skewed ? " skewed" : " uniform") + ": "
+                        + String.format("%.0f", opsPerSec) + " ops/s");
+            }
+        }
+
+        // cerrar con llamadas en vuelo: cada submit aceptado termina, con resultado o "Service is closed"
+        for (int round = 0; round < 50; round++) {
+            ShardedPocketService service = new ShardedPocketService(2, PocketService.StoreType.IMMUTABLE, 1000,
+                    List.of("a", "b"));
+            List<java.util.concurrent.CompletableFuture<Double>> futures = new ArrayList<>();
+            CountDownLatch submitting = new CountDownLatch(threads);
+            List<Thread> producers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String id = t % 2 == 0 ? "a" : "b";
+                Thread producer = new Thread(() -> {
+                    submitting.countDown();
+                    while (true) {
+                        java.util.concurrent.CompletableFuture<Double> future;
+                        try {
+                            future = service.submit(id, account -> account.getMainAccount().getAvailableBalance());
+                        } catch (IllegalStateException closed) {
+                            return;
+                        }
+                        synchronized (futures) {
+                            futures.add(future);
+                        }
+                    }
+                });
+                producers.add(producer);
+                producer.start();
+            }
+            submitting.await();
+            service.close();
+            for (Thread producer : producers) {
+                producer.join(5000);
+                assert !producer.isAlive();
+            }
+            for (java.util.concurrent.CompletableFuture<Double> future : futures) {
+                try {
+                    assert future.get(5, java.util.concurrent.TimeUnit.SECONDS) == 1000;
+                } catch (java.util.concurrent.ExecutionException e) {
+                    assert e.getCause().getMessage().equals("Service is closed");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void Zb_testIdempotency() throws Exception {
+        JsonObject add = operation("ADD_POCKET", "name", "idem", "initialAmount", "1", "idempotencyKey", "k-add");
+        Response first = call(add);
+        Response retry = call(add);
+        assert first.status.equals("ok");
+        assert retry.data.equals(first.data);
+        double available = first.data.getAsJsonObject("mainAccount").get("availableBalance").getAsDouble();
+
+        JsonObject deposit = operation("DEPOSIT_POCKET", "name", "idem", "amount", "1", "idempotencyKey", "k-dep", "mode", "delta");
+        assert call(deposit).data.getAsJsonObject("pocket").get("balance").getAsDouble() == 2;
+        assert call(deposit).data.getAsJsonObject("pocket").get("balance").getAsDouble() == 2;
+        Response reused = call(operation("DEPOSIT_POCKET", "name", "idem", "amount", "5", "idempotencyKey", "k-dep"));
+        assert reused.data.get("message").getAsString().equals("Idempotency key already used for a different request");
+
+        // un rechazo también es definitivo
+        JsonObject withdraw = operation("WITHDRAW_POCKET", "name", "idem", "amount", "50", "idempotencyKey", "k-wd");
+        assert call(withdraw).data.get("message").getAsString().equals("Insufficient funds in pocket");
+        assert call(withdraw).data.get("message").getAsString().equals("Insufficient funds in pocket");
+
+        // reintentos simultáneos: uno ejecuta, el resto espera su respuesta
+        JsonObject concurrent = operation("DEPOSIT_POCKET", "name", "idem", "amount", "1", "idempotencyKey", "k-conc");
+        int clients = 8;
+        CountDownLatch done = new CountDownLatch(clients);
+        List<Response> responses = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            new Thread(() -> {
+                try {
+                    Response r = call(concurrent);
+                    synchronized (responses) {
+                        responses.add(r);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assert responses.size() == clients;
+        for (Response r : responses) {
+            assert r.data.equals(responses.get(0).data);
+        }
+
+        // BATCH entra por Gson
+        JsonObject batch = operation("BATCH", "atomic", "true", "idempotencyKey", "k-batch");
+        com.google.gson.JsonArray ops = new com.google.gson.JsonArray();
+        ops.add(operation("DEPOSIT_POCKET", "name", "idem", "amount", "2"));
+        batch.add("operations", ops);
+        assert call(batch).data.get("committed").getAsBoolean();
+        assert call(batch).data.get("committed").getAsBoolean();
+
+        Pocket idem = null;
+        Response account = call(operation("GET_ACCOUNT"));
+        for (var p : account.data.getAsJsonArray("pockets")) {
+            if (p.getAsJsonObject().get("name").getAsString().equals("idem")) idem = gson.fromJson(p, Pocket.class);
+        }
+        assert idem.getBalance() == 5; // 1 + 1 + 1 + 2, cada uno una sola vez
+        assert account.data.get("availableBalance").getAsDouble() == available - 4;
+
+        // la caché sola: LRU por cantidad, vencimiento y métricas
+        IdempotencyCache cache = new IdempotencyCache(2, 1 << 20, 50, 1000);
+        assert cache.begin("a", "fa") == null;
+        cache.complete("a", "{\"status\":\"ok\"}");
+        assert cache.begin("a", "fa").equals("{\"status\":\"ok\"}");
+        assert cache.begin("b", "fb") == null;
+        cache.complete("b", "{}");
+        cache.begin("a", "fa");
+        assert cache.begin("c", "fc") == null; // desaloja b, la menos usada
+        cache.complete("c", "{}");
+        assert cache.getEntries() == 2 && cache.getEvictions() == 1;
+        assert cache.begin("b", "fb") == null;
+        cache.abandon("b");
+        assert cache.begin("b", "fb") == null;
+        cache.complete("b", "{}");
+        Thread.sleep(60);
+        assert cache.begin("b", "fb") == null && cache.getExpirations() >= 1;
+        cache.complete("b", "{}");
+        assert cache.getHits() == 2 && cache.getHitRate() > 0;
+        assert cache.getBytes() > 0 && cache.getBytes() < 1024;
+        IdempotencyCache small = new IdempotencyCache(1000, 4096, 60_000, 1000);
+        for (int i = 0; i < 100; i++) {
+            small.begin("key-" + i, "f");
+            small.complete("key-" + i, "x".repeat(100));
+        }
+        assert small.getBytes() <= 4096 && small.getEntries() < 100;
+        System.out.println("Idempotency cache: " + small.getEntries() + " entries, " + small.getBytes() + " bytes, "
+                + small.getEvictions() + " evictions");
+
+        // un reintento no espera para siempre a una primera ejecución trabada
+        IdempotencyCache stuck = new IdempotencyCache(10, 1 << 20, 60_000, 50);
+        assert stuck.begin("slow", "f") == null;
+        long waited = System.nanoTime();
+        try {
+            stuck.begin("slow", "f");
+            assert false;
+        } catch (IllegalStateException e) {
+            assert e.getMessage().equals("Request in progress");
+        }
+        assert System.nanoTime() - waited >= 50_000_000L;
+        stuck.complete("slow", "{}");
+        assert stuck.begin("slow", "f").equals("{}");
+
+        // la misma mutación por el decodificador rápido y por Gson, con las claves en otro orden
+        Server paths = new Server();
+        paths.prepare(1000.0);
+        paths.processLine("{\"action\":\"ADD_POCKET\",\"data\":{\"name\":\"p\",\"initialAmount\":\"1\"}}");
+        dtos.Response fast = paths.processLine(
+                "{\"action\":\"DEPOSIT_POCKET\",\"data\":{\"name\":\"p\",\"amount\":\"1\",\"idempotencyKey\":\"k\"}}");
+        dtos.Response slow = paths.handleRequest(gson.fromJson(
+                "{\"data\":{\"idempotencyKey\":\"k\",\"amount\":\"1.0\",\"name\":\"p\"},\"action\":\"DEPOSIT_POCKET\"}",
+                dtos.Request.class));
+        assert paths.encode(slow).equals(paths.encode(fast));
+        assert paths.processLine("{\"action\":\"GET_ACCOUNT\"}").entity instanceof MainAccount;
+        assert ((MainAccount) paths.processLine("{\"action\":\"GET_ACCOUNT\"}").entity).getAvailableBalance() == 998;
+    }
+
+    @Test
+    public void Zc_testStats() throws Exception {
+        call(operation("WITHDRAW_POCKET", "name", "no-such-pocket", "amount", "1"));
+        Response response = call(operation("STATS"));
+        assert response.status.equals("ok");
+        JsonObject stats = response.data;
+        assert stats.get("openConnections").getAsInt() >= 1;
+        JsonObject deposits = stats.getAsJsonObject("actions").getAsJsonObject("DEPOSIT_POCKET");
+        assert deposits.get("count").getAsLong() > 0;
+        assert deposits.get("p50Micros").getAsDouble() <= deposits.get("p99Micros").getAsDouble();
+        assert deposits.get("p99Micros").getAsDouble() <= deposits.get("maxMicros").getAsDouble();
+        JsonObject errors = stats.getAsJsonObject("errors");
+        assert errors.get("Pocket not found").getAsLong() >= 1;
+        assert errors.get("Idempotency key already used for a different request").getAsLong() >= 1;
+        assert stats.getAsJsonObject("actions").getAsJsonObject("WITHDRAW_POCKET").get("errors").getAsLong() >= 1;
+        assert stats.getAsJsonObject("idempotency").get("hits").getAsLong() >= 3;
+
+        // precisión: cada percentil cae en una cubeta de a lo sumo 12.5% de ancho
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 100_000; micros++) {
+            histogram.record(micros * 1000);
+        }
+        assert Math.abs(histogram.percentile(50) - 50_000_000.0) / 50_000_000 < 0.125;
+        assert Math.abs(histogram.percentile(99.9) - 99_900_000.0) / 99_900_000 < 0.125;
+        assert histogram.percentile(100) == 100_000_000;
+        for (long v : new long[] { 0, 7, 8, 9, 1000, 123_456_789, Long.MAX_VALUE }) {
+            int index = LatencyHistogram.indexOf(v);
+            assert LatencyHistogram.upperBound(index) >= v;
+            assert index == 0 || LatencyHistogram.upperBound(index - 1) < v;
+        }
+
+        // costo de registrar frente al costo de atender la petición
+        ServerStats local = new ServerStats();
+        dtos.Response ok = new dtos.Response();
+        ok.status = "ok";
+        int n = 2_000_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            local.record("DEPOSIT_POCKET", i & 0xFFFF, ok);
+        }
+        double recordNanos = (System.nanoTime() - start) / (double) n;
+        double requestNanos = deposits.get("meanMicros").getAsDouble() * 1000;
+        System.out.println("Stats: " + String.format("%.1f", recordNanos) + " ns per record (two nanoTime calls ~"
+                + "40 ns more), DEPOSIT_POCKET mean " + String.format("%.1f", requestNanos / 1000) + " us -> overhead "
+                + String.format("%.2f", 100 * (recordNanos + 40) / requestNanos) + "%");
+
+        Path dump = temp.newFolder("stats").toPath().resolve("stats.json");
+        Thread dumper = local.startDump(dump, 20, () -> local.toJson().toString());
+        for (int i = 0; i < 100 && !Files.exists(dump); i++) {
+            Thread.sleep(20);
+        }
+        dumper.interrupt();
+        dumper.join();
+        JsonObject dumped = gson.fromJson(Files.readString(dump), JsonObject.class);
+        assert dumped.getAsJsonObject("actions").getAsJsonObject("DEPOSIT_POCKET").get("count").getAsLong() == n;
+    }
+
+    @Test
+    public void Zd_testLoadGenerator() throws Exception {
+        // lazo cerrado: 4 clientes con conexión persistente
+        client.LoadGenerator generator = new client.LoadGenerator();
+        generator.setClients(4);
+        generator.setPockets(20);
+        generator.setWarmupMillis(200);
+        generator.setDurationMillis(500);
+        generator.setMix("GET_ACCOUNT:1,DEPOSIT_POCKET:2,WITHDRAW_POCKET:2,LIST_POCKETS:1");
+        client.LoadGenerator.Result closed = generator.run();
+        System.out.print("LoadGenerator " + closed);
+        assert closed.getRequests() > 100;
+        assert closed.getErrors() == 0 : closed.getErrorsByStatus();
+        assert closed.getConnections() == 4;
+        assert closed.getLatencyPercentile(50) <= closed.getLatencyPercentile(99);
+        assert closed.getLatencyPercentile(99) <= closed.getLatencyPercentile(99.9);
+        assert closed.getLatencyPercentile(99.9) <= closed.getMaxLatency();
+
+        // lazo abierto a un ritmo alcanzable, una conexión por petición
+        generator.setRate(1000);
+        generator.setReuseConnections(false);
+        client.LoadGenerator.Result open = generator.run();
+        System.out.print("LoadGenerator " + open);
+        assert open.getErrors() == 0 : open.getErrorsByStatus();
+        assert open.getThroughput() > 800 && open.getThroughput() < 1200;
+        assert open.getConnections() >= open.getRequests();
+
+        // ritmo imposible: la latencia corregida incluye la cola que el servidor acumula,
+        // el tiempo de servicio no
+        generator.setRate(1_000_000);
+        generator.setClients(2);
+        generator.setReuseConnections(true);
+        generator.setMix("DEPOSIT_POCKET:1,WITHDRAW_POCKET:1");
+        client.LoadGenerator.Result overload = generator.run();
+        System.out.print("LoadGenerator " + overload);
+        assert overload.getThroughput() < 1_000_000;
+        assert overload.getLatencyPercentile(99) > 100_000_000L;
+        assert overload.getServicePercentile(50) < overload.getLatencyPercentile(50) / 10;
+    }
+
+    @Test
+    public void Ze_testTransferPocket() throws Exception {
+        Path dir = temp.newFolder("transfer").toPath();
+        for (PocketService.StoreType type : PocketService.StoreType.values()) {
+            Path file = dir.resolve(type + ".log");
+            PocketService service = PocketService.restore(type, 1000, 1000, 0, List.of());
+            WriteAheadLog wal = new WriteAheadLog(file, WriteAheadLog.FsyncPolicy.NONE, 0);
+            wal.attach(service);
+            List<Mutation> published = new ArrayList<>();
+            service.addMutationListener(published::add);
+            service.addPocket("Rent", 300);
+            service.addPocket("Food", 100);
+
+            services.PocketTransfer transfer = service.transferBetweenPockets("Rent", "Food", 50.25);
+            assert transfer.getFrom().getBalance() == 249.75;
+            assert transfer.getTo().getBalance() == 150.25;
+            assert transfer.getAccount().getAvailableBalance() == 600;
+            assert transfer.getAccount().getTotalBalance() == 1000;
+            assert transfer.getAccount().getVersion() == 4;
+            // dos mutaciones con versiones seguidas, como un BATCH de retiro y depósito
+            assert published.size() == 4;
+            assert published.get(2).getType() == PocketOperation.Type.WITHDRAW_POCKET;
+            assert published.get(2).getName().equals("Rent") && published.get(2).getVersion() == 3;
+            assert published.get(3).getType() == PocketOperation.Type.DEPOSIT_POCKET;
+            assert published.get(3).getName().equals("Food") && published.get(3).getVersion() == 4;
+            assert published.get(3).getAvailableBalance() == 600;
+
+            // los rechazos no tocan nada
+            for (String[] bad : new String[][] { { "Rent", "Rent", "1" }, { "Rent", "Nope", "1" },
+                    { "Nope", "Rent", "1" }, { "Food", "Rent", "1000" }, { "Rent", "Food", "0" } }) {
+                try {
+                    service.transferBetweenPockets(bad[0], bad[1], Double.parseDouble(bad[2]));
+                    assert false : "transfer should fail: " + String.join(" ", bad);
+                } catch (IllegalArgumentException | IllegalStateException expected) {
+                }
+            }
+            assert service.getMainAccount().getVersion() == 4;
+            assert published.size() == 4;
+
+            // A->B y B->A en paralelo: sin bloqueos, nada se pierde y el disponible nunca se mueve
+            int threads = 8;
+            int perThread = 2000;
+            CountDownLatch done = new CountDownLatch(threads);
+            java.util.concurrent.atomic.AtomicBoolean moved = new java.util.concurrent.atomic.AtomicBoolean();
+            for (int t = 0; t < threads; t++) {
+                boolean forward = t % 2 == 0;
+                new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        try {
+                            if (forward) service.transferBetweenPockets("Rent", "Food", 1);
+                            else service.transferBetweenPockets("Food", "Rent", 1);
+                        } catch (IllegalStateException insufficient) {
+                        }
+                        if (service.getMainAccount().getAvailableBalance() != 600) moved.set(true);
+                    }
+                    done.countDown();
+                }).start();
+            }
+            assert done.await(60, java.util.concurrent.TimeUnit.SECONDS) : type + " transfers did not finish";
+            assert !moved.get();
+            MainAccount account = service.getMainAccount();
+            double rent = service.getPocket("Rent").getBalance();
+            double food = service.getPocket("Food").getBalance();
+            assert rent + food == 400;
+            assert account.getAvailableBalance() == 600 && account.getTotalBalance() == 1000;
+            wal.close();
+
+            // el log repite el retiro y el depósito y llega al mismo estado
+            MainAccount recovered = WriteAheadLog.recover(file, 0).getMainAccount();
+            assert recovered.getVersion() == account.getVersion();
+            assert recovered.getAvailableBalance() == 600;
+            assert recovered.getPockets().get(0).getBalance() == rent;
+            assert recovered.getPockets().get(1).getBalance() == food;
+        }
+
+        // por el puerto JSON, con el decodificador rápido y por Gson
+        dtos.Command command = new dtos.RequestDecoder().decode(
+                "{\"action\":\"TRANSFER_POCKET\",\"data\":{\"from\":\"a\",\"to\":\"b\",\"amount\":\"2.5\"}}");
+        assert command.action == dtos.Action.TRANSFER_POCKET;
+        assert command.name.equals("a") && command.target.equals("b") && command.amount == 2.5;
+        assert new dtos.RequestDecoder().decode(
+                "{\"action\":\"DEPOSIT_POCKET\",\"data\":{\"from\":\"a\",\"amount\":\"2.5\"}}") == null;
+
+        call(operation("DEPOSIT_ACCOUNT", "amount", "100"));
+        call(operation("ADD_POCKET", "name", "Transfer A", "initialAmount", "60"));
+        call(operation("ADD_POCKET", "name", "Transfer B", "initialAmount", "0"));
+        MainAccount before = getAccount();
+        Response response = call(operation("TRANSFER_POCKET", "from", "Transfer A", "to", "Transfer B", "amount", "25"));
+        assert response.status.equals("ok");
+        assert response.data.getAsJsonObject("from").get("balance").getAsDouble() == 35;
+        assert response.data.getAsJsonObject("to").get("balance").getAsDouble() == 25;
+        JsonObject totals = response.data.getAsJsonObject("account");
+        assert totals.get("availableBalance").getAsDouble() == before.getAvailableBalance();
+        assert totals.get("version").getAsLong() == before.getVersion() + 2;
+        assert totals.getAsJsonArray("pockets").size() == before.getPockets().size();
+
+        response = call(operation("TRANSFER_POCKET", "from", "Transfer B", "to", "Transfer A", "amount", "5", "mode", "delta"));
+        assert response.data.getAsJsonObject("to").get("balance").getAsDouble() == 40;
+        assert !response.data.getAsJsonObject("account").has("pockets");
+
+        response = call(operation("TRANSFER_POCKET", "from", "Transfer B", "to", "Transfer A", "amount", "500"));
+        assert response.status.equals("error");
+        assert response.data.get("message").getAsString().equals("Insufficient funds in pocket");
+        response = call(operation("TRANSFER_POCKET", "from", "Transfer A", "amount", "1"));
+        assert response.data.get("message").getAsString().equals("Source and target pockets are required");
+
+        // la respuesta se escribe con los adapters directo desde la entidad, sin árbol intermedio
+        Server streamed = new Server();
+        streamed.prepare(1000.0);
+        streamed.processLine("{\"action\":\"ADD_POCKET\",\"data\":{\"name\":\"a\",\"initialAmount\":\"10\"}}");
+        streamed.processLine("{\"action\":\"ADD_POCKET\",\"data\":{\"name\":\"b\",\"initialAmount\":\"0\"}}");
+        dtos.Response full = streamed.processLine(
+                "{\"action\":\"TRANSFER_POCKET\",\"data\":{\"from\":\"a\",\"to\":\"b\",\"amount\":\"4\"}}");
+        assert full.entity instanceof services.PocketTransfer && full.data == null;
+        assert streamed.encode(full).equals("{\"status\":\"ok\",\"data\":{\"from\":{\"name\":\"a\",\"balance\":6.0},"
+                + "\"to\":{\"name\":\"b\",\"balance\":4.0},\"account\":{\"availableBalance\":990.0,"
+                + "\"totalBalance\":1000.0,\"version\":4,\"pockets\":[{\"name\":\"a\",\"balance\":6.0},"
+                + "{\"name\":\"b\",\"balance\":4.0}]}}}");
+        dtos.Response delta = streamed.processLine("{\"action\":\"TRANSFER_POCKET\",\"data\":"
+                + "{\"from\":\"b\",\"to\":\"a\",\"amount\":\"1\",\"mode\":\"delta\"}}");
+        assert streamed.encode(delta).equals("{\"status\":\"ok\",\"data\":{\"from\":{\"name\":\"b\",\"balance\":3.0},"
+                + "\"to\":{\"name\":\"a\",\"balance\":7.0},\"account\":{\"availableBalance\":990.0,"
+                + "\"totalBalance\":1000.0,\"version\":6}}}");
+    }
+
+    @Test
+    public void Zf_testLedgerHistory() throws Exception {
+        Path spill = Files.createTempFile("ledger", ".dat");
+        PocketService service = new PocketService(1000000);
+        Ledger ledger = new Ledger(spill, 256, 1);
+        ledger.attach(service);
+        List<Mutation> published = new ArrayList<>();
+        service.addMutationListener(published::add);
+        service.addPocket("A", 10);
+        service.addPocket("B", 10);
+        for (int i = 0; i < 1000; i++) service.depositInPocket(i % 2 == 0 ? "A" : "B", 1);
+        Thread.sleep(5);
+        long mid = System.currentTimeMillis();
+        Thread.sleep(5);
+        service.depositInAccount(100);
+        for (int i = 0; i < 999; i++) service.depositInPocket(i % 2 == 0 ? "A" : "B", 1);
+        assert ledger.getSize() == 2002;
+
+        // segmentos de 256 y uno solo en memoria: los primeros van al archivo
+        long deadline = System.currentTimeMillis() + 10000;
+        while (ledger.getSpilledEntries() < 5 * 256 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assert ledger.getSpilledEntries() >= 5 * 256 : "spilled " + ledger.getSpilledEntries();
+        assert ledger.getSpillFailures() == 0;
+
+        // todo, por páginas: mismas filas que lo publicado, estén en memoria o en el archivo
+        List<Ledger.Entry> all = new ArrayList<>();
+        long cursor = 0;
+        int pages = 0;
+        do {
+            Ledger.Page page = ledger.history(null, Long.MIN_VALUE, Long.MAX_VALUE, cursor, 300);
+            all.addAll(page.getEntries());
+            cursor = page.getNext();
+            pages++;
+        } while (cursor >= 0);
+        assert pages == 7 && all.size() == 2002;
+        for (int i = 0; i < all.size(); i++) {
+            Ledger.Entry entry = all.get(i);
+            Mutation mutation = published.get(i);
+            assert entry.getSeq() == i && entry.getVersion() == mutation.getVersion();
+            assert entry.getType() == mutation.getType();
+            assert java.util.Objects.equals(entry.getPocket(), mutation.getName());
+            assert entry.getAmount() == mutation.getAmount();
+            assert entry.getPocketBalance() == mutation.getPocketBalance();
+            assert entry.getAvailableBalance() == mutation.getAvailableBalance();
+            assert entry.getTotalBalance() == mutation.getTotalBalance();
+            assert entry.getTimestamp() == Math.max(mutation.getTimestamp(), i == 0 ? 0 : all.get(i - 1).getTimestamp());
+        }
+
+        // un bolsillo: solo sus filas, en orden, aunque el cursor caiga entre medio
+        Ledger.Page a = ledger.history("A", Long.MIN_VALUE, Long.MAX_VALUE, 0, 400);
+        assert a.getEntries().size() == 400 && a.getEntries().stream().allMatch(e -> e.getPocket().equals("A"));
+        assert a.getEntries().get(0).getType() == PocketOperation.Type.ADD_POCKET;
+        assert a.getEntries().get(399).getPocketBalance() == 10 + 399;
+        Ledger.Page rest = ledger.history("A", Long.MIN_VALUE, Long.MAX_VALUE, a.getNext(), 1000);
+        assert rest.getNext() == -1 && rest.getEntries().size() == 1001 - 400;
+        assert rest.getEntries().get(0).getSeq() > a.getEntries().get(399).getSeq();
+        assert rest.getEntries().get(600).getPocketBalance() == 10 + 1000;
+        assert ledger.history("Nope", Long.MIN_VALUE, Long.MAX_VALUE, 0, 10).getEntries().isEmpty();
+
+        // rango de tiempo: [mid, ...) empieza en el depósito a la cuenta, [..., mid) termina antes
+        Ledger.Page after = ledger.history(null, mid, Long.MAX_VALUE, 0, 5);
+        assert after.getEntries().get(0).getSeq() == 1002;
+        assert after.getEntries().get(0).getType() == PocketOperation.Type.DEPOSIT_ACCOUNT;
+        assert after.getEntries().get(0).getPocket() == null;
+        Ledger.Page before = ledger.history(null, Long.MIN_VALUE, mid, 1000, 5);
+        assert before.getEntries().size() == 2 && before.getNext() == -1;
+        assert ledger.history("B", mid, Long.MAX_VALUE, 0, 1000).getEntries().size() == 499;
+        assert ledger.history(null, mid, mid, 0, 10).getEntries().isEmpty();
+
+        // costo de anotar cada mutación: mismo camino con y sin historial, después de calentar
+        int n = 200000;
+        Path timedSpill = Files.createTempFile("ledger", ".dat");
+        Ledger timed = new Ledger(timedSpill, 65536, 4);
+        long[] nanos = new long[2];
+        for (int round = 0; round < 3; round++) {
+            for (int k = 0; k < 2; k++) {
+                PocketService target = new PocketService(n);
+                if (k == 1) timed.attach(target);
+                target.addPocket("X", 0);
+                long time = System.nanoTime();
+                for (int i = 0; i < n; i++) target.depositInPocket("X", 1);
+                nanos[k] = System.nanoTime() - time;
+            }
+        }
+        System.out.println("Deposit ns/op without ledger: " + nanos[0] / n + ", with ledger: " + nanos[1] / n
+                + ", ledger entries: " + timed.getSize() + ", spilled: " + timed.getSpilledEntries());
+        timed.close();
+        assert !Files.exists(timedSpill);
+        ledger.close();
+        // el volcado es descartable: no queda en disco
+        assert !Files.exists(spill);
+
+        new Thread(() -> {
+            try {
+                Server server = new Server();
+                server.setPort(5009);
+                server.setLedgerEnabled(true);
+                server.setLedgerSegmentSize(256);
+                server.setLedgerMemorySegments(1);
+                server.init(1000.0);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }).start();
+        Thread.sleep(500);
+
+        call(5009, operation("ADD_POCKET", "name", "Viaje", "initialAmount", "100"));
+        call(5009, operation("ADD_POCKET", "name", "Casa", "initialAmount", "100"));
+        for (int i = 0; i < 3; i++) call(5009, operation("DEPOSIT_POCKET", "name", "Viaje", "amount", "10"));
+        call(5009, operation("TRANSFER_POCKET", "from", "Viaje", "to", "Casa", "amount", "30"));
+        Response page = call(5009, operation("HISTORY", "name", "Viaje", "limit", "3"));
+        assert page.status.equals("ok");
+        assert page.data.getAsJsonArray("entries").size() == 3;
+        JsonObject first = page.data.getAsJsonArray("entries").get(0).getAsJsonObject();
+        assert first.get("type").getAsString().equals("ADD_POCKET") && first.get("pocketBalance").getAsDouble() == 100;
+        page = call(5009, operation("HISTORY", "name", "Viaje", "limit", "3", "cursor", page.data.get("next").getAsString()));
+        assert page.data.getAsJsonArray("entries").size() == 2 && !page.data.has("next");
+        JsonObject last = page.data.getAsJsonArray("entries").get(1).getAsJsonObject();
+        assert last.get("type").getAsString().equals("WITHDRAW_POCKET") && last.get("pocketBalance").getAsDouble() == 100;
+        assert call(5009, operation("HISTORY")).data.getAsJsonArray("entries").size() == 7;
+
+        assert call(5009, operation("HISTORY", "account", "ana")).data.get("message").getAsString()
+                .equals("History is only available for the default account");
+        assert call(5009, operation("HISTORY", "limit", "0")).status.equals("error");
+        assert call(operation("HISTORY")).data.get("message").getAsString().equals("History is disabled");
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // cantidad de colecciones y milisegundos acumulados, sumando todos los colectores
+    private static long[] gcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, gc.getCollectionCount());
+            totals[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return totals;
+    }
+
+    private double runDeposits(PocketService service, String prefix, int pockets, int perThread) throws Exception {
+        int threads = 8;
+        CountDownLatch done = new CountDownLatch(threads);
+        List<Exception> errors = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        String name = prefix + ((seed * 31 + i * 7) % pockets);
+                        if (i % 3 == 2) service.withdrawFromPocket(name, 1);
+                        else service.depositInPocket(name, 1);
+                    }
+                } catch (Exception e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assert errors.isEmpty() : errors;
+        return threads * perThread / ((System.nanoTime() - start) / 1e9);
+    }
+
     private class ConcurrentTest extends Thread {
 
         private Response response;